@@ -0,0 +1,643 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link TxHandler} whose epochs accept the mutually valid subset of the proposed transactions
+ * with the largest total fee, where the fee of a transaction is the sum of its input values minus
+ * the sum of its output values.
+ *
+ * <p>Proposed transactions are linked by conflicts (two transactions claiming the same output) and
+ * dependencies (a transaction claiming an output of another proposed transaction). Each connected
+ * component of that graph is solved on its own: components of up to {@link #EXACT_COMPONENT_SIZE}
+ * transactions by branch and bound, larger ones greedily by ancestor package fee followed by swap
+ * improvements. Once the time budget of an epoch is spent the search stops improving and the best
+ * selection found so far is accepted.
+ *
+ * <p>The budget only covers that search. Before it, every proposal is checked on its own, which is
+ * mostly signature verification; large epochs are checked in parallel on the pool set with
+ * {@link #setForkJoinPool}.
+ */
+public class MaxFeeTxHandler extends TxHandler {
+
+    /** largest component that is solved exactly */
+    public static final int EXACT_COMPONENT_SIZE = 24;
+
+    /** default time budget of the search in one epoch, in milliseconds */
+    public static final long DEFAULT_BUDGET_MILLIS = 100;
+
+    private static final double EPSILON = 1e-9;
+
+    /** most proposals checked by one task of a parallel epoch before it is split */
+    private static final int CHECK_LEAF_SIZE = 16;
+
+    private final long budgetNanos;
+
+    /* Candidates of the current epoch, numbered in dependency order so parents come first */
+    private Transaction[] txs;
+    private double[] fees;
+    private int[][] parents;
+    private int[][] children;
+    private int[][] spends;
+    private boolean[] selected;
+    private int[] spentBy;
+
+    /* Scratch marks for package and descendant walks, valid while equal to stamp */
+    private int[] txMark;
+    private int[] outpointMark;
+    private int stamp;
+
+    private long deadline;
+    private long nodes;
+    private boolean outOfTime;
+
+    /* Best selection of the component being solved exactly */
+    private double bestFee;
+    private boolean[] bestSelected;
+    private double[] suffixFees;
+
+    private int exactComponents;
+    private int heuristicComponents;
+    private double totalFees;
+
+    /** Creates a handler with a search budget of {@link #DEFAULT_BUDGET_MILLIS} per epoch */
+    public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this(utxoPool, DEFAULT_BUDGET_MILLIS);
+    }
+
+    /**
+     * Creates a handler that spends at most {@code budgetMillis} per epoch searching for a better
+     * selection once every component has a greedy one
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, long budgetMillis) {
+        super(utxoPool);
+        if (budgetMillis < 0)
+            throw new IllegalArgumentException("budget must be non-negative");
+        this.budgetNanos = budgetMillis * 1000000L;
+    }
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, and returning the
+     * mutually valid subset with the largest total fee, ordered so that every transaction comes
+     * after the transactions whose outputs it claims. The current UTXO pool is updated accordingly.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        int numCandidates = buildGraph(possibleTxs);
+        selected = new boolean[numCandidates];
+        txMark = new int[numCandidates];
+        stamp = 0;
+        deadline = System.nanoTime() + budgetNanos;
+        outOfTime = false;
+        nodes = 0;
+        exactComponents = 0;
+        heuristicComponents = 0;
+
+        for (int[] component : components(numCandidates)) {
+            greedy(component);
+            if (component.length == 1)
+                continue;
+            if (component.length <= EXACT_COMPONENT_SIZE) {
+                exactComponents++;
+                solveExact(component);
+            } else {
+                heuristicComponents++;
+                improve(component);
+            }
+        }
+
+        // Zero fee transactions never lower the total, so take every one that still fits
+        totalFees = 0;
+        List<Transaction> accepted = new ArrayList<>();
+        for (int c = 0; c < numCandidates; c++) {
+            if (!selected[c] && canSelect(c))
+                select(c);
+            if (selected[c]) {
+                accepted.add(txs[c]);
+                totalFees += fees[c];
+            }
+        }
+
+        for (Transaction tx : accepted) {
+            for (Transaction.Input input : tx.getInputs())
+                ledger.utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+            for (int index = 0; index < tx.numOutputs(); ++index)
+                ledger.utxoPool.addUTXO(new UTXO(tx.getHash(), index), tx.getOutput(index));
+        }
+        txs = null;
+        return accepted.toArray(new Transaction[accepted.size()]);
+    }
+
+    /** @return number of components of the last epoch that were solved by branch and bound */
+    public int getExactComponents() {
+        return exactComponents;
+    }
+
+    /** @return number of components of the last epoch too large to be solved exactly */
+    public int getHeuristicComponents() {
+        return heuristicComponents;
+    }
+
+    /** @return true if the last epoch ran out of time before its search finished */
+    public boolean isBudgetExceeded() {
+        return outOfTime;
+    }
+
+    /** @return total fee of the transactions accepted in the last epoch */
+    public double getTotalFees() {
+        return totalFees;
+    }
+
+    /**
+     * Checks every proposed transaction on its own, against the pool and the outputs of the other
+     * proposals, and numbers the ones that pass in dependency order. Transactions that depend on a
+     * rejected transaction, or on a dependency cycle, are rejected too.
+     *
+     * @return the number of candidates
+     */
+    private int buildGraph(Transaction[] possibleTxs) {
+        int m = possibleTxs.length;
+        Map<UTXO, Integer> producers = new HashMap<>();
+        for (int i = 0; i < m; i++) {
+            byte[] hash = possibleTxs[i].getHash();
+            if (hash == null)
+                continue;
+            for (int index = 0; index < possibleTxs[i].numOutputs(); index++)
+                producers.putIfAbsent(new UTXO(hash, index), i);
+        }
+
+        double[] txFees = new double[m];
+        int[][] txParents = new int[m][];
+        boolean[] valid = new boolean[m];
+        ForkJoinPool pool = getForkJoinPool();
+        if (pool == null || m < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < m; i++)
+                valid[i] = check(possibleTxs, i, producers, txFees, txParents);
+        } else {
+            pool.invoke(new CheckRange(possibleTxs, producers, valid, txFees, txParents, 0, m));
+        }
+
+        // Number the outputs claimed by the valid proposals
+        Map<UTXO, Integer> outpoints = new HashMap<>();
+        int[][] txSpends = new int[m][];
+        for (int i = 0; i < m; i++) {
+            if (!valid[i])
+                continue;
+            txSpends[i] = new int[possibleTxs[i].numInputs()];
+            for (int index = 0; index < txSpends[i].length; ++index) {
+                Transaction.Input input = possibleTxs[i].getInput(index);
+                UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
+                Integer id = outpoints.get(ut);
+                if (id == null) {
+                    id = outpoints.size();
+                    outpoints.put(ut, id);
+                }
+                txSpends[i][index] = id;
+            }
+        }
+
+        // Kahn's algorithm over in-batch dependencies, taking ready transactions in array order.
+        // A dependent of a rejected transaction or of a cycle never becomes ready
+        int[] pending = new int[m];
+        List<List<Integer>> dependents = new ArrayList<>(m);
+        for (int i = 0; i < m; i++)
+            dependents.add(new ArrayList<>());
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int i = 0; i < m; i++) {
+            if (!valid[i])
+                continue;
+            for (int p : txParents[i]) {
+                pending[i]++;
+                dependents.get(p).add(i);
+            }
+            if (pending[i] == 0)
+                ready.add(i);
+        }
+        int[] candidateOf = new int[m];
+        Arrays.fill(candidateOf, -1);
+        List<Integer> order = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            candidateOf[i] = order.size();
+            order.add(i);
+            for (int d : dependents.get(i)) {
+                if (--pending[d] == 0)
+                    ready.add(d);
+            }
+        }
+        int n = order.size();
+        txs = new Transaction[n];
+        fees = new double[n];
+        parents = new int[n][];
+        spends = new int[n][];
+        int[] numChildren = new int[n];
+        for (int c = 0; c < n; c++) {
+            int i = order.get(c);
+            txs[c] = possibleTxs[i];
+            fees[c] = txFees[i];
+            spends[c] = txSpends[i];
+            parents[c] = new int[txParents[i].length];
+            for (int k = 0; k < parents[c].length; k++) {
+                parents[c][k] = candidateOf[txParents[i][k]];
+                numChildren[parents[c][k]]++;
+            }
+        }
+        children = new int[n][];
+        for (int c = 0; c < n; c++)
+            children[c] = new int[numChildren[c]];
+        for (int c = 0; c < n; c++) {
+            for (int p : parents[c])
+                children[p][--numChildren[p]] = c;
+        }
+
+        spentBy = new int[outpoints.size()];
+        Arrays.fill(spentBy, -1);
+        outpointMark = new int[outpoints.size()];
+        return n;
+    }
+
+    /**
+     * Checks {@code possibleTxs[i]} with {@link #checkTx(Transaction, OutputLookup)}, looking claimed
+     * outputs up in the pool and then among the outputs of the other proposals, and records its fee
+     * and the proposals it depends on. Only writes entry {@code i} of the arrays, so proposals can be
+     * checked concurrently
+     *
+     * @return true if the transaction can be accepted once the proposals it depends on are
+     */
+    private boolean check(Transaction[] possibleTxs, int i, Map<UTXO, Integer> producers, double[] txFees,
+            int[][] txParents) {
+        Transaction tx = possibleTxs[i];
+        if (tx.getHash() == null)
+            return false;
+        List<Transaction.Output> claimed = new ArrayList<>(tx.numInputs());
+        Set<Integer> txParentSet = new HashSet<>();
+        TxRejectReason reason = checkTx(tx, (txHash, index) -> {
+            Transaction.Output prevOutput = ledger.utxoPool.getTxOutput(txHash, index);
+            if (prevOutput == null) {
+                Integer producer = producers.get(new UTXO(txHash, index));
+                if (producer == null || producer == i)
+                    return null;
+                prevOutput = possibleTxs[producer].getOutput(index);
+                txParentSet.add(producer);
+            }
+            claimed.add(prevOutput);
+            return prevOutput;
+        });
+        if (reason != null)
+            return false;
+
+        double sumOutputs = 0;
+        for (Transaction.Output output : tx.getOutputs())
+            sumOutputs += output.value;
+        double sumInputs = 0;
+        for (Transaction.Output prevOutput : claimed)
+            sumInputs += prevOutput.value;
+        txFees[i] = sumInputs - sumOutputs;
+        txParents[i] = new int[txParentSet.size()];
+        int k = 0;
+        for (int p : txParentSet)
+            txParents[i][k++] = p;
+        Arrays.sort(txParents[i]);
+        return true;
+    }
+
+    /** Checks proposals [from, to), splitting while they are more than CHECK_LEAF_SIZE */
+    private class CheckRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Transaction[] possibleTxs;
+        private final Map<UTXO, Integer> producers;
+        private final boolean[] valid;
+        private final double[] txFees;
+        private final int[][] txParents;
+        private final int from;
+        private final int to;
+
+        CheckRange(Transaction[] possibleTxs, Map<UTXO, Integer> producers, boolean[] valid, double[] txFees,
+                int[][] txParents, int from, int to) {
+            this.possibleTxs = possibleTxs;
+            this.producers = producers;
+            this.valid = valid;
+            this.txFees = txFees;
+            this.txParents = txParents;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= CHECK_LEAF_SIZE) {
+                for (int i = from; i < to; i++)
+                    valid[i] = check(possibleTxs, i, producers, txFees, txParents);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new CheckRange(possibleTxs, producers, valid, txFees, txParents, from, mid),
+                    new CheckRange(possibleTxs, producers, valid, txFees, txParents, mid, to));
+        }
+    }
+
+    /**
+     * @return the connected components of the conflict and dependency graph, each listing its
+     *         candidates in ascending order
+     */
+    private List<int[]> components(int n) {
+        int[] root = new int[n];
+        for (int c = 0; c < n; c++)
+            root[c] = c;
+        int[] firstSpender = new int[spentBy.length];
+        Arrays.fill(firstSpender, -1);
+        for (int c = 0; c < n; c++) {
+            for (int p : parents[c])
+                union(root, c, p);
+            for (int o : spends[c]) {
+                if (firstSpender[o] < 0)
+                    firstSpender[o] = c;
+                else
+                    union(root, c, firstSpender[o]);
+            }
+        }
+        int[] size = new int[n];
+        for (int c = 0; c < n; c++)
+            size[find(root, c)]++;
+        int[][] members = new int[n][];
+        List<int[]> result = new ArrayList<>();
+        for (int c = 0; c < n; c++) {
+            int r = find(root, c);
+            if (members[r] == null) {
+                members[r] = new int[size[r]];
+                result.add(members[r]);
+                size[r] = 0;
+            }
+            members[r][size[r]++] = c;
+        }
+        return result;
+    }
+
+    private static int find(int[] root, int c) {
+        while (root[c] != c) {
+            root[c] = root[root[c]];
+            c = root[c];
+        }
+        return c;
+    }
+
+    private static void union(int[] root, int a, int b) {
+        a = find(root, a);
+        b = find(root, b);
+        if (a < b)
+            root[b] = a;
+        else if (b < a)
+            root[a] = b;
+    }
+
+    /** @return true if every parent of {@code c} is selected and none of its outputs is spent */
+    private boolean canSelect(int c) {
+        for (int p : parents[c]) {
+            if (!selected[p])
+                return false;
+        }
+        for (int o : spends[c]) {
+            if (spentBy[o] >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void select(int c) {
+        selected[c] = true;
+        for (int o : spends[c])
+            spentBy[o] = c;
+    }
+
+    private void unselect(int c) {
+        selected[c] = false;
+        for (int o : spends[c])
+            spentBy[o] = -1;
+    }
+
+    private boolean timeUp() {
+        if (!outOfTime && (++nodes & 1023) == 0 && System.nanoTime() > deadline)
+            outOfTime = true;
+        return outOfTime;
+    }
+
+    /**
+     * Collects {@code c} and its unselected ancestors into {@code out}, in ascending order
+     *
+     * @return false if two of them claim the same output, so they can never be accepted together
+     */
+    private boolean ancestorPackage(int c, IntList out) {
+        out.clear();
+        stamp++;
+        txMark[c] = stamp;
+        out.add(c);
+        for (int k = 0; k < out.size; k++) {
+            for (int p : parents[out.items[k]]) {
+                if (!selected[p] && txMark[p] != stamp) {
+                    txMark[p] = stamp;
+                    out.add(p);
+                }
+            }
+        }
+        out.sort();
+        for (int k = 0; k < out.size; k++) {
+            for (int o : spends[out.items[k]]) {
+                if (outpointMark[o] == stamp)
+                    return false;
+                outpointMark[o] = stamp;
+            }
+        }
+        return true;
+    }
+
+    /** @return total fee of the transactions in {@code txList} */
+    private double feeOf(IntList txList) {
+        double fee = 0;
+        for (int k = 0; k < txList.size; k++)
+            fee += fees[txList.items[k]];
+        return fee;
+    }
+
+    /**
+     * Selects packages of a candidate and its unselected ancestors, highest package fee first, as
+     * long as they do not conflict with what is already selected. Package fees only shrink as
+     * ancestors get selected, so a stale queue entry is just pushed back with its current fee.
+     */
+    private void greedy(int[] component) {
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> a[0] != b[0]
+                ? Double.compare(b[0], a[0]) : Double.compare(a[1], b[1]));
+        IntList pkg = new IntList();
+        for (int c : component) {
+            if (ancestorPackage(c, pkg))
+                queue.add(new double[] {feeOf(pkg), c});
+        }
+        while (!queue.isEmpty()) {
+            double[] entry = queue.poll();
+            int c = (int) entry[1];
+            if (selected[c] || !ancestorPackage(c, pkg))
+                continue;
+            boolean free = true;
+            for (int k = 0; k < pkg.size && free; k++) {
+                for (int o : spends[pkg.items[k]]) {
+                    if (spentBy[o] >= 0) {
+                        free = false;
+                        break;
+                    }
+                }
+            }
+            if (!free)
+                continue;
+            double fee = feeOf(pkg);
+            if (fee < entry[0] - EPSILON) {
+                queue.add(new double[] {fee, c});
+                continue;
+            }
+            for (int k = 0; k < pkg.size; k++)
+                select(pkg.items[k]);
+        }
+    }
+
+    /** Replaces the greedy selection of {@code component} by the best one, unless time runs out */
+    private void solveExact(int[] component) {
+        int size = component.length;
+        bestFee = 0;
+        bestSelected = new boolean[size];
+        for (int k = 0; k < size; k++) {
+            bestSelected[k] = selected[component[k]];
+            if (bestSelected[k])
+                bestFee += fees[component[k]];
+        }
+        suffixFees = new double[size + 1];
+        for (int k = size - 1; k >= 0; k--)
+            suffixFees[k] = suffixFees[k + 1] + fees[component[k]];
+
+        for (int k = size - 1; k >= 0; k--) {
+            if (selected[component[k]])
+                unselect(component[k]);
+        }
+        search(component, 0, 0);
+        for (int k = 0; k < size; k++) {
+            if (selected[component[k]])
+                unselect(component[k]);
+        }
+        for (int k = 0; k < size; k++) {
+            if (bestSelected[k])
+                select(component[k]);
+        }
+    }
+
+    /** Branch and bound over whether to accept {@code component[k]}, parents being decided first */
+    private void search(int[] component, int k, double fee) {
+        if (fee > bestFee + EPSILON) {
+            bestFee = fee;
+            for (int j = 0; j < component.length; j++)
+                bestSelected[j] = selected[component[j]];
+        }
+        if (k == component.length || fee + suffixFees[k] <= bestFee + EPSILON || timeUp())
+            return;
+        int c = component[k];
+        if (canSelect(c)) {
+            select(c);
+            search(component, k + 1, fee + fees[c]);
+            unselect(c);
+        }
+        search(component, k + 1, fee);
+    }
+
+    /**
+     * Improves the selection of {@code component} by swapping in a package whose fee exceeds that of
+     * the selected transactions it conflicts with, together with their selected descendants, until
+     * no swap helps or time runs out
+     */
+    private void improve(int[] component) {
+        IntList pkg = new IntList();
+        IntList evicted = new IntList();
+        boolean improved = true;
+        while (improved && !outOfTime) {
+            improved = false;
+            for (int c : component) {
+                if (selected[c] || timeUp())
+                    continue;
+                if (trySwap(c, pkg, evicted))
+                    improved = true;
+            }
+            // Evictions may have freed outputs that other packages can now claim
+            if (improved)
+                greedy(component);
+        }
+    }
+
+    /**
+     * Swaps in the package of {@code c} if that raises the total fee
+     *
+     * @return true if the selection changed
+     */
+    private boolean trySwap(int c, IntList pkg, IntList evicted) {
+        if (!ancestorPackage(c, pkg))
+            return false;
+        double gain = feeOf(pkg);
+
+        stamp++;
+        evicted.clear();
+        for (int k = 0; k < pkg.size; k++) {
+            for (int o : spends[pkg.items[k]]) {
+                int s = spentBy[o];
+                if (s >= 0 && txMark[s] != stamp) {
+                    txMark[s] = stamp;
+                    evicted.add(s);
+                }
+            }
+        }
+        if (evicted.size == 0)
+            return false;
+        for (int k = 0; k < evicted.size; k++) {
+            for (int d : children[evicted.items[k]]) {
+                if (selected[d] && txMark[d] != stamp) {
+                    txMark[d] = stamp;
+                    evicted.add(d);
+                }
+            }
+        }
+        // The package cannot stay if it relies on a selected ancestor that would be evicted
+        for (int k = 0; k < pkg.size; k++) {
+            for (int p : parents[pkg.items[k]]) {
+                if (selected[p] && txMark[p] == stamp)
+                    return false;
+            }
+        }
+        gain -= feeOf(evicted);
+        if (gain <= EPSILON)
+            return false;
+        for (int k = 0; k < evicted.size; k++)
+            unselect(evicted.items[k]);
+        for (int k = 0; k < pkg.size; k++)
+            select(pkg.items[k]);
+        return true;
+    }
+
+    /** A growable list of ints, reused across package walks */
+    private static class IntList {
+        int[] items = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            items[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void sort() {
+            Arrays.sort(items, 0, size);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.security.PublicKey;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+/** The signature schemes an output address can use */
+public enum SignatureScheme {
+
+    /**
+     * Legacy RSA addresses. They are serialized as exponent followed by modulus with no tag, exactly
+     * as before schemes existed, so that the hashes of existing transactions do not change.
+     */
+    RSA("SHA256withRSA", "RSA", null) {
+        public byte[] encode(PublicKey key) {
+            byte[] exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+            byte[] modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+            byte[] enc = Arrays.copyOf(exponent, exponent.length + modulus.length);
+            System.arraycopy(modulus, 0, enc, exponent.length, modulus.length);
+            return enc;
+        }
+
+        public boolean keyEquals(PublicKey a, PublicKey b) {
+            RSAPublicKey ra = (RSAPublicKey) a;
+            RSAPublicKey rb = (RSAPublicKey) b;
+            return ra.getPublicExponent().equals(rb.getPublicExponent())
+                    && ra.getModulus().equals(rb.getModulus());
+        }
+
+        public int keyHashCode(PublicKey key) {
+            int hash = ((RSAPublicKey) key).getPublicExponent().hashCode();
+            hash = hash * 31 + ((RSAPublicKey) key).getModulus().hashCode();
+            return hash;
+        }
+    },
+
+    /** Ed25519 addresses, serialized as the tag byte followed by the 32 byte raw public key */
+    ED25519("Ed25519", "Ed25519", (byte) 0xED) {
+        public byte[] encode(PublicKey key) {
+            byte[] x509 = key.getEncoded();
+            byte[] enc = new byte[1 + ED25519_KEY_SIZE];
+            enc[0] = tag;
+            System.arraycopy(x509, x509.length - ED25519_KEY_SIZE, enc, 1, ED25519_KEY_SIZE);
+            return enc;
+        }
+    };
+
+    /** size in bytes of a raw Ed25519 public key */
+    public static final int ED25519_KEY_SIZE = 32;
+
+    /** name of the algorithm to pass to {@code Signature.getInstance} */
+    public final String algorithm;
+
+    /** name of the algorithm to pass to {@code KeyFactory.getInstance} */
+    public final String keyAlgorithm;
+
+    /** byte that prefixes addresses of this scheme in raw transactions, or null if untagged */
+    public final Byte tag;
+
+    SignatureScheme(String algorithm, String keyAlgorithm, Byte tag) {
+        this.algorithm = algorithm;
+        this.keyAlgorithm = keyAlgorithm;
+        this.tag = tag;
+    }
+
+    /** @return the bytes of {@code key} as they appear in raw transactions and sign data */
+    public abstract byte[] encode(PublicKey key);
+
+    /** @return true if {@code a} and {@code b}, both keys of this scheme, are the same key */
+    public boolean keyEquals(PublicKey a, PublicKey b) {
+        return Arrays.equals(a.getEncoded(), b.getEncoded());
+    }
+
+    /** @return a hash code for {@code key} that respects {@link #keyEquals} */
+    public int keyHashCode(PublicKey key) {
+        return Arrays.hashCode(key.getEncoded());
+    }
+
+    /**
+     * @return the scheme of {@code key}
+     * @throws IllegalArgumentException if {@code key} is not an RSA or Ed25519 key
+     */
+    public static SignatureScheme of(PublicKey key) {
+        if (key instanceof RSAPublicKey)
+            return RSA;
+        if (key instanceof EdECPublicKey
+                && "Ed25519".equalsIgnoreCase(((EdECPublicKey) key).getParams().getName()))
+            return ED25519;
+        throw new IllegalArgumentException("unsupported address key " + key.getAlgorithm());
+    }
+}
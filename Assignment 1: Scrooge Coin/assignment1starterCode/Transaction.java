@@ -43,10 +43,26 @@ public class Transaction {
         }
     }
 
+    /**
+     * Sign data of an input is the claimed output followed by every output of the transaction, so
+     * signing or verifying all inputs serializes the outputs once per input
+     */
+    public static final int SIGN_VERSION_LEGACY = 0;
+
+    /**
+     * Sign data of an input is the version, the claimed output, the input index and a digest of the
+     * outputs that is computed once per transaction, see {@link #getOutputsDigest}
+     */
+    public static final int SIGN_VERSION_OUTPUTS_DIGEST = 1;
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    private int signVersion = SIGN_VERSION_LEGACY;
+
+    /** digest of the outputs, computed on first use and cleared by {@link #addOutput} */
+    private volatile byte[] outputsDigest;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -57,6 +73,7 @@ public class Transaction {
         hash = tx.hash.clone();
         inputs = new ArrayList<Input>(tx.inputs);
         outputs = new ArrayList<Output>(tx.outputs);
+        signVersion = tx.signVersion;
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
@@ -67,6 +84,7 @@ public class Transaction {
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        outputsDigest = null;
     }
 
     public void removeInput(int index) {
@@ -84,7 +102,58 @@ public class Transaction {
         }
     }
 
+    public int getSignVersion() {
+        return signVersion;
+    }
+
+    /**
+     * Selects what {@link #getRawDataToSign} returns, {@link #SIGN_VERSION_LEGACY} or
+     * {@link #SIGN_VERSION_OUTPUTS_DIGEST}. Must be set before signing, since the version is part
+     * of the raw transaction and of the sign data
+     */
+    public void setSignVersion(int signVersion) {
+        if (signVersion != SIGN_VERSION_LEGACY && signVersion != SIGN_VERSION_OUTPUTS_DIGEST)
+            throw new IllegalArgumentException("unknown sign version " + signVersion);
+        this.signVersion = signVersion;
+    }
+
+    /**
+     * @return the SHA-256 of the value and address of every output, as they appear in the raw
+     *         transaction. It is computed once and cached until an output is added, so outputs
+     *         must not be changed in place after signing starts
+     */
+    public byte[] getOutputsDigest() {
+        byte[] digest = outputsDigest;
+        if (digest == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                ByteBuffer value = ByteBuffer.allocate(Double.SIZE / 8);
+                for (Output op : outputs) {
+                    value.clear();
+                    md.update(value.putDouble(op.value).array());
+                    md.update(op.address.getEncoded());
+                }
+                digest = md.digest();
+                outputsDigest = digest;
+            } catch (NoSuchAlgorithmException x) {
+                x.printStackTrace(System.err);
+            }
+        }
+        return digest;
+    }
+
     public byte[] getRawDataToSign(int index) {
+        if (signVersion == SIGN_VERSION_OUTPUTS_DIGEST) {
+            // version, ith input, its index and the digest of all outputs
+            if (index >= inputs.size())
+                return null;
+            Input in = inputs.get(index);
+            byte[] prevTxHash = in.prevTxHash == null ? new byte[0] : in.prevTxHash;
+            byte[] digest = getOutputsDigest();
+            ByteBuffer b = ByteBuffer.allocate(1 + prevTxHash.length + 4 + 4 + digest.length);
+            b.put((byte) signVersion).put(prevTxHash).putInt(in.outputIndex).putInt(index).put(digest);
+            return b.array();
+        }
         // ith input and all outputs
         ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
@@ -151,6 +220,9 @@ public class Transaction {
             }
 
         }
+        // Legacy transactions keep their hash, newer ones commit to their sign version
+        if (signVersion != SIGN_VERSION_LEGACY)
+            rawTx.add((byte) signVersion);
         byte[] tx = new byte[rawTx.size()];
         int i = 0;
         for (Byte b : rawTx)
@@ -1,8 +1,12 @@
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class TxHandler {
     public class Ledger {
@@ -14,6 +18,15 @@ public class TxHandler {
     }
     public Ledger ledger;
 
+    /** smallest epoch that is split into conflict groups and handled in parallel */
+    public static final int PARALLEL_THRESHOLD = 64;
+
+    /** most transactions handled by one task of a parallel epoch before it is split */
+    private static final int GROUPS_LEAF_SIZE = 32;
+
+    /** pool that handles the conflict groups of an epoch, or null to handle epochs serially */
+    private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -35,118 +48,115 @@ public class TxHandler {
      */
     public boolean isValidTx(Transaction tx) {
         // IMPLEMENT THIS
+        return checkTx(tx) == null;
+    }
 
-        // Get all current UTXO in pool
-        List<UTXO> allUTXO = ledger.utxoPool.getAllUTXO();
-
-        /** (1) all outputs claimed by {@code tx} are in the current UTXO pool */
-        for (Transaction.Input input : tx.getInputs()) {
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            if (!ledger.utxoPool.contains(prevUTXO)) {
-                return false;
-            }
-        }
-
-        /** (2) the signatures on each input of {@code tx} are valid */
-        for (int index = 0; index < tx.numInputs(); ++index) {
-            Transaction.Input input = tx.getInput(index);
-            // Get signature
-            byte[] signature = input.signature;
-
-            // Get message
-            byte[] message = tx.getRawDataToSign(index);
-
-            // Get public key
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output prevOutput = null;
-            for (UTXO utxo : allUTXO) {
-                if (prevUTXO.equals(utxo)) {
-                    prevOutput = ledger.utxoPool.getTxOutput(utxo);
-                    break;
-                }
-            }
-            if (prevOutput == null) {
-                return false;
-            }
-            PublicKey publicKey = prevOutput.address;
+    /**
+     * Checks the rules of {@link #isValidTx} in a single pass over the inputs, looking each claimed
+     * output up in the pool once. Cheap rules are checked before signatures, and the first broken
+     * rule ends the check.
+     *
+     * @return null if {@code tx} is valid, and otherwise the reason it is rejected
+     */
+    public TxRejectReason checkTx(Transaction tx) {
+        return checkTx(tx, ledger.utxoPool);
+    }
 
-            // Verify input
-            if (!Crypto.verifySignature(publicKey, message, signature)) {
-                return false;
-            }
-        }
+    /** Looks up the outputs claimed by the inputs of a transaction */
+    protected interface OutputLookup {
+        /** @return output {@code index} of transaction {@code txHash}, or null if it cannot be claimed */
+        Transaction.Output getTxOutput(byte[] txHash, int index);
+    }
 
-        /** (3) no UTXO is claimed multiple times by {@code tx} */
-        Set<UTXO> claimedUTXOSet = new HashSet<>();
-        for (Transaction.Input input : tx.getInputs()) {
-            // Get claimed UTXO
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            if (claimedUTXOSet.contains(prevUTXO)) {
-                return false;
-            }
-            claimedUTXOSet.add(prevUTXO);
-        }
+    /** Checks the rules of {@link #isValidTx} against {@code pool} instead of the ledger */
+    private static TxRejectReason checkTx(Transaction tx, UTXOPool pool) {
+        return checkTx(tx, pool::getTxOutput);
+    }
 
+    /**
+     * Checks the rules of {@link #isValidTx}, taking the claimed outputs from {@code outputs}
+     * instead of the ledger. Each input that gets that far is looked up once, in input order
+     */
+    protected static TxRejectReason checkTx(Transaction tx, OutputLookup outputs) {
         /** (4) all of {@code tx}s output values are non-negative */
+        double sumOutputs = 0;
         for (Transaction.Output output : tx.getOutputs()) {
             if (output.value < 0) {
-                return false;
+                return TxRejectReason.NEGATIVE_OUTPUT;
             }
+            sumOutputs += output.value;
         }
 
-        /** (5) the sum of {@code t x}s input values is greater than or equal to the sum of its output values; and false otherwise. */
-        // Get sum of input values
+        /** (1) and (3): every claimed output is in the pool, and claimed only once */
+        int numInputs = tx.numInputs();
+        PublicKey[] keys = new PublicKey[numInputs];
+        Set<UTXO> claimedUTXOSet = numInputs > 1 ? new HashSet<>(numInputs * 2) : null;
         double sumInputs = 0;
-        for (Transaction.Input input : tx.getInputs()) {
-            // Get respective output
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output respectiveOutput = null;
-            for (UTXO utxo : allUTXO) {
-                if (prevUTXO.equals(utxo)) {
-                    respectiveOutput = ledger.utxoPool.getTxOutput(utxo);
-                    break;
-                }
+        for (int index = 0; index < numInputs; ++index) {
+            Transaction.Input input = tx.getInput(index);
+            if (input.prevTxHash == null) {
+                return TxRejectReason.MISSING_INPUT;
             }
-            sumInputs += respectiveOutput.value;
+            if (claimedUTXOSet != null
+                    && !claimedUTXOSet.add(new UTXO(input.prevTxHash, input.outputIndex))) {
+                return TxRejectReason.DUPLICATE_INPUT;
+            }
+            Transaction.Output prevOutput = outputs.getTxOutput(input.prevTxHash, input.outputIndex);
+            if (prevOutput == null) {
+                return TxRejectReason.MISSING_INPUT;
+            }
+            keys[index] = prevOutput.address;
+            sumInputs += prevOutput.value;
         }
 
-        // Get sum of output values
-        double sumOutputs = 0;
-        for (Transaction.Output output : tx.getOutputs()) {
-            sumOutputs += output.value;
+        /** (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output values */
+        if (sumInputs < sumOutputs) {
+            return TxRejectReason.INSUFFICIENT_INPUT;
         }
 
-        // Check condition
-        if (sumInputs < sumOutputs) {
-            return false;
+        /** (2) the signatures on each input of {@code tx} are valid */
+        for (int index = 0; index < numInputs; ++index) {
+            byte[] message = tx.getRawDataToSign(index);
+            if (!Crypto.verifySignature(keys[index], message, tx.getInput(index).signature)) {
+                return TxRejectReason.INVALID_SIGNATURE;
+            }
         }
 
         /** Finally */
-        return true;
+        return null;
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * <p>Transactions are accepted exactly as if they were checked one by one in array order. Large
+     * epochs are split into groups of transactions that claim or create common outputs; groups
+     * cannot affect each other, so they are checked in parallel, each against its own copy of the
+     * part of the pool it touches, and the accepted transactions are then applied in array order.
+     * The groups are checked with the rules of this class, so subclasses, which may override
+     * {@link #isValidTx}, always check their epochs serially with it.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
         List<Transaction> validTxs = new ArrayList<>();
-        for (Transaction tx : possibleTxs) {
-            if (isValidTx(tx)) {
-                validTxs.add(tx);
-
-                // Remove oldUTXO
-                for (Transaction.Input input : tx.getInputs()) {
-                    UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-                    ledger.utxoPool.removeUTXO(prevUTXO);
+        if (forkJoinPool == null || possibleTxs.length < PARALLEL_THRESHOLD
+                || getClass() != TxHandler.class) {
+            for (Transaction tx : possibleTxs) {
+                if (isValidTx(tx)) {
+                    validTxs.add(tx);
+                    apply(ledger.utxoPool, tx);
                 }
-
-                // Add newUTXO
-                for (int index = 0; index < tx.numOutputs(); ++index) {
-                    UTXO newUTXO = new UTXO(tx.getHash(), index);
-                    ledger.utxoPool.addUTXO(newUTXO, tx.getOutput(index));
+            }
+        } else {
+            Groups groups = new Groups(possibleTxs, ledger.utxoPool);
+            boolean[] accepted = new boolean[possibleTxs.length];
+            forkJoinPool.invoke(new GroupRange(groups, accepted, 0, groups.numGroups));
+            for (int i = 0; i < possibleTxs.length; i++) {
+                if (accepted[i]) {
+                    validTxs.add(possibleTxs[i]);
+                    apply(ledger.utxoPool, possibleTxs[i]);
                 }
             }
         }
@@ -155,4 +165,170 @@ public class TxHandler {
         validTxsArr = validTxs.toArray(validTxsArr);
         return validTxsArr;
     }
+
+    /**
+     * Sets the pool that handles the conflict groups of large epochs. With null, every epoch is
+     * handled serially on the calling thread. See {@link #handleTxs} for subclasses
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /** @return the pool that handles large epochs, or null if they are handled serially */
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+
+    /** Removes the outputs claimed by {@code tx} from {@code pool} and adds the ones it creates */
+    private static void apply(UTXOPool pool, Transaction tx) {
+        // Remove oldUTXO
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
+            pool.removeUTXO(prevUTXO);
+        }
+
+        // Add newUTXO
+        for (int index = 0; index < tx.numOutputs(); ++index) {
+            UTXO newUTXO = new UTXO(tx.getHash(), index);
+            pool.addUTXO(newUTXO, tx.getOutput(index));
+        }
+    }
+
+    /**
+     * The transactions of an epoch partitioned with a union-find over the outputs they claim and
+     * create, together with the pool outputs claimed by each group
+     */
+    private static class Groups {
+        final Transaction[] txs;
+
+        /** indices of the transactions of group g, ascending, at [groupStart[g], groupStart[g + 1]) */
+        final int[] groupTxs;
+        final int[] groupStart;
+        final int numGroups;
+
+        /** outputs of the pool claimed in the epoch. Only read once the groups are built */
+        final Map<UTXO, Transaction.Output> claimed = new HashMap<>();
+
+        Groups(Transaction[] txs, UTXOPool pool) {
+            this.txs = txs;
+            int n = txs.length;
+            int[] root = new int[n];
+            for (int i = 0; i < n; i++)
+                root[i] = i;
+            Map<UTXO, Integer> toucher = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                Transaction tx = txs[i];
+                for (Transaction.Input input : tx.getInputs()) {
+                    if (input.prevTxHash == null)
+                        continue;
+                    UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
+                    Integer other = toucher.putIfAbsent(ut, i);
+                    if (other != null) {
+                        union(root, i, other);
+                    } else {
+                        Transaction.Output txOut = pool.getTxOutput(ut);
+                        if (txOut != null)
+                            claimed.put(ut, txOut);
+                    }
+                }
+                if (tx.getHash() == null)
+                    continue;
+                for (int index = 0; index < tx.numOutputs(); ++index) {
+                    Integer other = toucher.putIfAbsent(new UTXO(tx.getHash(), index), i);
+                    if (other != null)
+                        union(root, i, other);
+                }
+            }
+
+            int[] groupOf = new int[n];
+            int[] sizes = new int[n];
+            int groups = 0;
+            for (int i = 0; i < n; i++) {
+                int r = find(root, i);
+                if (r == i)
+                    groupOf[i] = groups++;
+                else
+                    groupOf[i] = groupOf[r];
+                sizes[groupOf[i]]++;
+            }
+            numGroups = groups;
+            groupStart = new int[groups + 1];
+            for (int g = 0; g < groups; g++)
+                groupStart[g + 1] = groupStart[g] + sizes[g];
+            groupTxs = new int[n];
+            int[] next = new int[groups];
+            for (int i = 0; i < n; i++) {
+                int g = groupOf[i];
+                groupTxs[groupStart[g] + next[g]++] = i;
+            }
+        }
+
+        private static int find(int[] root, int i) {
+            while (root[i] != i) {
+                root[i] = root[root[i]];
+                i = root[i];
+            }
+            return i;
+        }
+
+        /** Links the sets of {@code a} and {@code b} under the smaller root, so roots come first */
+        private static void union(int[] root, int a, int b) {
+            a = find(root, a);
+            b = find(root, b);
+            if (a < b)
+                root[b] = a;
+            else if (b < a)
+                root[a] = b;
+        }
+    }
+
+    /** Handles groups [from, to), splitting while they hold more than GROUPS_LEAF_SIZE transactions */
+    private static class GroupRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Groups groups;
+        private final boolean[] accepted;
+        private final int from;
+        private final int to;
+
+        GroupRange(Groups groups, boolean[] accepted, int from, int to) {
+            this.groups = groups;
+            this.accepted = accepted;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > 1 && groups.groupStart[to] - groups.groupStart[from] > GROUPS_LEAF_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new GroupRange(groups, accepted, from, mid),
+                        new GroupRange(groups, accepted, mid, to));
+                return;
+            }
+            for (int g = from; g < to; g++)
+                handleGroup(g);
+        }
+
+        /** Checks the transactions of group {@code g} in order against a pool of its own */
+        private void handleGroup(int g) {
+            UTXOPool pool = new UTXOPool();
+            for (int k = groups.groupStart[g]; k < groups.groupStart[g + 1]; k++) {
+                for (Transaction.Input input : groups.txs[groups.groupTxs[k]].getInputs()) {
+                    if (input.prevTxHash == null)
+                        continue;
+                    UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
+                    Transaction.Output txOut = groups.claimed.get(ut);
+                    if (txOut != null)
+                        pool.addUTXO(ut, txOut);
+                }
+            }
+            for (int k = groups.groupStart[g]; k < groups.groupStart[g + 1]; k++) {
+                int i = groups.groupTxs[k];
+                if (checkTx(groups.txs[i], pool) == null) {
+                    accepted[i] = true;
+                    apply(pool, groups.txs[i]);
+                }
+            }
+        }
+    }
 }
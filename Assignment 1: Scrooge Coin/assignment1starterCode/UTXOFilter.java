@@ -0,0 +1,152 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counting Bloom filter over UTXOs. It answers "definitely not in the pool" without touching the
+ * pool, and supports removal so it can follow {@code UTXOPool.removeUTXO}. Lookups may run on
+ * several threads at once, as long as nothing is added or removed meanwhile.
+ */
+public class UTXOFilter {
+
+    /** One saturating counter per slot. A saturated counter is never decremented */
+    private byte[] counters;
+    private int numHashes;
+    private double falsePositiveRate;
+
+    /* Statistics, updated by concurrent lookups */
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder negatives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * Creates a filter sized so that, with {@code expectedSize} UTXOs in it, a lookup of a missing
+     * UTXO passes the filter with probability {@code falsePositiveRate}
+     */
+    public UTXOFilter(int expectedSize, double falsePositiveRate) {
+        if (expectedSize < 1)
+            expectedSize = 1;
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("false positive rate must be in (0, 1)");
+        double ln2 = Math.log(2);
+        long slots = (long) Math.ceil(-expectedSize * Math.log(falsePositiveRate) / (ln2 * ln2));
+        counters = new byte[(int) Math.min(Math.max(slots, 64), Integer.MAX_VALUE - 8)];
+        numHashes = Math.max(1, (int) Math.round((double) counters.length / expectedSize * ln2));
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /** Creates a copy of {@code filter}, including its statistics */
+    public UTXOFilter(UTXOFilter filter) {
+        counters = Arrays.copyOf(filter.counters, filter.counters.length);
+        numHashes = filter.numHashes;
+        falsePositiveRate = filter.falsePositiveRate;
+        lookups.add(filter.lookups.sum());
+        negatives.add(filter.negatives.sum());
+        falsePositives.add(filter.falsePositives.sum());
+    }
+
+    public void add(byte[] txHash, int index) {
+        long h = hash(txHash, index);
+        for (int i = 0; i < numHashes; i++) {
+            int slot = slot(h, i);
+            if (counters[slot] != (byte) 0xFF)
+                counters[slot]++;
+        }
+    }
+
+    public void remove(byte[] txHash, int index) {
+        long h = hash(txHash, index);
+        for (int i = 0; i < numHashes; i++) {
+            int slot = slot(h, i);
+            if (counters[slot] != 0 && counters[slot] != (byte) 0xFF)
+                counters[slot]--;
+        }
+    }
+
+    /**
+     * @return false if the UTXO is definitely not in the filter, true if it might be. Every call is
+     *         counted as a lookup
+     */
+    public boolean mightContain(byte[] txHash, int index) {
+        lookups.increment();
+        long h = hash(txHash, index);
+        for (int i = 0; i < numHashes; i++) {
+            if (counters[slot(h, i)] == 0) {
+                negatives.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Records that a lookup which passed the filter was not found in the pool */
+    public void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    /** @return the configured false positive rate */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /** @return number of lookups answered by the filter alone */
+    public long getNegatives() {
+        return negatives.sum();
+    }
+
+    /** @return number of lookups that passed the filter but missed in the pool */
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    /** @return fraction of lookups answered by the filter without touching the pool */
+    public double getHitRatio() {
+        long lookups = this.lookups.sum();
+        return lookups == 0 ? 0 : (double) negatives.sum() / lookups;
+    }
+
+    /** @return fraction of lookups for missing UTXOs that still went to the pool */
+    public double getObservedFalsePositiveRate() {
+        long falsePositives = this.falsePositives.sum();
+        long misses = negatives.sum() + falsePositives;
+        return misses == 0 ? 0 : (double) falsePositives / misses;
+    }
+
+    /** @return memory used by the counters, in bytes */
+    public long sizeInBytes() {
+        return counters.length;
+    }
+
+    public String toString() {
+        return String.format("UTXOFilter[slots=%d, hashes=%d, lookups=%d, hitRatio=%.4f, fpRate=%.4f]",
+                counters.length, numHashes, lookups.sum(), getHitRatio(), getObservedFalsePositiveRate());
+    }
+
+    /** 64 bit FNV-1a over {@code txHash} and {@code index}, finished with a MurmurHash3 mix */
+    private static long hash(byte[] txHash, int index) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < txHash.length; i++) {
+            h ^= txHash[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= index;
+        h *= 0x100000001b3L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Slot of the {@code i}th hash function, derived from two halves of {@code h} */
+    private int slot(long h, int i) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        int combined = h1 + i * h2;
+        return (combined & Integer.MAX_VALUE) % counters.length;
+    }
+}
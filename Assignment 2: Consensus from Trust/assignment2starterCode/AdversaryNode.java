@@ -0,0 +1,208 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Base of the configurable malicious nodes used to load the simulation with realistic traffic,
+ * where {@link MaliciousNode} sends nothing at all. An adversary first passes the handshake of
+ * {@link CompliantNode} by sending exactly one transaction in each of the first {@code handshake}
+ * rounds, so honest nodes end up trusting it. After that it relays a fraction {@code forward} of
+ * what it received since its last send, plus whatever {@link #attack} adds.
+ *
+ * <p>
+ * Adversaries are created from a spec {@code kind[:key=value,...]}, see {@link #create}. Once the
+ * simulation hands them a {@link TxSet}, they draw and send transactions as dense indices over its
+ * universe, so even very high rates cost little harness time per transaction.
+ */
+public abstract class AdversaryNode implements Node {
+
+    protected final int numRounds;
+    protected final SplittableRandom random;
+    /** number of rounds in which exactly one transaction is sent */
+    protected final int handshakeRounds;
+    /** probability of relaying each newly received transaction */
+    protected final double forward;
+
+    protected int[] followees;
+    /** the simulation's valid transactions, or null if it did not hand out TxSets */
+    protected TxUniverse universe;
+    protected Set<Transaction> pending;
+    protected int round;
+
+    /** transactions received since the last send, or null if nothing is relayed */
+    private Set<Transaction> fresh;
+    private Transaction handshakeTx;
+
+    protected AdversaryNode(SimulationConfig config, Params params, SplittableRandom random, double defaultForward) {
+        this.numRounds = config.numRounds;
+        this.random = random;
+        this.handshakeRounds = params.getInt("handshake", 2);
+        this.forward = params.getDouble("forward", defaultForward);
+    }
+
+    /**
+     * @return the adversary described by {@code spec}: {@code spam}, {@code sybil} or
+     *         {@code equivocate}, optionally followed by {@code :} and comma separated
+     *         {@code key=value} parameters, e.g. {@code spam:rate=200,forward=0.5}
+     */
+    public static AdversaryNode create(String spec, SimulationConfig config, SplittableRandom random) {
+        int colon = spec.indexOf(':');
+        String kind = colon < 0 ? spec : spec.substring(0, colon);
+        Params params = new Params(colon < 0 ? "" : spec.substring(colon + 1));
+        AdversaryNode node;
+        switch (kind) {
+            case "spam":
+                node = new SpamNode(config, params, random);
+                break;
+            case "sybil":
+                node = new SybilNode(config, params, random);
+                break;
+            case "equivocate":
+                node = new EquivocatingNode(config, params, random);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown adversary " + kind);
+        }
+        params.checkUsed();
+        return node;
+    }
+
+    public void setFollowees(boolean[] followees) {
+        int[] sparse = new int[followees.length];
+        int n = 0;
+        for (int i = 0; i < followees.length; i++) {
+            if (followees[i])
+                sparse[n++] = i;
+        }
+        setFollowees(Arrays.copyOf(sparse, n), followees.length);
+    }
+
+    public void setFollowees(int[] followees, int numNodes) {
+        this.followees = followees;
+    }
+
+    public void setPendingTransaction(Set<Transaction> pendingTransactions) {
+        if (pendingTransactions instanceof TxSet)
+            universe = ((TxSet) pendingTransactions).getUniverse();
+        pending = pendingTransactions;
+        if (forward > 0)
+            fresh = newSet();
+        if (!pending.isEmpty())
+            handshakeTx = pending.iterator().next();
+        else if (universe != null && universe.size() > 0)
+            handshakeTx = universe.get(random.nextInt(universe.size()));
+    }
+
+    public Set<Transaction> sendToFollowers() {
+        round++;
+        Set<Transaction> proposals = newSet();
+        if (round > numRounds)
+            return proposals;
+        if (round <= handshakeRounds) {
+            if (handshakeTx != null)
+                proposals.add(handshakeTx);
+            return proposals;
+        }
+        if (fresh != null) {
+            if (forward >= 1) {
+                proposals.addAll(fresh);
+            } else {
+                for (Transaction tx : fresh) {
+                    if (random.nextDouble() < forward)
+                        proposals.add(tx);
+                }
+            }
+            fresh.clear();
+        }
+        attack(proposals);
+        return proposals;
+    }
+
+    /** Adds this round's attack traffic to {@code proposals}; only called after the handshake */
+    protected abstract void attack(Set<Transaction> proposals);
+
+    public void receiveFromFollowees(Set<Candidate> candidates) {
+        if (fresh == null)
+            return;
+        for (Candidate candidate : candidates)
+            fresh.add(candidate.tx);
+    }
+
+    public void receiveFromFollowees(CandidateBatch batch) {
+        if (fresh == null)
+            return;
+        if (fresh instanceof TxSet && batch.getUniverse() == universe) {
+            TxSet bits = (TxSet) fresh;
+            int[] txIndices = batch.txIndices();
+            for (int r = 0; r < batch.size(); r++)
+                bits.set(txIndices[r]);
+        } else {
+            for (int r = 0; r < batch.size(); r++)
+                fresh.add(batch.tx(r));
+        }
+    }
+
+    /** @return a new empty set, a TxSet when the universe is known */
+    protected Set<Transaction> newSet() {
+        return universe != null ? universe.newSet() : new HashSet<>();
+    }
+
+    /**
+     * Adds {@code count} random valid transactions that are not already in {@code txs}, drawn with
+     * {@code r}, or as many as there are left. Does nothing if the universe is unknown.
+     */
+    protected void addRandom(Set<Transaction> txs, int count, SplittableRandom r) {
+        if (universe == null)
+            return;
+        int size = universe.size();
+        int target = Math.min(txs.size() + count, size);
+        if (txs instanceof TxSet && ((TxSet) txs).getUniverse() == universe) {
+            TxSet bits = (TxSet) txs;
+            while (bits.size() < target)
+                bits.set(r.nextInt(size));
+        } else {
+            while (txs.size() < target)
+                txs.add(universe.get(r.nextInt(size)));
+        }
+    }
+
+    /** {@code key=value} parameters of an adversary, separated by commas */
+    protected static class Params {
+        private final Map<String, String> values = new HashMap<>();
+        private final Set<String> used = new HashSet<>();
+
+        Params(String spec) {
+            for (String pair : spec.split(",")) {
+                if (pair.isEmpty())
+                    continue;
+                int eq = pair.indexOf('=');
+                if (eq < 0)
+                    throw new IllegalArgumentException("expected key=value but got " + pair);
+                values.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+
+        int getInt(String key, int defaultValue) {
+            used.add(key);
+            String value = values.get(key);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        double getDouble(String key, double defaultValue) {
+            used.add(key);
+            String value = values.get(key);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        /** @throws IllegalArgumentException if a parameter was given that no one asked for */
+        void checkUsed() {
+            for (String key : values.keySet()) {
+                if (!used.contains(key))
+                    throw new IllegalArgumentException("unknown adversary parameter " + key);
+            }
+        }
+    }
+}
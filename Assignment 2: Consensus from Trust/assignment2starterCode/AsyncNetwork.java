@@ -0,0 +1,19 @@
+/** What an {@link AsyncNode} can do on the network of an {@code AsyncSimulation} */
+public interface AsyncNetwork {
+
+    /** @return the current simulated time, in milliseconds */
+    double now();
+
+    /** @return the valid transactions of the simulation; messages carry their dense indices */
+    TxUniverse universe();
+
+    /**
+     * Sends the transactions with dense indices {@code txIndices} from node {@code from} to each of
+     * its followers, as one message per link subject to that link's latency and drop probability.
+     * The array is shared with every recipient, so it must not be modified afterwards.
+     */
+    void broadcast(int from, int[] txIndices);
+
+    /** Wakes node {@code node} up with {@link AsyncNode#onTimer} after {@code delay} milliseconds */
+    void scheduleTimer(int node, double delay);
+}
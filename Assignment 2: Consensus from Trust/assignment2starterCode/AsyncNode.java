@@ -0,0 +1,21 @@
+/**
+ * Event-driven counterpart of {@link Node}, for {@code AsyncSimulation}. Nodes are still set up
+ * with {@link Node#setFollowees} and {@link Node#setPendingTransaction}, and still report their
+ * consensus with {@link Node#sendToFollowers} at the end, but in between they react to single
+ * messages and timers instead of synchronous rounds. Nodes that only implement {@link Node} are run
+ * in rounds by {@code RoundNodeAdapter}.
+ */
+public interface AsyncNode {
+
+    /** Called once at time 0, after the node has been set up */
+    void start(AsyncNetwork network, int self);
+
+    /**
+     * Node {@code sender} proposed the transactions with dense indices {@code txIndices}. The array
+     * is shared with the other recipients of the message and must not be modified.
+     */
+    void onMessage(AsyncNetwork network, int sender, int[] txIndices);
+
+    /** A timer set with {@link AsyncNetwork#scheduleTimer} went off */
+    void onTimer(AsyncNetwork network);
+}
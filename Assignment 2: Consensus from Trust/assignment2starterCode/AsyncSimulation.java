@@ -0,0 +1,176 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Discrete-event version of the consensus simulation. The nodes, the follow graph and the initial
+ * transactions are set up exactly as by {@link SimulationEngine} for the same seed, but instead of
+ * lockstep rounds every message travels each link on its own, arriving after the link's latency
+ * plus some random jitter, or not at all with probability {@code config.drop}. Events are kept in
+ * an {@link EventQueue} and processed one at a time in time order, so a run is reproducible from
+ * its seed. A broadcast stores its transactions once, as a packet that all of its messages refer
+ * to, and the packet slot is reused once the last of them has been delivered.
+ *
+ * <p>
+ * Nodes that implement {@link AsyncNode} are driven by messages and timers directly. Other nodes
+ * are run in rounds of {@code config.interval} milliseconds by a {@link RoundNodeAdapter}.
+ *
+ * <pre>
+ * java AsyncSimulation p_graph p_malicious p_txDistribution numRounds [key=value ...]
+ * </pre>
+ *
+ * takes the options of {@code Simulation} plus {@code latency=10:50}, {@code jitter=5},
+ * {@code drop=0} and {@code interval=100}, see {@link SimulationConfig}.
+ */
+public class AsyncSimulation extends SimulationEngine implements AsyncNetwork {
+
+    private final AsyncNode[] asyncNodes;
+
+    /** base latency of each link, indexed like the follower array of the graph */
+    private final float[] latencies;
+
+    private final SplittableRandom linkRandom;
+    private final EventQueue events;
+
+    /** transactions of each packet in flight, and how many messages still refer to it */
+    private int[][] packets = new int[1024][];
+    private int[] packetRefs = new int[1024];
+    private int[] freePackets = new int[1024];
+    private int numFree;
+    private int numPackets;
+    private double now;
+    private boolean started;
+
+    private long processed;
+    private long sent;
+    private long dropped;
+
+    public AsyncSimulation(SimulationConfig config) {
+        super(config, null);
+        // split off the same seed after everything the engine drew, so the setup is unchanged
+        SplittableRandom seed = new SplittableRandom(config.seed);
+        for (int i = 0; i < 4; i++)
+            seed.split();
+        SplittableRandom latencyRandom = seed.split();
+        linkRandom = seed.split();
+
+        int numNodes = nodes.length;
+        asyncNodes = new AsyncNode[numNodes];
+        CandidateBatch batch = new CandidateBatch(universe, 256);
+        for (int i = 0; i < numNodes; i++) {
+            if (nodes[i] instanceof AsyncNode)
+                asyncNodes[i] = (AsyncNode) nodes[i];
+            else
+                asyncNodes[i] = new RoundNodeAdapter(nodes[i], config.numRounds, config.interval, batch);
+        }
+
+        latencies = new float[graph.numEdges()];
+        for (int k = 0; k < latencies.length; k++)
+            latencies[k] = (float) (config.latencyMin
+                    + latencyRandom.nextDouble() * (config.latencyMax - config.latencyMin));
+        events = new EventQueue(Math.max(1024, numNodes * 4), 1.0);
+    }
+
+    public double now() {
+        return now;
+    }
+
+    public TxUniverse universe() {
+        return universe;
+    }
+
+    public void broadcast(int from, int[] txIndices) {
+        double drop = config.drop;
+        double jitter = config.jitter;
+        int packet = -1;
+        for (int k = graph.followerStart(from); k < graph.followerEnd(from); k++) {
+            sent++;
+            if (drop > 0 && linkRandom.nextDouble() < drop) {
+                dropped++;
+                continue;
+            }
+            if (packet < 0)
+                packet = newPacket(txIndices);
+            packetRefs[packet]++;
+            double delay = latencies[k];
+            if (jitter > 0)
+                delay -= jitter * Math.log(1 - linkRandom.nextDouble());
+            events.add(now + delay, EventQueue.MESSAGE, graph.follower(k), from, packet);
+        }
+    }
+
+    public void scheduleTimer(int node, double delay) {
+        events.add(now + delay, EventQueue.TIMER, node, node, 0);
+    }
+
+    /** Starts every node and processes events until there are none left */
+    public void run() {
+        if (!started) {
+            started = true;
+            for (int i = 0; i < asyncNodes.length; i++)
+                asyncNodes[i].start(this, i);
+        }
+        while (!events.isEmpty()) {
+            events.poll();
+            now = events.time();
+            processed++;
+            AsyncNode node = asyncNodes[events.target()];
+            if (events.type() == EventQueue.MESSAGE) {
+                int packet = events.payload();
+                node.onMessage(this, events.sender(), packets[packet]);
+                if (--packetRefs[packet] == 0) {
+                    packets[packet] = null;
+                    freePackets[numFree++] = packet;
+                }
+            } else
+                node.onTimer(this);
+        }
+        round = config.numRounds;
+    }
+
+    private int newPacket(int[] txIndices) {
+        int packet;
+        if (numFree > 0) {
+            packet = freePackets[--numFree];
+        } else {
+            if (numPackets == packets.length) {
+                packets = Arrays.copyOf(packets, numPackets * 2);
+                packetRefs = Arrays.copyOf(packetRefs, numPackets * 2);
+                freePackets = Arrays.copyOf(freePackets, numPackets * 2);
+            }
+            packet = numPackets++;
+        }
+        packets[packet] = txIndices;
+        return packet;
+    }
+
+    /** @return number of events processed so far */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /** @return number of messages sent so far, including dropped ones */
+    public long getSent() {
+        return sent;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public static void main(String[] args) {
+        SimulationConfig config = SimulationConfig.parse(args);
+        AsyncSimulation simulation = new AsyncSimulation(config);
+
+        long start = System.nanoTime();
+        simulation.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Map<Set<Transaction>, Integer> consensusSetFreqMap = simulation.consensusSets();
+        System.out.println(consensusSetFreqMap.size());
+        System.out.printf("%d events in %.2f s (%.0f events/s), %d messages sent, %d dropped, simulated %.0f ms%n",
+                simulation.processed, seconds, simulation.processed / seconds, simulation.sent, simulation.dropped,
+                simulation.now);
+    }
+}
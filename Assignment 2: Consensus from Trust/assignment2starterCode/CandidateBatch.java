@@ -0,0 +1,103 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The proposals delivered to one node in one round, stored as parallel primitive columns instead
+ * of one {@link Candidate} object per (transaction, sender) pair. Row {@code k} says that node
+ * {@code sender(k)} proposed the transaction with dense index {@code txIndex(k)} in
+ * {@link #getUniverse()}. The simulation reuses batches between deliveries, so a node must not keep
+ * a reference to one after {@link Node#receiveFromFollowees(CandidateBatch)} returns.
+ */
+public class CandidateBatch {
+
+    private final TxUniverse universe;
+    private int[] txIndices;
+    private int[] txIds;
+    private int[] senders;
+    private int size;
+
+    public CandidateBatch(TxUniverse universe, int capacity) {
+        this.universe = universe;
+        capacity = Math.max(capacity, 16);
+        txIndices = new int[capacity];
+        txIds = new int[capacity];
+        senders = new int[capacity];
+    }
+
+    public TxUniverse getUniverse() {
+        return universe;
+    }
+
+    /** @return number of rows */
+    public int size() {
+        return size;
+    }
+
+    public int txIndex(int k) {
+        return txIndices[k];
+    }
+
+    public int txId(int k) {
+        return txIds[k];
+    }
+
+    public int sender(int k) {
+        return senders[k];
+    }
+
+    /** @return the canonical transaction of row {@code k} */
+    public Transaction tx(int k) {
+        return universe.get(txIndices[k]);
+    }
+
+    /** @return the tx index column; only the first {@link #size()} entries are rows */
+    public int[] txIndices() {
+        return txIndices;
+    }
+
+    /** @return the tx id column; only the first {@link #size()} entries are rows */
+    public int[] txIds() {
+        return txIds;
+    }
+
+    /** @return the sender column; only the first {@link #size()} entries are rows */
+    public int[] senders() {
+        return senders;
+    }
+
+    /** Appends one row per entry of {@code indices}, all proposed by {@code sender} */
+    public void addAll(int[] indices, int sender) {
+        ensureCapacity(size + indices.length);
+        for (int index : indices) {
+            txIndices[size] = index;
+            txIds[size] = universe.get(index).id;
+            senders[size] = sender;
+            size++;
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the rows as one new Candidate each in a new HashSet the caller may change, for nodes
+     *         that only take a Set of Candidates
+     */
+    public Set<Candidate> toCandidates() {
+        Set<Candidate> candidates = new HashSet<>(Math.max(size * 4 / 3 + 1, 16));
+        for (int k = 0; k < size; k++)
+            candidates.add(new Candidate(tx(k), senders[k]));
+        return candidates;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= senders.length)
+            return;
+        int newCapacity = Math.max(capacity, senders.length * 2);
+        txIndices = Arrays.copyOf(txIndices, newCapacity);
+        txIds = Arrays.copyOf(txIds, newCapacity);
+        senders = Arrays.copyOf(senders, newCapacity);
+    }
+}
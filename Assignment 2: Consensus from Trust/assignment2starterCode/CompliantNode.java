@@ -5,12 +5,13 @@ public class CompliantNode implements Node {
     private static final int NUM_HANDSHAKE_ROUNDS = 2;
     private static final int NUM_HANDSHAKE_SENT_TX = 1;
     private final int numRounds;
-    private boolean[] followees;
+    /** indices of the followed nodes, sorted; {@code score[k]} belongs to {@code followees[k]} */
+    private int[] followees;
 
     private int roundCount;
     private int[] score;
-    private final Set<Transaction> receivedTxSet;
-    private final Set<Transaction> sentTxSet;
+    private Set<Transaction> receivedTxSet;
+    private Set<Transaction> sentTxSet;
 
     public CompliantNode(double p_graph, double p_malicious, double p_txDistribution, int numRounds) {
         // IMPLEMENT THIS
@@ -23,15 +24,47 @@ public class CompliantNode implements Node {
 
     public void setFollowees(boolean[] followees) {
         // IMPLEMENT THIS
+        int count = 0;
+        for (boolean follows : followees) {
+            if (follows) {
+                count++;
+            }
+        }
+        int[] sparse = new int[count];
+        for (int i = 0, k = 0; i < followees.length; i++) {
+            if (followees[i]) {
+                sparse[k++] = i;
+            }
+        }
+        setFollowees(sparse, followees.length);
+    }
+
+    public void setFollowees(int[] followees, int numNodes) {
         this.followees = followees;
-        this.score = new int[this.followees.length];
+        this.score = new int[followees.length];
     }
 
     public void setPendingTransaction(Set<Transaction> pendingTransactions) {
         // IMPLEMENT THIS
+        // Keep our own sets as bitsets when the simulation hands us one
+        if (pendingTransactions instanceof TxSet && !(this.receivedTxSet instanceof TxSet)) {
+            TxSet received = ((TxSet) pendingTransactions).emptyCopy();
+            received.addAll(this.receivedTxSet);
+            TxSet sent = received.emptyCopy();
+            sent.addAll(this.sentTxSet);
+            this.receivedTxSet = received;
+            this.sentTxSet = sent;
+        }
         this.receivedTxSet.addAll(pendingTransactions);
     }
 
+    private Set<Transaction> newTxSet() {
+        if (this.receivedTxSet instanceof TxSet) {
+            return ((TxSet) this.receivedTxSet).emptyCopy();
+        }
+        return new HashSet<>();
+    }
+
     /**
      * During Handshake Rounds, only send one transaction among initial transactions
      * After which, send unsent transactions normally
@@ -40,7 +73,7 @@ public class CompliantNode implements Node {
         // IMPLEMENT THIS
         this.roundCount += 1;
 
-        Set<Transaction> ret = new HashSet<>();
+        Set<Transaction> ret = newTxSet();
 
         if (this.roundCount <= NUM_HANDSHAKE_ROUNDS) {
             for (Transaction transaction : this.receivedTxSet) {
@@ -50,18 +83,21 @@ public class CompliantNode implements Node {
         }
 
         if (this.roundCount <= this.numRounds) {
-            for (Transaction transaction : this.receivedTxSet) {
-                if (!this.sentTxSet.contains(transaction)) {
-                    ret.add(transaction);
-                    this.sentTxSet.add(transaction);
-                }
-            }
+            // received minus sent, a word at a time when both are TxSets
+            ret.addAll(this.receivedTxSet);
+            ret.removeAll(this.sentTxSet);
+            this.sentTxSet.addAll(ret);
             return ret;
         }
 
         return this.receivedTxSet;
     }
 
+    /** The set returned as consensus after the final round, as it stands now */
+    public Set<Transaction> currentConsensus() {
+        return this.receivedTxSet;
+    }
+
     /**
      * During Handshake Rounds, increase score of each followee by one if the followee follows the rule of sending only NUM_HANDSHAKE_SENT_TX
      * After which, only receive transactions from the valid followees (those with score = NUM_HANDSHAKE_ROUNDS)
@@ -75,16 +111,62 @@ public class CompliantNode implements Node {
             }
 
             for (Map.Entry<Integer, Integer> entry : senderToNumTxsMap.entrySet()) {
-                if (entry.getValue() == NUM_HANDSHAKE_SENT_TX) {
-                    score[entry.getKey()] += 1;
+                int k = Arrays.binarySearch(this.followees, entry.getKey());
+                if (k >= 0 && entry.getValue() == NUM_HANDSHAKE_SENT_TX) {
+                    score[k] += 1;
                 }
             }
         } else {
             for (Candidate candidate : candidates) {
-                if (score[candidate.sender] == NUM_HANDSHAKE_ROUNDS) {
+                int k = Arrays.binarySearch(this.followees, candidate.sender);
+                if (k >= 0 && score[k] == NUM_HANDSHAKE_ROUNDS) {
                     this.receivedTxSet.add(candidate.tx);
                 }
             }
         }
     }
+
+    /** Same rules as {@link #receiveFromFollowees(Set)}, read straight from the batch columns */
+    public void receiveFromFollowees(CandidateBatch batch) {
+        int[] senders = batch.senders();
+        int size = batch.size();
+        if (this.roundCount <= NUM_HANDSHAKE_ROUNDS) {
+            int[] numTxs = new int[this.followees.length];
+            for (int r = 0; r < size; r++) {
+                int k = Arrays.binarySearch(this.followees, senders[r]);
+                if (k >= 0) {
+                    numTxs[k] += 1;
+                }
+            }
+
+            for (int k = 0; k < numTxs.length; k++) {
+                if (numTxs[k] == NUM_HANDSHAKE_SENT_TX) {
+                    score[k] += 1;
+                }
+            }
+        } else {
+            TxSet bits = this.receivedTxSet instanceof TxSet
+                    && ((TxSet) this.receivedTxSet).getUniverse() == batch.getUniverse()
+                    ? (TxSet) this.receivedTxSet : null;
+            int[] txIndices = batch.txIndices();
+            // rows from the same sender are usually adjacent, so remember the last lookup
+            int lastSender = -1;
+            boolean trusted = false;
+            for (int r = 0; r < size; r++) {
+                if (senders[r] != lastSender) {
+                    lastSender = senders[r];
+                    int k = Arrays.binarySearch(this.followees, lastSender);
+                    trusted = k >= 0 && score[k] == NUM_HANDSHAKE_ROUNDS;
+                }
+                if (!trusted) {
+                    continue;
+                }
+                if (bits != null) {
+                    bits.set(txIndices[r]);
+                } else {
+                    this.receivedTxSet.add(batch.tx(r));
+                }
+            }
+        }
+    }
 }
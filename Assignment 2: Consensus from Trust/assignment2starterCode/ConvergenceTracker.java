@@ -0,0 +1,112 @@
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Measures after every round how far the compliant nodes of a {@link SimulationEngine} agree, from
+ * the fingerprints of their {@link Node#currentConsensus()} sets (see {@link TxSet#fingerprint()}).
+ * Only the nodes the engine owns are counted. A round costs one fingerprint per compliant node,
+ * constant time for TxSets, and a sort of the fingerprints; no set is hashed or compared element by
+ * element.
+ */
+public class ConvergenceTracker {
+
+    /** indices of the compliant nodes */
+    private final int[] compliant;
+    private final long[] fingerprints;
+    private final boolean supported;
+
+    private int[] distinctSets = new int[16];
+    private double[] agreement = new double[16];
+    private int rounds;
+
+    private long lastFingerprint;
+    private int stableRounds;
+
+    public ConvergenceTracker(SimulationEngine engine) {
+        Node[] nodes = engine.getNodes();
+        int n = 0;
+        int[] indices = new int[nodes.length];
+        boolean supported = true;
+        for (int i = 0; i < nodes.length; i++) {
+            if (engine.isMalicious(i) || !engine.owns(i))
+                continue;
+            indices[n++] = i;
+            supported &= nodes[i].currentConsensus() != null;
+        }
+        compliant = Arrays.copyOf(indices, n);
+        fingerprints = new long[n];
+        this.supported = supported;
+    }
+
+    /** @return false if some compliant node does not expose its current set, so nothing is tracked */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /** Records the agreement of the compliant nodes after a round */
+    public void observe(SimulationEngine engine) {
+        if (!supported)
+            return;
+        Node[] nodes = engine.getNodes();
+        for (int k = 0; k < compliant.length; k++)
+            fingerprints[k] = TxSet.fingerprintOf(nodes[compliant[k]].currentConsensus());
+        Arrays.sort(fingerprints);
+
+        // count the runs of equal fingerprints and find the longest
+        int distinct = 0;
+        int largest = 0;
+        long common = 0;
+        for (int k = 0, run; k < fingerprints.length; k += run) {
+            run = 1;
+            while (k + run < fingerprints.length && fingerprints[k + run] == fingerprints[k])
+                run++;
+            distinct++;
+            if (run > largest) {
+                largest = run;
+                common = fingerprints[k];
+            }
+        }
+
+        if (rounds == distinctSets.length) {
+            distinctSets = Arrays.copyOf(distinctSets, rounds * 2);
+            agreement = Arrays.copyOf(agreement, rounds * 2);
+        }
+        distinctSets[rounds] = distinct;
+        agreement[rounds] = compliant.length == 0 ? 1 : (double) largest / compliant.length;
+        rounds++;
+
+        if (distinct <= 1 && (stableRounds == 0 || common == lastFingerprint))
+            stableRounds++;
+        else
+            stableRounds = distinct <= 1 ? 1 : 0;
+        lastFingerprint = common;
+    }
+
+    /** @return number of rounds observed */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /** @return distinct sets among compliant nodes after each observed round */
+    public int[] getDistinctSets() {
+        return Arrays.copyOf(distinctSets, rounds);
+    }
+
+    /** @return fraction of compliant nodes holding the most common set after each observed round */
+    public double[] getAgreement() {
+        return Arrays.copyOf(agreement, rounds);
+    }
+
+    /**
+     * @return number of consecutive rounds, up to the last one, after which all compliant nodes
+     *         held the same set, and the same set each time
+     */
+    public int getStableRounds() {
+        return stableRounds;
+    }
+
+    /** @return true if all compliant nodes held the same set after the last observed round */
+    public boolean isConverged() {
+        return stableRounds > 0;
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the consensus simulation of {@code Simulation} across several local JVMs. It starts
+ * {@code config.workers} {@link SimulationWorker} processes, each owning a contiguous slice of the
+ * nodes, and coordinates their rounds over loopback sockets: every worker runs its send phase,
+ * sends the proposals its followers' workers need through this process, and only delivers once
+ * everyone's proposals for the round have been forwarded. Every worker sets up the whole network
+ * from the same seed, so the result is the one {@code Simulation} prints for that seed.
+ *
+ * <pre>
+ * java DistributedSimulation p_graph p_malicious p_txDistribution numRounds workers=4 [key=value ...]
+ * </pre>
+ *
+ * takes the options of {@code Simulation}, except {@code converge=} and {@code track=}, which need
+ * every node in one process. {@code threads=} applies to each worker.
+ */
+public class DistributedSimulation {
+
+    private final SimulationConfig config;
+    private final String[] args;
+
+    private FrameChannel[] channels;
+    private final List<Process> processes = new ArrayList<>();
+
+    /** frames waiting to be written to each worker, by one writer thread per worker */
+    private List<BlockingQueue<Object[]>> outboxes;
+
+    /** released once per SENT, DONE or RESULT frame, or many times on failure */
+    private final Semaphore replies = new Semaphore(0);
+    private volatile Throwable failure;
+
+    private long proposalsSent;
+    private long candidatesDelivered;
+    private long[] fingerprints;
+
+    /** marks the end of an outbox */
+    private static final Object[] CLOSE = new Object[0];
+
+    public DistributedSimulation(SimulationConfig config, String[] args) {
+        if (config.workers < 1)
+            throw new IllegalArgumentException("workers must be positive");
+        if (config.converge > 0 || config.track)
+            throw new IllegalArgumentException("converge= and track= need a single-process Simulation");
+        this.config = config;
+        this.args = args;
+    }
+
+    /** Starts the workers, runs all rounds and collects the consensus of every node */
+    public void run() throws IOException, InterruptedException {
+        int numWorkers = config.workers;
+        channels = new FrameChannel[numWorkers];
+        fingerprints = new long[config.numNodes];
+        outboxes = new ArrayList<>();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            for (int w = 0; w < numWorkers; w++)
+                processes.add(startWorker(port, w));
+            for (int n = 0; n < numWorkers; n++) {
+                FrameChannel channel = new FrameChannel(server.accept());
+                if (channel.receive() != FrameChannel.HELLO)
+                    throw new IOException("expected HELLO");
+                int w = channel.payload().getInt();
+                if (w < 0 || w >= numWorkers || channels[w] != null)
+                    throw new IOException("bad worker index " + w);
+                channels[w] = channel;
+            }
+        }
+        for (int w = 0; w < numWorkers; w++) {
+            outboxes.add(new LinkedBlockingQueue<>());
+            startThread("writer-" + w, writer(w));
+            startThread("reader-" + w, reader(w));
+        }
+
+        try {
+            for (int round = 1; round <= config.numRounds; round++) {
+                broadcast(FrameChannel.ROUND, round);
+                await(numWorkers); // SENT: every proposal of the round has been forwarded
+                broadcast(FrameChannel.EXCHANGED, 0);
+                await(numWorkers); // DONE
+            }
+            broadcast(FrameChannel.FINISH, 0);
+            await(numWorkers); // RESULT
+        } finally {
+            for (BlockingQueue<Object[]> outbox : outboxes)
+                outbox.add(CLOSE);
+            for (Process process : processes) {
+                if (failure != null || !process.waitFor(10, TimeUnit.SECONDS))
+                    process.destroyForcibly();
+            }
+        }
+    }
+
+    private Process startWorker(int port, int w) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("SimulationWorker");
+        command.add(InetAddress.getLoopbackAddress().getHostAddress());
+        command.add(String.valueOf(port));
+        command.add(String.valueOf(w));
+        command.add(String.valueOf(config.workers));
+        command.addAll(Arrays.asList(args));
+        command.add("seed=" + config.seed); // every worker must draw the same network
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private void broadcast(byte type, int value) {
+        for (BlockingQueue<Object[]> outbox : outboxes)
+            outbox.add(new Object[] {type, ByteBuffer.allocate(4).putInt(value).flip()});
+    }
+
+    private void await(int count) throws InterruptedException, IOException {
+        replies.acquire(count);
+        if (failure != null)
+            throw new IOException("worker failed", failure);
+    }
+
+    private synchronized void fail(Throwable e) {
+        if (failure != null)
+            return;
+        failure = e;
+        replies.release(Integer.MAX_VALUE / 2);
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return a task writing the outbox of worker {@code w} to it, in order */
+    private Runnable writer(int w) {
+        return () -> {
+            try {
+                while (true) {
+                    Object[] frame = outboxes.get(w).take();
+                    if (frame == CLOSE)
+                        return;
+                    channels[w].send((Byte) frame[0], (ByteBuffer) frame[1]);
+                }
+            } catch (IOException | InterruptedException e) {
+                fail(e);
+            }
+        };
+    }
+
+    /**
+     * @return a task reading the frames of worker {@code w}. Proposals are copied to the outbox of
+     *         their target, so a slow reader never holds up another worker's writes
+     */
+    private Runnable reader(int w) {
+        return () -> {
+            try {
+                while (true) {
+                    byte type = channels[w].receive();
+                    ByteBuffer payload = channels[w].payload();
+                    switch (type) {
+                        case FrameChannel.PROPOSALS:
+                            if (payload.remaining() < 4)
+                                throw new IOException("empty PROPOSALS frame from worker " + w);
+                            int target = payload.getInt(0);
+                            if (target < 0 || target >= outboxes.size())
+                                throw new IOException("worker " + w + " sent proposals to bad worker index " + target);
+                            ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+                            copy.put(payload).flip();
+                            outboxes.get(target).add(new Object[] {FrameChannel.PROPOSALS, copy});
+                            break;
+                        case FrameChannel.SENT:
+                            replies.release();
+                            break;
+                        case FrameChannel.DONE:
+                            synchronized (this) {
+                                proposalsSent += payload.getLong();
+                                candidatesDelivered += payload.getLong();
+                            }
+                            replies.release();
+                            break;
+                        case FrameChannel.RESULT:
+                            int first = payload.getInt();
+                            int count = payload.getInt();
+                            if (first < 0 || count < 0 || first > fingerprints.length - count)
+                                throw new IOException("worker " + w + " sent results for bad nodes " + first + "+" + count);
+                            for (int i = first; i < first + count; i++)
+                                fingerprints[i] = payload.getLong();
+                            replies.release();
+                            return;
+                        default:
+                            throw new IOException("unexpected frame " + type + " from worker " + w);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        };
+    }
+
+    /** @return how many nodes ended up with each distinct consensus set, by set fingerprint */
+    public Map<Long, Integer> consensusSets() {
+        Map<Long, Integer> consensusSetFreqMap = new HashMap<>();
+        for (long fingerprint : fingerprints)
+            consensusSetFreqMap.merge(fingerprint, 1, Integer::sum);
+        return consensusSetFreqMap;
+    }
+
+    /** @return bytes sent to the workers, headers included */
+    public long getBytesForwarded() {
+        long bytes = 0;
+        for (FrameChannel channel : channels)
+            bytes += channel.getBytesSent();
+        return bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimulationConfig config = SimulationConfig.parse(args);
+        DistributedSimulation simulation = new DistributedSimulation(config, args);
+
+        long start = System.nanoTime();
+        simulation.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(simulation.consensusSets().size());
+        System.out.printf("%d workers, %d rounds in %.2f s, %d proposals, %d candidates, %.1f MB forwarded%n",
+                config.workers, config.numRounds, seconds, simulation.proposalsSent, simulation.candidatesDelivered,
+                simulation.getBytesForwarded() / 1e6);
+    }
+}
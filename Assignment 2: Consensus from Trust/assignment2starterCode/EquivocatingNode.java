@@ -0,0 +1,58 @@
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Equivocator: splits its followers into {@code groups} fixed groups and, after the handshake,
+ * proposes to each group what it relays plus {@code rate} random transactions of its own, drawn
+ * separately for every group. Followers in different groups thus see conflicting stories from the
+ * same trusted node.
+ */
+public class EquivocatingNode extends AdversaryNode implements Equivocator {
+
+    private final int rate;
+    private final int groups;
+    private final int salt;
+
+    /** this round's proposals to each group */
+    private int[][] groupProposals;
+
+    public EquivocatingNode(SimulationConfig config, Params params, SplittableRandom random) {
+        super(config, params, random, 0);
+        this.rate = params.getInt("rate", 50);
+        this.groups = params.getInt("groups", 2);
+        if (groups < 1)
+            throw new IllegalArgumentException("groups must be positive");
+        this.salt = random.nextInt();
+        this.groupProposals = new int[groups][];
+    }
+
+    public Set<Transaction> sendToFollowers() {
+        Set<Transaction> proposals = super.sendToFollowers();
+        if (universe == null) {
+            groupProposals = new int[groups][];
+            return proposals;
+        }
+        int[] common = universe.indicesOf(proposals);
+        for (int g = 0; g < groups; g++) {
+            if (round <= handshakeRounds || round > numRounds) {
+                groupProposals[g] = common;
+                continue;
+            }
+            TxSet txs = universe.newSet();
+            for (int index : common)
+                txs.set(index);
+            addRandom(txs, rate, random);
+            groupProposals[g] = universe.indicesOf(txs);
+        }
+        return proposals;
+    }
+
+    protected void attack(Set<Transaction> proposals) {
+        // the per-group traffic is added in sendToFollowers
+    }
+
+    public int[] proposalsFor(int follower) {
+        int group = (int) Long.remainderUnsigned(TxUniverse.fingerprint(follower ^ salt), groups);
+        return groupProposals[group];
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * A {@link Node} that proposes different transactions to different followers.
+ * {@code SimulationEngine} still calls {@link Node#sendToFollowers()} once a round, but delivers
+ * {@link #proposalsFor} to each follower instead of its result. Other harnesses, such as
+ * {@code AsyncSimulation}, deliver the result of {@code sendToFollowers} to everyone.
+ */
+public interface Equivocator {
+
+    /**
+     * @return dense indices, in the simulation's {@link TxUniverse}, of the transactions to propose
+     *         to node {@code follower} this round, or null for none. Called after
+     *         {@link Node#sendToFollowers()}, possibly from several threads at once, and the array
+     *         must not be modified afterwards
+     */
+    int[] proposalsFor(int follower);
+}
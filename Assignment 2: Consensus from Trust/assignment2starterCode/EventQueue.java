@@ -0,0 +1,229 @@
+import java.util.Arrays;
+
+/**
+ * Priority queue of simulation events, ordered by time and then by insertion order so that runs
+ * are deterministic. Neither scheduling nor polling an event allocates.
+ *
+ * <p>
+ * The fields of each event are packed into four longs of one array, at a slot that does not
+ * change while it is queued, so that reading an event back costs one cache miss rather than one
+ * per field. Time is cut into buckets of {@code bucketWidth}. Events due in a later bucket are
+ * only linked into that bucket's list, on a wheel of {@link #NUM_BUCKETS} lists; when the queue
+ * reaches a bucket, its events move into a 4-ary heap of times and slots. The heap thus only ever
+ * holds about one bucket's worth of events, and stays small enough to be cheap to keep ordered even
+ * with millions of messages in flight.
+ */
+public class EventQueue {
+
+    public static final int MESSAGE = 0;
+    public static final int TIMER = 1;
+
+    private static final int NUM_BUCKETS = 4096;
+    private static final int BUCKET_MASK = NUM_BUCKETS - 1;
+
+    private final double bucketWidth;
+
+    /** the heap: time and slot of each event of the current bucket */
+    private double[] heapTimes;
+    private int[] heapSlots;
+    private int heapSize;
+
+    /** the wheel: first slot of each bucket list, -1 if empty */
+    private final int[] heads;
+    private int listed;
+    private long bucket;
+
+    /**
+     * event fields, four longs per slot: the time, the sequence number shifted left by one with the
+     * type in the low bit, the target in the high half with the next slot in the same bucket list
+     * in the low half, and the sender in the high half with the payload in the low half
+     */
+    private long[] slots;
+    private int[] freeSlots;
+    private int numFree;
+    private int numSlots;
+    private long nextSeq;
+
+    /** fields of the event last returned by {@link #poll} */
+    private double time;
+    private int type;
+    private int target;
+    private int sender;
+    private int payload;
+
+    public EventQueue(int capacity, double bucketWidth) {
+        if (!(bucketWidth > 0))
+            throw new IllegalArgumentException("bucket width must be positive");
+        this.bucketWidth = bucketWidth;
+        capacity = Math.max(capacity, 16);
+        heapTimes = new double[capacity];
+        heapSlots = new int[capacity];
+        heads = new int[NUM_BUCKETS];
+        Arrays.fill(heads, -1);
+        slots = new long[4 * capacity];
+        freeSlots = new int[capacity];
+    }
+
+    public int size() {
+        return heapSize + listed;
+    }
+
+    public boolean isEmpty() {
+        return heapSize + listed == 0;
+    }
+
+    /** Schedules an event of {@code type} for node {@code target} at {@code time} */
+    public void add(double time, int type, int target, int sender, int payload) {
+        int slot;
+        if (numFree > 0) {
+            slot = freeSlots[--numFree];
+        } else {
+            if (numSlots == freeSlots.length)
+                grow();
+            slot = numSlots++;
+        }
+        int at = 4 * slot;
+        slots[at] = Double.doubleToRawLongBits(time);
+        slots[at + 1] = nextSeq++ << 1 | type;
+        slots[at + 3] = (long) sender << 32 | (payload & 0xFFFFFFFFL);
+
+        long b = (long) (time / bucketWidth);
+        if (b <= bucket) {
+            slots[at + 2] = (long) target << 32;
+            push(slot, time);
+        } else {
+            int head = (int) (b & BUCKET_MASK);
+            slots[at + 2] = (long) target << 32 | (heads[head] & 0xFFFFFFFFL);
+            heads[head] = slot;
+            listed++;
+        }
+    }
+
+    /** Removes the earliest event, whose fields are then available from the getters */
+    public void poll() {
+        if (heapSize == 0)
+            advance();
+        int slot = heapSlots[0];
+        int at = 4 * slot;
+        time = heapTimes[0];
+        type = (int) slots[at + 1] & 1;
+        target = (int) (slots[at + 2] >> 32);
+        sender = (int) (slots[at + 3] >> 32);
+        payload = (int) slots[at + 3];
+        freeSlots[numFree++] = slot;
+
+        int last = --heapSize;
+        if (last == 0)
+            return;
+        double t = heapTimes[last];
+        int s = heapSlots[last];
+        int i = 0;
+        // sift down the last event from the root
+        while (true) {
+            int first = 4 * i + 1;
+            if (first >= last)
+                break;
+            int child = first;
+            int end = Math.min(first + 4, last);
+            for (int c = first + 1; c < end; c++) {
+                if (before(heapTimes[c], heapSlots[c], heapTimes[child], heapSlots[child]))
+                    child = c;
+            }
+            if (before(t, s, heapTimes[child], heapSlots[child]))
+                break;
+            heapTimes[i] = heapTimes[child];
+            heapSlots[i] = heapSlots[child];
+            i = child;
+        }
+        heapTimes[i] = t;
+        heapSlots[i] = s;
+    }
+
+    public double time() {
+        return time;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    public int target() {
+        return target;
+    }
+
+    public int sender() {
+        return sender;
+    }
+
+    public int payload() {
+        return payload;
+    }
+
+    private boolean before(double t1, int slot1, double t2, int slot2) {
+        return t1 < t2 || (t1 == t2 && slots[4 * slot1 + 1] < slots[4 * slot2 + 1]);
+    }
+
+    private void push(int slot, double t) {
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 2;
+            if (!before(t, slot, heapTimes[parent], heapSlots[parent]))
+                break;
+            heapTimes[i] = heapTimes[parent];
+            heapSlots[i] = heapSlots[parent];
+            i = parent;
+        }
+        heapTimes[i] = t;
+        heapSlots[i] = slot;
+    }
+
+    /** Moves on to the next bucket that has events, and moves them into the heap */
+    private void advance() {
+        if (listed == 0)
+            throw new IllegalStateException("no events");
+        for (int step = 0; step < NUM_BUCKETS; step++) {
+            if (drain(++bucket))
+                return;
+        }
+        // everything left is more than a lap of the wheel ahead: skip to the earliest of it
+        long earliest = Long.MAX_VALUE;
+        for (int head : heads) {
+            for (int slot = head; slot >= 0; slot = (int) slots[4 * slot + 2])
+                earliest = Math.min(earliest, (long) (Double.longBitsToDouble(slots[4 * slot]) / bucketWidth));
+        }
+        bucket = earliest;
+        drain(bucket);
+    }
+
+    /** Moves the events of bucket {@code b} from its list into the heap */
+    private boolean drain(long b) {
+        int head = (int) (b & BUCKET_MASK);
+        int kept = -1;
+        int moved = 0;
+        for (int slot = heads[head]; slot >= 0;) {
+            int at = 4 * slot;
+            int following = (int) slots[at + 2];
+            double t = Double.longBitsToDouble(slots[at]);
+            if ((long) (t / bucketWidth) == b) {
+                push(slot, t);
+                moved++;
+            } else {
+                // a later lap of the wheel
+                slots[at + 2] = (slots[at + 2] & 0xFFFFFFFF00000000L) | (kept & 0xFFFFFFFFL);
+                kept = slot;
+            }
+            slot = following;
+        }
+        heads[head] = kept;
+        listed -= moved;
+        return moved > 0;
+    }
+
+    private void grow() {
+        int capacity = freeSlots.length * 2;
+        heapTimes = Arrays.copyOf(heapTimes, capacity);
+        heapSlots = Arrays.copyOf(heapSlots, capacity);
+        slots = Arrays.copyOf(slots, 4 * capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+    }
+}
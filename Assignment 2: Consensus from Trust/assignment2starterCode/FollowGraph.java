@@ -0,0 +1,217 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A follow graph in compressed sparse row form. The followees of node {@code i} are
+ * {@code followees[followeeStart[i]] .. followees[followeeStart[i + 1] - 1]}, sorted, and the
+ * followers of each node are precomputed the same way, so routing a proposal costs one step per
+ * follower instead of a scan over every node.
+ */
+public class FollowGraph {
+
+    private final int numNodes;
+    private final int[] followeeStart;
+    private final int[] followees;
+    private final int[] followerStart;
+    private final int[] followers;
+
+    /** Creates a graph from the sorted followee lists in CSR form; the arrays are not copied */
+    public FollowGraph(int numNodes, int[] followeeStart, int[] followees) {
+        this.numNodes = numNodes;
+        this.followeeStart = followeeStart;
+        this.followees = followees;
+
+        // transpose: j is a follower of i iff i is a followee of j
+        followerStart = new int[numNodes + 1];
+        for (int f : followees)
+            followerStart[f + 1]++;
+        for (int i = 0; i < numNodes; i++)
+            followerStart[i + 1] += followerStart[i];
+        followers = new int[followees.length];
+        int[] next = Arrays.copyOf(followerStart, numNodes);
+        for (int j = 0; j < numNodes; j++)
+            for (int k = followeeStart[j]; k < followeeStart[j + 1]; k++)
+                followers[next[followees[k]]++] = j;
+    }
+
+    /**
+     * @return a random graph in which each node follows each other node with probability
+     *         {@code p}, as in {@code Simulation}. Sampling skips over absent edges, so it costs
+     *         O(nodes + edges) rather than O(nodes^2)
+     */
+    public static FollowGraph random(int numNodes, double p, SplittableRandom random) {
+        int[] start = new int[numNodes + 1];
+        IntList edges = new IntList(Math.max(16, (int) Math.min(Integer.MAX_VALUE - 8, numNodes * (numNodes - 1L) * p)));
+        double logQ = Math.log1p(-Math.min(p, 1.0));
+        for (int i = 0; i < numNodes; i++) {
+            if (p > 0) {
+                long j = -1;
+                while (true) {
+                    j += p >= 1 ? 1 : 1 + (long) (Math.log(1.0 - random.nextDouble()) / logQ);
+                    if (j >= numNodes - 1)
+                        break;
+                    // j ranges over the numNodes - 1 nodes other than i
+                    edges.add((int) (j < i ? j : j + 1));
+                }
+            }
+            start[i + 1] = edges.size();
+        }
+        return new FollowGraph(numNodes, start, edges.toArray());
+    }
+
+    /** @return a random graph in which every node follows exactly {@code degree} other nodes */
+    public static FollowGraph randomDegree(int numNodes, int degree, SplittableRandom random) {
+        degree = Math.min(degree, numNodes - 1);
+        int[] start = new int[numNodes + 1];
+        int[] edges = new int[numNodes * degree];
+        for (int i = 0; i < numNodes; i++) {
+            int base = i * degree;
+            int n = 0;
+            while (n < degree) {
+                int j = random.nextInt(numNodes - 1);
+                if (j >= i)
+                    j++;
+                boolean seen = false;
+                for (int k = base; k < base + n; k++)
+                    if (edges[k] == j)
+                        seen = true;
+                if (!seen)
+                    edges[base + n++] = j;
+            }
+            Arrays.sort(edges, base, base + degree);
+            start[i + 1] = base + degree;
+        }
+        return new FollowGraph(numNodes, start, edges);
+    }
+
+    /**
+     * @return a graph built from {@code spec}: "random" for {@link #random} with probability
+     *         {@code p}, or "degree:K" for {@link #randomDegree} with degree K
+     */
+    public static FollowGraph generate(String spec, int numNodes, double p, SplittableRandom random) {
+        if (spec.equals("random"))
+            return random(numNodes, p, random);
+        if (spec.startsWith("degree:"))
+            return randomDegree(numNodes, Integer.parseInt(spec.substring("degree:".length())), random);
+        throw new IllegalArgumentException("unknown graph " + spec);
+    }
+
+    /**
+     * @return a copy of this graph in which every node of {@code victims} follows only nodes of
+     *         {@code attackers}: as many distinct random ones as it had followees, at least one
+     *         and at most all of them. No victim may be an attacker
+     */
+    public FollowGraph eclipse(int[] victims, int[] attackers, SplittableRandom random) {
+        boolean[] eclipsed = new boolean[numNodes];
+        for (int v : victims)
+            eclipsed[v] = true;
+        int[] start = new int[numNodes + 1];
+        IntList edges = new IntList(followees.length + victims.length);
+        int[] picked = attackers.clone();
+        for (int i = 0; i < numNodes; i++) {
+            if (eclipsed[i] && attackers.length > 0) {
+                int degree = Math.min(Math.max(numFollowees(i), 1), attackers.length);
+                // partial Fisher-Yates shuffle of the attackers
+                for (int k = 0; k < degree; k++) {
+                    int r = k + random.nextInt(picked.length - k);
+                    int tmp = picked[k];
+                    picked[k] = picked[r];
+                    picked[r] = tmp;
+                }
+                int[] row = Arrays.copyOf(picked, degree);
+                Arrays.sort(row);
+                for (int j : row)
+                    edges.add(j);
+            } else {
+                for (int k = followeeStart[i]; k < followeeStart[i + 1]; k++)
+                    edges.add(followees[k]);
+            }
+            start[i + 1] = edges.size();
+        }
+        return new FollowGraph(numNodes, start, edges.toArray());
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    public int numEdges() {
+        return followees.length;
+    }
+
+    /** @return the nodes {@code i} follows, sorted, as a new array */
+    public int[] followeesOf(int i) {
+        return Arrays.copyOfRange(followees, followeeStart[i], followeeStart[i + 1]);
+    }
+
+    public int followeeStart(int i) {
+        return followeeStart[i];
+    }
+
+    public int followeeEnd(int i) {
+        return followeeStart[i + 1];
+    }
+
+    /** @return the {@code k}th entry of the followee array, see {@link #followeeStart} */
+    public int followee(int k) {
+        return followees[k];
+    }
+
+    public int followerStart(int i) {
+        return followerStart[i];
+    }
+
+    public int followerEnd(int i) {
+        return followerStart[i + 1];
+    }
+
+    /** @return the {@code k}th entry of the follower array, see {@link #followerStart} */
+    public int follower(int k) {
+        return followers[k];
+    }
+
+    public int numFollowers(int i) {
+        return followerStart[i + 1] - followerStart[i];
+    }
+
+    public int numFollowees(int i) {
+        return followeeStart[i + 1] - followeeStart[i];
+    }
+
+    /** @return true iff {@code i} follows {@code j} */
+    public boolean follows(int i, int j) {
+        return Arrays.binarySearch(followees, followeeStart[i], followeeStart[i + 1], j) >= 0;
+    }
+
+    /** @return row {@code i} of the dense matrix, as passed to {@link Node#setFollowees(boolean[])} */
+    public boolean[] denseRow(int i) {
+        boolean[] row = new boolean[numNodes];
+        for (int k = followeeStart[i]; k < followeeStart[i + 1]; k++)
+            row[followees[k]] = true;
+        return row;
+    }
+
+    /** Growable int array */
+    private static class IntList {
+        private int[] a;
+        private int size;
+
+        IntList(int capacity) {
+            a = new int[capacity];
+        }
+
+        void add(int v) {
+            if (size == a.length)
+                a = Arrays.copyOf(a, a.length * 2);
+            a[size++] = v;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(a, size);
+        }
+    }
+}
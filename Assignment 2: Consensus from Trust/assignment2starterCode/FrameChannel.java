@@ -0,0 +1,105 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Length-prefixed frames over a blocking {@link SocketChannel}, as exchanged between
+ * {@code DistributedSimulation} and its {@code SimulationWorker}s. A frame is a 4-byte payload
+ * length, a type byte and the payload. One thread may send while another receives, but no two
+ * threads may send, or receive, at once.
+ */
+public class FrameChannel implements Closeable {
+
+    /** worker to coordinator: int worker index */
+    public static final byte HELLO = 1;
+    /** coordinator to worker: int round to run */
+    public static final byte ROUND = 2;
+    /**
+     * proposals from one worker's nodes to another's: int target worker, then entries of int
+     * sender, int recipient or -1 for all followers, int count and that many dense tx indices
+     */
+    public static final byte PROPOSALS = 3;
+    /** worker to coordinator: all of this round's proposals have been sent */
+    public static final byte SENT = 4;
+    /** coordinator to worker: all proposals of this round for it have been forwarded */
+    public static final byte EXCHANGED = 5;
+    /** worker to coordinator: round delivered; long proposals sent, long candidates delivered */
+    public static final byte DONE = 6;
+    /** coordinator to worker: report the consensus of your nodes and exit */
+    public static final byte FINISH = 7;
+    /** worker to coordinator: int first node, int count, then a long fingerprint per node */
+    public static final byte RESULT = 8;
+
+    private final SocketChannel channel;
+    private final ByteBuffer sendHeader = ByteBuffer.allocate(5);
+    private final ByteBuffer receiveHeader = ByteBuffer.allocate(5);
+    private ByteBuffer payload = ByteBuffer.allocate(1 << 16);
+    private volatile long bytesSent;
+
+    public FrameChannel(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    /** Sends a frame of {@code type} holding the remaining bytes of {@code body} */
+    public void send(byte type, ByteBuffer body) throws IOException {
+        sendHeader.clear();
+        sendHeader.putInt(body.remaining()).put(type).flip();
+        bytesSent += 5 + body.remaining();
+        while (sendHeader.hasRemaining())
+            channel.write(sendHeader);
+        while (body.hasRemaining())
+            channel.write(body);
+    }
+
+    /** Sends a frame of {@code type} holding just {@code value} */
+    public void send(byte type, int value) throws IOException {
+        send(type, ByteBuffer.allocate(4).putInt(value).flip());
+    }
+
+    /**
+     * Receives the next frame. Its payload is available from {@link #payload()} until the next
+     * call, in a buffer that is then reused.
+     *
+     * @return the frame type
+     */
+    public byte receive() throws IOException {
+        receiveHeader.clear();
+        readFully(receiveHeader);
+        receiveHeader.flip();
+        int length = receiveHeader.getInt();
+        byte type = receiveHeader.get();
+        if (length < 0)
+            throw new IOException("bad frame length " + length);
+        if (payload.capacity() < length)
+            payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+        payload.clear().limit(length);
+        readFully(payload);
+        payload.flip();
+        return type;
+    }
+
+    /** @return the payload of the last frame received */
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    /** @return bytes sent so far, headers included */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("connection closed");
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -11,6 +11,10 @@ public class MaliciousNode implements Node {
         return;
     }
 
+    public void setFollowees(int[] followees, int numNodes) {
+        return;
+    }
+
     public void setPendingTransaction(Set<Transaction> pendingTransactions) {
         return;
     }
@@ -22,4 +26,8 @@ public class MaliciousNode implements Node {
     public void receiveFromFollowees(Set<Candidate> candidates) {
         return;
     }
+
+    public void receiveFromFollowees(CandidateBatch batch) {
+        return;
+    }
 }
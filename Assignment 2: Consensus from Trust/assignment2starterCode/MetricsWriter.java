@@ -0,0 +1,22 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/** Writes the metrics of every round as a CSV time series, one line per round */
+public class MetricsWriter implements SimulationListener, Closeable {
+
+    private final PrintWriter out;
+
+    public MetricsWriter(String path) throws IOException {
+        out = new PrintWriter(path, "UTF-8");
+        out.println(RoundMetrics.CSV_HEADER);
+    }
+
+    public void roundCompleted(SimulationEngine engine, RoundMetrics metrics) {
+        out.println(metrics.toCsv());
+    }
+
+    public void close() {
+        out.close();
+    }
+}
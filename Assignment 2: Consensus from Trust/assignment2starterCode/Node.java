@@ -10,6 +10,18 @@ public interface Node {
     /** {@code followees[i]} is true if and only if this node follows node {@code i} */
     void setFollowees(boolean[] followees);
 
+    /**
+     * Sparse form of {@link #setFollowees(boolean[])}: {@code followees} holds the sorted indices
+     * of the nodes this node follows, out of {@code numNodes}. The default builds the dense array,
+     * so nodes meant for large simulations should override it.
+     */
+    default void setFollowees(int[] followees, int numNodes) {
+        boolean[] dense = new boolean[numNodes];
+        for (int j : followees)
+            dense[j] = true;
+        setFollowees(dense);
+    }
+
     /** initialize proposal list of transactions */
     void setPendingTransaction(Set<Transaction> pendingTransactions);
 
@@ -20,6 +32,25 @@ public interface Node {
      */
     Set<Transaction> sendToFollowers();
 
+    /**
+     * @return the transactions this node would report as consensus if the run ended now, without
+     *         changing its state, or null if it does not track them. The harness only reads the
+     *         set, through {@link TxSet#fingerprintOf}, so a node may return its own live set.
+     *         Used by {@code ConvergenceTracker} to measure agreement every round
+     */
+    default Set<Transaction> currentConsensus() {
+        return null;
+    }
+
     /** receive candidates from other nodes. */
     void receiveFromFollowees(Set<Candidate> candidates);
+
+    /**
+     * Batch form of {@link #receiveFromFollowees(Set)}, used by {@code SimulationEngine}. The batch
+     * is only valid during the call. The default turns it into a Set of Candidates, so nodes that
+     * do not override it behave exactly as before.
+     */
+    default void receiveFromFollowees(CandidateBatch batch) {
+        receiveFromFollowees(batch.toCandidates());
+    }
 }
\ No newline at end of file
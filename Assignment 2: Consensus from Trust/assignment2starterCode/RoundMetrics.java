@@ -0,0 +1,46 @@
+import java.util.Locale;
+
+/** What one round of a {@link SimulationEngine} did and cost, as handed to its listeners */
+public class RoundMetrics {
+
+    /** the round, counting from 1 */
+    public int round;
+    /** transactions proposed, counting each sender's set once, valid or not */
+    public long proposalsSent;
+    /** proposed transactions dropped because they are not in {@code validTxIds} */
+    public long proposalsFiltered;
+    /** candidates delivered, one per transaction, sender and recipient */
+    public long candidatesDelivered;
+    /** nodes that were delivered at least one candidate */
+    public int recipients;
+    /** wall time of the send phase, in nanoseconds */
+    public long sendNanos;
+    /** wall time of the deliver phase, in nanoseconds */
+    public long deliverNanos;
+    /** wall time of the convergence tracking, in nanoseconds */
+    public long trackNanos;
+    /** bytes allocated by the threads running the round, or -1 if the JVM cannot tell */
+    public long allocatedBytes;
+    /** distinct sets among compliant nodes after the round, or -1 if not tracked */
+    public int distinctSets;
+    /** fraction of compliant nodes holding the most common set, or -1 if not tracked */
+    public double agreement;
+
+    public static final String CSV_HEADER = "round,proposalsSent,proposalsFiltered,candidatesDelivered,recipients,"
+            + "sendMillis,deliverMillis,trackMillis,allocatedBytes,distinctSets,agreement";
+
+    /** @return the metrics as one line of {@link #CSV_HEADER} columns */
+    public String toCsv() {
+        return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%d,%d,%.4f", round, proposalsSent,
+                proposalsFiltered, candidatesDelivered, recipients, sendNanos / 1e6, deliverNanos / 1e6,
+                trackNanos / 1e6, allocatedBytes, distinctSets, agreement);
+    }
+
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "round %d: %d proposed (%d filtered), %d delivered to %d nodes, send %.1f ms, deliver %.1f ms, "
+                        + "track %.1f ms, %.1f MB allocated",
+                round, proposalsSent, proposalsFiltered, candidatesDelivered, recipients, sendNanos / 1e6,
+                deliverNanos / 1e6, trackNanos / 1e6, allocatedBytes / 1e6);
+    }
+}
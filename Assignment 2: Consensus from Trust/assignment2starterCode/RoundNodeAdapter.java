@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * Runs a synchronous {@link Node} on an asynchronous network. Every {@code interval} milliseconds
+ * the node is given the proposals that arrived since its last tick, then asked for new proposals,
+ * which are broadcast. After {@code numRounds} ticks one last tick delivers the final proposals.
+ * When latencies stay below the interval, this reproduces the rounds of {@code SimulationEngine}.
+ *
+ * <p>
+ * Between ticks the adapter only keeps the sender and the shared packet of each message. The
+ * proposals are copied into {@code batch}, which may be shared by all adapters of a network, just
+ * before they are delivered.
+ */
+public class RoundNodeAdapter implements AsyncNode {
+
+    private final Node node;
+    private final int numRounds;
+    private final double interval;
+    private final CandidateBatch batch;
+    private int self;
+    private int tick;
+
+    /** messages that arrived since the last tick */
+    private int[] senders = new int[0];
+    private int[][] packets = new int[0][];
+    private int numMessages;
+
+    public RoundNodeAdapter(Node node, int numRounds, double interval, CandidateBatch batch) {
+        this.node = node;
+        this.numRounds = numRounds;
+        this.interval = interval;
+        this.batch = batch;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    public void start(AsyncNetwork network, int self) {
+        this.self = self;
+        onTimer(network);
+    }
+
+    public void onMessage(AsyncNetwork network, int sender, int[] txIndices) {
+        if (tick > numRounds)
+            return;
+        if (numMessages == senders.length) {
+            int capacity = Math.max(4, numMessages * 2);
+            senders = Arrays.copyOf(senders, capacity);
+            packets = Arrays.copyOf(packets, capacity);
+        }
+        senders[numMessages] = sender;
+        packets[numMessages++] = txIndices;
+    }
+
+    public void onTimer(AsyncNetwork network) {
+        tick++;
+        if (numMessages > 0) {
+            batch.clear();
+            for (int m = 0; m < numMessages; m++) {
+                batch.addAll(packets[m], senders[m]);
+                packets[m] = null;
+            }
+            numMessages = 0;
+            node.receiveFromFollowees(batch);
+        }
+        if (tick > numRounds) {
+            senders = null;
+            packets = null;
+            return;
+        }
+        // ensure that each tx is actually valid
+        int[] proposals = network.universe().indicesOf(node.sendToFollowers());
+        if (proposals.length > 0)
+            network.broadcast(self, proposals);
+        network.scheduleTimer(self, interval);
+    }
+}
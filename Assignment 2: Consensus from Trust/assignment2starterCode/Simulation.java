@@ -4,126 +4,73 @@
 // test your nodes. You will want to try creating some deviant nodes and
 // mixing them in the network to fully test.
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class Simulation {
 
-   public static void main(String[] args) {
+   public static void main(String[] args) throws IOException {
 
       // There are four required command line arguments: p_graph (.1, .2, .3),
       // p_malicious (.15, .30, .45), p_txDistribution (.01, .05, .10), 
       // and numRounds (10, 20). You should try to test your CompliantNode
       // code for all 3x3x3x2 = 54 combinations.
 
-      int numNodes = 100;
-      double p_graph = Double.parseDouble(args[0]); // parameter for random graph: prob. that an edge will exist
-      double p_malicious = Double.parseDouble(args[1]); // prob. that a node will be set to be malicious
-      double p_txDistribution = Double.parseDouble(args[2]); // probability of assigning an initial transaction to each node 
-      int numRounds = Integer.parseInt(args[3]); // number of simulation rounds your nodes will run for
-
-      // pick which nodes are malicious and which are compliant
-      Node[] nodes = new Node[numNodes];
-      for (int i = 0; i < numNodes; i++) {
-         if(Math.random() < p_malicious)
-            // When you are ready to try testing with malicious nodes, replace the
-            // instantiation below with an instantiation of a MaliciousNode
-            nodes[i] = new MaliciousNode(p_graph, p_malicious, p_txDistribution, numRounds);
-         else
-            nodes[i] = new CompliantNode(p_graph, p_malicious, p_txDistribution, numRounds);
-      }
-
-
-      // initialize random follow graph
-      boolean[][] followees = new boolean[numNodes][numNodes]; // followees[i][j] is true iff i follows j
-      for (int i = 0; i < numNodes; i++) {
-         for (int j = 0; j < numNodes; j++) {
-            if (i == j) continue;
-            if(Math.random() < p_graph) { // p_graph is .1, .2, or .3
-               followees[i][j] = true;
-            }
-         }
+      // Optional key=value arguments may follow: nodes=100 (number of nodes), txs=500 (number
+      // of valid transactions), seed=<long> (makes the run reproducible), graph=random (or
+      // graph=degree:K for a graph where every node follows K others) and threads=1 (threads
+      // each phase of a round runs on; the result does not depend on it). track=true prints
+      // the number of distinct sets and the agreement of the compliant nodes after every round,
+      // and converge=K stops the run once they have agreed on one set for K rounds.
+      // adversary=spam|sybil|equivocate[:key=value,...] replaces the idle MaliciousNode with an
+      // attacker (see AdversaryNode) and eclipse=N makes N compliant nodes follow only
+      // malicious ones. metrics=<file> writes per-round message counts, phase times and
+      // allocation to <file> as CSV (see RoundMetrics). The follow graph
+      // is stored sparsely, so large, low-density networks such as
+      //    java Simulation 0.0001 0.15 0.01 10 nodes=100000 txs=50
+      // run quickly. See SimulationConfig and SimulationEngine.
+
+      SimulationConfig config = SimulationConfig.parse(args);
+      ForkJoinPool pool = config.threads > 1 ? new ForkJoinPool(config.threads) : null;
+      SimulationEngine engine = new SimulationEngine(config, pool);
+
+      MetricsWriter metrics = null;
+      if (config.metrics != null) {
+         metrics = new MetricsWriter(config.metrics);
+         engine.addListener(metrics);
       }
 
-      // notify all nodes of their followees
-      for (int i = 0; i < numNodes; i++)
-         nodes[i].setFollowees(followees[i]);
-
-      // initialize a set of 500 valid Transactions with random ids
-      int numTx = 500;
-      HashSet<Integer> validTxIds = new HashSet<Integer>();
-      Random random = new Random();
-      for (int i = 0; i < numTx; i++) {
-         int r = random.nextInt();
-         validTxIds.add(r);
-      }
-
-
-      // distribute the 500 Transactions throughout the nodes, to initialize
-      // the starting state of Transactions each node has heard. The distribution
-      // is random with probability p_txDistribution for each Transaction-Node pair.
-      for (int i = 0; i < numNodes; i++) {
-         HashSet<Transaction> pendingTransactions = new HashSet<Transaction>();
-         for(Integer txID : validTxIds) {
-            if (Math.random() < p_txDistribution) // p_txDistribution is .01, .05, or .10.
-               pendingTransactions.add(new Transaction(txID));
-         }
-         nodes[i].setPendingTransaction(pendingTransactions);
-      }
-
-
       // Simulate for numRounds times
-      for (int round = 0; round < numRounds; round++) { // numRounds is either 10 or 20
-
-         // gather all the proposals into a map. The key is the index of the node receiving
-         // proposals. The value is an ArrayList containing 1x2 Integer arrays. The first
-         // element of each array is the id of the transaction being proposed and the second
-         // element is the index # of the node proposing the transaction.
-         HashMap<Integer, Set<Candidate>> allProposals = new HashMap<>();
-
-         for (int i = 0; i < numNodes; i++) {
-            Set<Transaction> proposals = nodes[i].sendToFollowers();
-            for (Transaction tx : proposals) {
-               if (!validTxIds.contains(tx.id))
-                  continue; // ensure that each tx is actually valid
-
-               for (int j = 0; j < numNodes; j++) {
-                  if(!followees[j][i]) continue; // tx only matters if j follows i
-
-                  if (!allProposals.containsKey(j)) {
-                	  Set<Candidate> candidates = new HashSet<>();
-                	  allProposals.put(j, candidates);
-                  }
-                  
-                  Candidate candidate = new Candidate(tx, i);
-                  allProposals.get(j).add(candidate);
-               }
-
-            }
-         }
-
-         // Distribute the Proposals to their intended recipients as Candidates
-         for (int i = 0; i < numNodes; i++) {
-            if (allProposals.containsKey(i))
-               nodes[i].receiveFromFollowees(allProposals.get(i));
-         }
+      try {
+         engine.run();
+      } finally {
+         if (pool != null)
+            pool.shutdown();
+      }
+      if (metrics != null)
+         metrics.close();
+
+      if (config.track) {
+         ConvergenceTracker tracker = engine.getTracker();
+         int[] distinct = tracker.getDistinctSets();
+         double[] agreement = tracker.getAgreement();
+         for (int r = 0; r < tracker.getRounds(); r++)
+            System.out.printf("round %d: %d distinct compliant sets, agreement %.4f%n", r + 1, distinct[r], agreement[r]);
       }
 
       // print results
-      Map<Set<Transaction>, Integer> consensusSetFreqMap = new HashMap<>();
-
-      for (int i = 0; i < numNodes; i++) {
-         Set<Transaction> transactions = nodes[i].sendToFollowers();
-          consensusSetFreqMap.put(transactions, consensusSetFreqMap.getOrDefault(transactions, 0) + 1);
+      Map<Set<Transaction>, Integer> consensusSetFreqMap = engine.consensusSets();
 
+//      for (int i = 0; i < config.numNodes; i++) {
 //         System.out.println("Transaction ids that Node " + i + " believes consensus on:");
-//         for (Transaction tx : transactions)
+//         for (Transaction tx : engine.getNodes()[i].sendToFollowers())
 //            System.out.println(tx.id);
 //         System.out.println();
 //         System.out.println();
-      }
+//      }
 
       System.out.println(consensusSetFreqMap.size());
 //      System.out.println(consensusSetFreqMap);
    }
 }
-
@@ -0,0 +1,140 @@
+/**
+ * Parameters of a consensus simulation. The four positional arguments of {@code Simulation} are
+ * required; everything else is optional {@code key=value} arguments after them.
+ */
+public class SimulationConfig {
+
+    /** parameter for random graph: prob. that an edge will exist */
+    public double p_graph;
+    /** prob. that a node will be set to be malicious */
+    public double p_malicious;
+    /** probability of assigning an initial transaction to each node */
+    public double p_txDistribution;
+    /** number of simulation rounds the nodes will run for */
+    public int numRounds;
+
+    /** {@code nodes=} */
+    public int numNodes = 100;
+    /** {@code txs=}: number of valid transactions */
+    public int numTx = 500;
+    /** {@code seed=}: seed of every random choice of the run */
+    public long seed = System.nanoTime();
+    /** {@code graph=}: follow graph generator, see {@link FollowGraph#generate} */
+    public String graph = "random";
+    /** {@code threads=}: threads each round phase is spread over, 1 to run sequentially */
+    public int threads = 1;
+    /**
+     * {@code converge=}: stop once all compliant nodes have held the same set for this many
+     * consecutive rounds, 0 to always run all rounds
+     */
+    public int converge = 0;
+    /**
+     * {@code adversary=}: what malicious nodes do, "none" for {@link MaliciousNode} or a spec for
+     * {@link AdversaryNode#create}
+     */
+    public String adversary = "none";
+    /** {@code eclipse=}: number of compliant nodes made to follow only malicious nodes */
+    public int eclipse = 0;
+    /** {@code metrics=}: file to write the metrics of every round to, as CSV, or null */
+    public String metrics = null;
+    /** {@code track=}: print the agreement of the compliant nodes after every round */
+    public boolean track = false;
+
+    /** {@code workers=}: worker processes of a DistributedSimulation */
+    public int workers = 2;
+
+    // used by AsyncSimulation only, all times in milliseconds
+    /** {@code latency=min:max}: base latency of each link, drawn uniformly once per link */
+    public double latencyMin = 10;
+    public double latencyMax = 50;
+    /** {@code jitter=}: mean of the exponential delay added to each message */
+    public double jitter = 5;
+    /** {@code drop=}: probability that a message is lost */
+    public double drop = 0;
+    /** {@code interval=}: time between the rounds of nodes run by {@link RoundNodeAdapter} */
+    public double interval = 100;
+
+    public SimulationConfig(double p_graph, double p_malicious, double p_txDistribution, int numRounds) {
+        this.p_graph = p_graph;
+        this.p_malicious = p_malicious;
+        this.p_txDistribution = p_txDistribution;
+        this.numRounds = numRounds;
+    }
+
+    /** Parses {@code p_graph p_malicious p_txDistribution numRounds [key=value ...]} */
+    public static SimulationConfig parse(String[] args) {
+        SimulationConfig config = new SimulationConfig(Double.parseDouble(args[0]), Double.parseDouble(args[1]),
+                Double.parseDouble(args[2]), Integer.parseInt(args[3]));
+        for (int i = 4; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("expected key=value but got " + args[i]);
+            config.set(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        return config;
+    }
+
+    /** Sets the optional parameter {@code key} */
+    public void set(String key, String value) {
+        switch (key) {
+            case "nodes":
+                numNodes = Integer.parseInt(value);
+                break;
+            case "txs":
+                numTx = Integer.parseInt(value);
+                break;
+            case "seed":
+                seed = Long.parseLong(value);
+                break;
+            case "graph":
+                graph = value;
+                break;
+            case "threads":
+                threads = Integer.parseInt(value);
+                break;
+            case "converge":
+                converge = Integer.parseInt(value);
+                break;
+            case "adversary":
+                adversary = value;
+                break;
+            case "eclipse":
+                eclipse = Integer.parseInt(value);
+                break;
+            case "metrics":
+                metrics = value;
+                break;
+            case "track":
+                track = Boolean.parseBoolean(value);
+                break;
+            case "workers":
+                workers = Integer.parseInt(value);
+                break;
+            case "latency":
+                int colon = value.indexOf(':');
+                latencyMin = Double.parseDouble(colon < 0 ? value : value.substring(0, colon));
+                latencyMax = colon < 0 ? latencyMin : Double.parseDouble(value.substring(colon + 1));
+                if (latencyMin < 0 || latencyMax < latencyMin)
+                    throw new IllegalArgumentException("bad latency range " + value);
+                break;
+            case "jitter":
+                jitter = Double.parseDouble(value);
+                break;
+            case "drop":
+                drop = Double.parseDouble(value);
+                break;
+            case "interval":
+                interval = Double.parseDouble(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown parameter " + key);
+        }
+    }
+
+    public String toString() {
+        return "p_graph=" + p_graph + " p_malicious=" + p_malicious + " p_txDistribution=" + p_txDistribution
+                + " numRounds=" + numRounds + " nodes=" + numNodes + " txs=" + numTx + " seed=" + seed
+                + " graph=" + graph + " threads=" + threads + " converge=" + converge + " adversary=" + adversary
+                + " eclipse=" + eclipse + " latency=" + latencyMin + ":" + latencyMax + " jitter=" + jitter + " drop=" + drop + " interval=" + interval;
+    }
+}
@@ -0,0 +1,439 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the consensus simulation described in {@code Simulation} on a {@link FollowGraph}. The
+ * roles, the graph and the initial transactions are drawn from independent streams split off
+ * {@code config.seed}, so a run is reproducible from its seed.
+ *
+ * <p>
+ * Within a phase of a round, nodes do not depend on each other: each node only sends its own
+ * proposals, and each recipient only reads what was sent. Given a pool, both phases are split by
+ * node over it. Every node still sees exactly the same calls with the same arguments, in the same
+ * order, so results are identical to a sequential run with the same seed.
+ *
+ * <p>
+ * After every round a {@link ConvergenceTracker} records how far the compliant nodes agree. With
+ * {@code config.converge} set, the run stops as soon as they have agreed on one set for that many
+ * rounds in a row.
+ *
+ * <p>
+ * Every round also fills a {@link RoundMetrics}: message counters, the wall time of each phase and
+ * the bytes allocated meanwhile, as reported by the JVM for each thread involved. Listeners added
+ * with {@link #addListener} get it after each round.
+ *
+ * <p>
+ * An engine may own only the nodes {@code firstNode .. endNode - 1}, as in a
+ * {@code SimulationWorker}. It still draws everything for every node, so the nodes it owns are set
+ * up exactly as in a full run, but it only creates and runs those. The proposals of other nodes
+ * must then be filled in by {@link #exchange} every round.
+ */
+public class SimulationEngine {
+
+    protected final SimulationConfig config;
+    protected final Node[] nodes;
+    protected final boolean[] malicious;
+    protected final FollowGraph graph;
+
+    /** the nodes this engine creates and runs are {@code firstNode .. endNode - 1} */
+    protected final int firstNode;
+    protected final int endNode;
+
+    /** ids of the valid transactions, sorted */
+    protected final int[] validTxIds;
+
+    /** the valid transactions, indexed in the order of {@code validTxIds} */
+    protected final TxUniverse universe;
+
+    /** pool the round phases run on, or null to run them on the calling thread */
+    protected final ForkJoinPool pool;
+
+    /** stream the adversaries and the eclipse placement draw from */
+    private final SplittableRandom adversaryRandom;
+
+    /** {@code nodes[i]} if it is an {@link Equivocator}, else null */
+    private final Equivocator[] equivocators;
+
+    /** one reusable delivery batch per thread */
+    private final ThreadLocal<CandidateBatch> batches;
+
+    protected int round;
+
+    private final List<SimulationListener> listeners = new ArrayList<>();
+
+    /** counters of the round in progress, added to from every thread */
+    private final LongAdder proposalsSent = new LongAdder();
+    private final LongAdder proposalsFiltered = new LongAdder();
+    private final LongAdder candidatesDelivered = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    private final LongAdder workerAllocated = new LongAdder();
+
+    /** per-thread allocation counter of the JVM, or null if it has none */
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+    /** agreement of the compliant nodes after each round */
+    protected final ConvergenceTracker tracker;
+
+    /**
+     * Creates an engine running its round phases on {@code pool}, or sequentially if null. The pool
+     * stays the caller's to shut down
+     */
+    public SimulationEngine(SimulationConfig config, ForkJoinPool pool) {
+        this(config, pool, 0, config.numNodes);
+    }
+
+    /**
+     * Creates an engine that only creates and runs the nodes {@code firstNode .. endNode - 1} of the
+     * simulation described by {@code config}
+     */
+    protected SimulationEngine(SimulationConfig config, ForkJoinPool pool, int firstNode, int endNode) {
+        if (firstNode < 0 || endNode > config.numNodes || firstNode > endNode)
+            throw new IllegalArgumentException("bad node range " + firstNode + ".." + endNode);
+        this.config = config;
+        this.pool = pool;
+        this.firstNode = firstNode;
+        this.endNode = endNode;
+        int numNodes = config.numNodes;
+        SplittableRandom seed = new SplittableRandom(config.seed);
+        SplittableRandom roleRandom = seed.split();
+        SplittableRandom graphRandom = seed.split();
+        SplittableRandom txRandom = seed.split();
+        adversaryRandom = seed.split();
+
+        // pick which nodes are malicious and which are compliant
+        nodes = new Node[numNodes];
+        malicious = new boolean[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            malicious[i] = roleRandom.nextDouble() < config.p_malicious;
+            if (owns(i))
+                nodes[i] = createNode(i, malicious[i]);
+            else if (malicious[i] && !config.adversary.equals("none"))
+                adversaryRandom.split(); // as createNode would have
+        }
+
+        equivocators = new Equivocator[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            if (nodes[i] instanceof Equivocator)
+                equivocators[i] = (Equivocator) nodes[i];
+        }
+
+        // initialize random follow graph and notify all nodes of their followees
+        FollowGraph generated = FollowGraph.generate(config.graph, numNodes, config.p_graph, graphRandom);
+        graph = config.eclipse > 0 ? eclipse(generated, config.eclipse) : generated;
+        for (int i = firstNode; i < endNode; i++)
+            nodes[i].setFollowees(graph.followeesOf(i), numNodes);
+
+        // initialize a set of valid Transactions with random, distinct ids
+        Set<Integer> ids = new HashSet<>();
+        while (ids.size() < config.numTx)
+            ids.add(txRandom.nextInt());
+        validTxIds = new int[ids.size()];
+        int k = 0;
+        for (int id : ids)
+            validTxIds[k++] = id;
+        Arrays.sort(validTxIds);
+        universe = new TxUniverse(validTxIds);
+        batches = ThreadLocal.withInitial(() -> new CandidateBatch(universe, 256));
+
+        // distribute the Transactions throughout the nodes, with probability p_txDistribution
+        // for each Transaction-Node pair. The sets are TxSets, which nodes may adopt for their
+        // own bookkeeping, see CompliantNode
+        for (int i = 0; i < numNodes; i++) {
+            TxSet pendingTransactions = owns(i) ? universe.newSet() : null;
+            for (int index = 0; index < validTxIds.length; index++) {
+                if (txRandom.nextDouble() < config.p_txDistribution && pendingTransactions != null)
+                    pendingTransactions.set(index);
+            }
+            if (pendingTransactions != null)
+                nodes[i].setPendingTransaction(pendingTransactions);
+        }
+        tracker = new ConvergenceTracker(this);
+    }
+
+    /** @return the node at index {@code i}; malicious nodes follow {@code config.adversary} */
+    protected Node createNode(int i, boolean malicious) {
+        if (malicious && !config.adversary.equals("none"))
+            return AdversaryNode.create(config.adversary, config, adversaryRandom.split());
+        if (malicious)
+            return new MaliciousNode(config.p_graph, config.p_malicious, config.p_txDistribution, config.numRounds);
+        return new CompliantNode(config.p_graph, config.p_malicious, config.p_txDistribution, config.numRounds);
+    }
+
+    /** @return {@code graph} with {@code count} random compliant nodes following only malicious ones */
+    private FollowGraph eclipse(FollowGraph graph, int count) {
+        int[] compliant = new int[nodes.length];
+        int[] attackers = new int[nodes.length];
+        int numCompliant = 0;
+        int numAttackers = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (malicious[i])
+                attackers[numAttackers++] = i;
+            else
+                compliant[numCompliant++] = i;
+        }
+        count = Math.min(count, numCompliant);
+        for (int k = 0; k < count; k++) {
+            int r = k + adversaryRandom.nextInt(numCompliant - k);
+            int tmp = compliant[k];
+            compliant[k] = compliant[r];
+            compliant[r] = tmp;
+        }
+        return graph.eclipse(Arrays.copyOf(compliant, count), Arrays.copyOf(attackers, numAttackers),
+                adversaryRandom);
+    }
+
+    /**
+     * Runs all {@code numRounds} rounds, or fewer if the compliant nodes have converged for
+     * {@code config.converge} rounds
+     */
+    public void run() {
+        while (round < config.numRounds) {
+            runRound();
+            if (config.converge > 0 && tracker.getStableRounds() >= config.converge)
+                break;
+        }
+    }
+
+    /**
+     * Runs one round: every node sends its proposals, then every node that follows someone with a
+     * valid proposal is given those proposals. The valid proposals of each sender are captured as
+     * dense transaction indices when they are sent. Each recipient's {@link CandidateBatch} is then
+     * filled from its followees just before it is delivered, reusing one batch per thread, so no
+     * per-proposal object is allocated unless a node asks for Candidates.
+     */
+    public void runRound() {
+        int numNodes = nodes.length;
+        int[][] sent = new int[numNodes][];
+        proposalsSent.reset();
+        proposalsFiltered.reset();
+        candidatesDelivered.reset();
+        recipients.reset();
+        workerAllocated.reset();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        forEachNode(i -> {
+            Set<Transaction> proposals = nodes[i].sendToFollowers();
+            proposalsSent.add(proposals.size());
+            if (graph.numFollowers(i) == 0 || equivocators[i] != null)
+                return;
+            int[] indices = universe.indicesOf(proposals); // ensure that each tx is actually valid
+            if (indices.length < proposals.size())
+                proposalsFiltered.add(proposals.size() - indices.length);
+            if (indices.length > 0)
+                sent[i] = indices;
+        });
+        exchange(sent);
+        long sendEnd = System.nanoTime();
+
+        // Distribute the Proposals to their intended recipients
+        forEachNode(j -> {
+            CandidateBatch batch = batches.get();
+            batch.clear();
+            for (int k = graph.followeeStart(j); k < graph.followeeEnd(j); k++) {
+                int i = graph.followee(k);
+                int[] proposals = proposalsFrom(i, j, sent);
+                if (proposals != null)
+                    batch.addAll(proposals, i);
+            }
+            if (batch.size() > 0) {
+                candidatesDelivered.add(batch.size());
+                recipients.increment();
+                nodes[j].receiveFromFollowees(batch);
+            }
+        });
+        long deliverEnd = System.nanoTime();
+        round++;
+        tracker.observe(this);
+        long trackEnd = System.nanoTime();
+
+        RoundMetrics metrics = new RoundMetrics();
+        metrics.round = round;
+        metrics.proposalsSent = proposalsSent.sum();
+        metrics.proposalsFiltered = proposalsFiltered.sum();
+        metrics.candidatesDelivered = candidatesDelivered.sum();
+        metrics.recipients = recipients.intValue();
+        metrics.sendNanos = sendEnd - start;
+        metrics.deliverNanos = deliverEnd - sendEnd;
+        metrics.trackNanos = trackEnd - deliverEnd;
+        long allocatedAfter = allocatedBytes();
+        metrics.allocatedBytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore + workerAllocated.sum();
+        int rounds = tracker.getRounds();
+        metrics.distinctSets = rounds > 0 ? tracker.getDistinctSets()[rounds - 1] : -1;
+        metrics.agreement = rounds > 0 ? tracker.getAgreement()[rounds - 1] : -1;
+        for (SimulationListener listener : listeners)
+            listener.roundCompleted(this, metrics);
+    }
+
+    /**
+     * Called between the send and deliver phases of every round. {@code sent[i]} holds the valid
+     * proposals of each owned node {@code i} that has followers, as dense indices, or null; an
+     * engine that does not own every node must fill in those of the other nodes here. Does nothing
+     * by default.
+     */
+    protected void exchange(int[][] sent) {
+    }
+
+    /** @return the valid proposals of node {@code i} to node {@code j} this round, or null */
+    protected int[] proposalsFrom(int i, int j, int[][] sent) {
+        if (equivocators[i] != null) {
+            int[] proposals = equivocators[i].proposalsFor(j);
+            return proposals != null && isValid(proposals) ? proposals : null;
+        }
+        return sent[i];
+    }
+
+    /** Adds a listener that is given the metrics of every round from now on */
+    public void addListener(SimulationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SimulationListener listener) {
+        listeners.remove(listener);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+                if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled())
+                    return counter;
+            }
+        } catch (LinkageError e) {
+            // not a HotSpot-like JVM, so no estimate
+        }
+        return null;
+    }
+
+    /** @return bytes allocated so far by the calling thread, or -1 if unknown */
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /** Calls {@code action} for every owned node index, over the pool if there is one */
+    protected void forEachNode(IntConsumer action) {
+        if (pool == null) {
+            for (int i = firstNode; i < endNode; i++)
+                action.accept(i);
+        } else {
+            pool.invoke(new NodeRange(action, firstNode, endNode, workerAllocated));
+        }
+    }
+
+    /**
+     * Splits a range of node indices until it is small enough to run on one thread. Ranges run by
+     * pool threads add what they allocate to {@code allocated}; the calling thread is measured
+     * by {@link #runRound} itself.
+     */
+    private static class NodeRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int MIN_NODES = 64;
+
+        private final IntConsumer action;
+        private final int from;
+        private final int to;
+        private final LongAdder allocated;
+
+        NodeRange(IntConsumer action, int from, int to, LongAdder allocated) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.allocated = allocated;
+        }
+
+        protected void compute() {
+            if (to - from <= MIN_NODES) {
+                boolean worker = Thread.currentThread() instanceof ForkJoinWorkerThread;
+                long before = worker ? allocatedBytes() : -1;
+                for (int i = from; i < to; i++)
+                    action.accept(i);
+                if (before >= 0)
+                    allocated.add(allocatedBytes() - before);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new NodeRange(action, from, mid, allocated), new NodeRange(action, mid, to, allocated));
+        }
+    }
+
+    protected boolean isValid(Transaction tx) {
+        return universe.indexOf(tx.id) >= 0;
+    }
+
+    /** @return true if every entry of {@code indices} is a dense index of a valid transaction */
+    protected boolean isValid(int[] indices) {
+        for (int index : indices) {
+            if (index < 0 || index >= validTxIds.length)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return how many nodes ended up with each distinct consensus set. Sets that are TxSets
+     *         hash in constant time and compare a word at a time
+     */
+    public Map<Set<Transaction>, Integer> consensusSets() {
+        Map<Set<Transaction>, Integer> consensusSetFreqMap = new HashMap<>();
+        for (int i = firstNode; i < endNode; i++) {
+            Set<Transaction> transactions = consensusSet(i);
+            consensusSetFreqMap.put(transactions, consensusSetFreqMap.getOrDefault(transactions, 0) + 1);
+        }
+        return consensusSetFreqMap;
+    }
+
+    /**
+     * @return the consensus of node {@code i}: what {@link Node#sendToFollowers()} returns after
+     *         the final round or, if the run stopped early, its {@link Node#currentConsensus()}
+     */
+    public Set<Transaction> consensusSet(int i) {
+        if (round < config.numRounds) {
+            Set<Transaction> current = nodes[i].currentConsensus();
+            if (current != null)
+                return current;
+        }
+        return nodes[i].sendToFollowers();
+    }
+
+    public ConvergenceTracker getTracker() {
+        return tracker;
+    }
+
+    public TxUniverse getUniverse() {
+        return universe;
+    }
+
+    public FollowGraph getGraph() {
+        return graph;
+    }
+
+    public Node[] getNodes() {
+        return nodes;
+    }
+
+    /** @return true if node {@code i} is created and run by this engine */
+    public boolean owns(int i) {
+        return i >= firstNode && i < endNode;
+    }
+
+    public boolean isMalicious(int i) {
+        return malicious[i];
+    }
+
+    public int getRound() {
+        return round;
+    }
+}
@@ -0,0 +1,6 @@
+/** Receives the metrics of every round a {@link SimulationEngine} runs */
+public interface SimulationListener {
+
+    /** Called on the thread running the engine after round {@code metrics.round} */
+    void roundCompleted(SimulationEngine engine, RoundMetrics metrics);
+}
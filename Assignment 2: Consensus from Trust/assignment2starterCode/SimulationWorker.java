@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * One process of a {@link DistributedSimulation}. It owns a contiguous slice of the nodes and runs
+ * them with the usual {@link SimulationEngine} rounds, started by the coordinator. Between the send
+ * and deliver phases it sends the proposals of its nodes to the workers owning their followers,
+ * batched into one frame per worker, and takes in theirs, all through the coordinator.
+ *
+ * <pre>
+ * java SimulationWorker host port index numWorkers p_graph p_malicious p_txDistribution numRounds [key=value ...]
+ * </pre>
+ *
+ * is run by {@link DistributedSimulation}, not by hand.
+ */
+public class SimulationWorker extends SimulationEngine {
+
+    /** frames are sent once their payload reaches this size */
+    private static final int MAX_FRAME = 1 << 20;
+
+    private final int index;
+    private final int numWorkers;
+    private final FrameChannel channel;
+
+    /** proposals of equivocating nodes of other workers to owned nodes, by sender and recipient */
+    private final Map<Long, int[]> remoteProposals = new HashMap<>();
+
+    /** outgoing frame payload to each worker */
+    private final ByteBuffer[] outgoing;
+
+    public SimulationWorker(SimulationConfig config, ForkJoinPool pool, int index, int numWorkers, FrameChannel channel) {
+        super(config, pool, firstNode(config.numNodes, index, numWorkers), firstNode(config.numNodes, index + 1, numWorkers));
+        this.index = index;
+        this.numWorkers = numWorkers;
+        this.channel = channel;
+        outgoing = new ByteBuffer[numWorkers];
+    }
+
+    /** @return the first node owned by worker {@code index} of {@code numWorkers} */
+    public static int firstNode(int numNodes, int index, int numWorkers) {
+        return (int) ((long) numNodes * index / numWorkers);
+    }
+
+    /** @return the worker owning node {@code i} */
+    private int workerOf(int i) {
+        int w = (int) (((long) i * numWorkers) / config.numNodes);
+        // rounding may put us one slice off
+        while (i < firstNode(config.numNodes, w, numWorkers))
+            w--;
+        while (i >= firstNode(config.numNodes, w + 1, numWorkers))
+            w++;
+        return w;
+    }
+
+    protected void exchange(int[][] sent) {
+        try {
+            send(sent);
+            receive(sent);
+        } catch (IOException e) {
+            throw new IllegalStateException("exchange with coordinator failed", e);
+        }
+    }
+
+    private void send(int[][] sent) throws IOException {
+        boolean[] targets = new boolean[numWorkers];
+        for (int i = firstNode; i < endNode; i++) {
+            boolean equivocating = nodes[i] instanceof Equivocator;
+            if (sent[i] == null && !equivocating)
+                continue;
+            Arrays.fill(targets, false);
+            for (int k = graph.followerStart(i); k < graph.followerEnd(i); k++) {
+                int j = graph.follower(k);
+                int w = workerOf(j);
+                if (w == index)
+                    continue;
+                if (equivocating) {
+                    int[] proposals = proposalsFrom(i, j, sent);
+                    if (proposals != null)
+                        append(w, i, j, proposals);
+                } else if (!targets[w]) {
+                    targets[w] = true;
+                    append(w, i, -1, sent[i]);
+                }
+            }
+        }
+        for (int w = 0; w < numWorkers; w++)
+            flush(w);
+        channel.send(FrameChannel.SENT, 0);
+    }
+
+    private void append(int w, int sender, int recipient, int[] proposals) throws IOException {
+        int size = 12 + 4 * proposals.length;
+        ByteBuffer out = outgoing[w];
+        if (out != null && out.position() > 0 && out.remaining() < size)
+            flush(w);
+        if (out == null || out.capacity() < size + 4)
+            out = outgoing[w] = ByteBuffer.allocate(Math.max(MAX_FRAME, size + 4));
+        if (out.position() == 0)
+            out.putInt(w);
+        out.putInt(sender).putInt(recipient).putInt(proposals.length);
+        for (int p : proposals)
+            out.putInt(p);
+    }
+
+    private void flush(int w) throws IOException {
+        ByteBuffer out = outgoing[w];
+        if (out == null || out.position() == 0)
+            return;
+        out.flip();
+        channel.send(FrameChannel.PROPOSALS, out);
+        out.clear();
+    }
+
+    private void receive(int[][] sent) throws IOException {
+        remoteProposals.clear();
+        while (true) {
+            byte type = channel.receive();
+            if (type == FrameChannel.EXCHANGED)
+                return;
+            if (type != FrameChannel.PROPOSALS)
+                throw new IOException("unexpected frame " + type + " during exchange");
+            ByteBuffer in = channel.payload();
+            in.getInt(); // target, that is us
+            while (in.hasRemaining()) {
+                int sender = in.getInt();
+                int recipient = in.getInt();
+                int[] proposals = new int[in.getInt()];
+                for (int k = 0; k < proposals.length; k++)
+                    proposals[k] = in.getInt();
+                if (owns(sender) || !isValid(proposals))
+                    throw new IOException("bad proposals from node " + sender);
+                if (recipient < 0)
+                    sent[sender] = proposals;
+                else
+                    remoteProposals.put((long) sender << 32 | recipient, proposals);
+            }
+        }
+    }
+
+    protected int[] proposalsFrom(int i, int j, int[][] sent) {
+        if (!owns(i) && sent[i] == null)
+            return remoteProposals.get((long) i << 32 | j);
+        return super.proposalsFrom(i, j, sent);
+    }
+
+    /** Runs rounds as the coordinator asks until it asks for the results */
+    public void serve() throws IOException {
+        SimulationListener done = (engine, metrics) -> {
+            ByteBuffer counters = ByteBuffer.allocate(16);
+            counters.putLong(metrics.proposalsSent).putLong(metrics.candidatesDelivered).flip();
+            try {
+                channel.send(FrameChannel.DONE, counters);
+            } catch (IOException e) {
+                throw new IllegalStateException("reporting to coordinator failed", e);
+            }
+        };
+        addListener(done);
+        while (true) {
+            byte type = channel.receive();
+            if (type == FrameChannel.ROUND) {
+                int next = channel.payload().getInt();
+                if (next != round + 1)
+                    throw new IOException("asked for round " + next + " after round " + round);
+                runRound();
+            } else if (type == FrameChannel.FINISH) {
+                ByteBuffer result = ByteBuffer.allocate(8 + 8 * (endNode - firstNode));
+                result.putInt(firstNode).putInt(endNode - firstNode);
+                for (int i = firstNode; i < endNode; i++)
+                    result.putLong(TxSet.fingerprintOf(consensusSet(i)));
+                result.flip();
+                channel.send(FrameChannel.RESULT, result);
+                return;
+            } else {
+                throw new IOException("unexpected frame " + type);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int index = Integer.parseInt(args[2]);
+        int numWorkers = Integer.parseInt(args[3]);
+        SimulationConfig config = SimulationConfig.parse(Arrays.copyOfRange(args, 4, args.length));
+
+        try (FrameChannel channel = new FrameChannel(SocketChannel.open(new InetSocketAddress(host, port)))) {
+            channel.send(FrameChannel.HELLO, index);
+            ForkJoinPool pool = config.threads > 1 ? new ForkJoinPool(config.threads) : null;
+            SimulationWorker worker = new SimulationWorker(config, pool, index, numWorkers, channel);
+            worker.serve();
+            if (pool != null)
+                pool.shutdown();
+        }
+    }
+}
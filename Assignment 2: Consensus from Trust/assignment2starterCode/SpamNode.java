@@ -0,0 +1,21 @@
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Transaction spammer: after the handshake, proposes {@code rate} random valid transactions each
+ * round on top of anything it relays. Honest nodes that trust it keep receiving transactions
+ * their other followees may never see.
+ */
+public class SpamNode extends AdversaryNode {
+
+    private final int rate;
+
+    public SpamNode(SimulationConfig config, Params params, SplittableRandom random) {
+        super(config, params, random, 0);
+        this.rate = params.getInt("rate", 50);
+    }
+
+    protected void attack(Set<Transaction> proposals) {
+        addRandom(proposals, rate, random);
+    }
+}
@@ -0,0 +1,262 @@
+// Runs the simulation for all 3x3x3x2 = 54 combinations of p_graph, p_malicious,
+// p_txDistribution and numRounds, each repeated for a number of trials, and writes
+// per-combination statistics to <out>.csv and <out>.json.
+//
+// Usage: java Sweep [trials=20] [threads=<cores>] [seed=<long>] [out=sweep] [nodes=100 txs=500 graph=random]
+//
+// Every trial gets its own SimulationEngine and nodes, so trials share no mutable state and run
+// concurrently on the thread pool. Trial seeds are drawn up front from seed=, so a sweep is
+// reproducible whatever the number of threads. With converge=K trials stop once their compliant
+// nodes have agreed for K rounds; the JSON output holds the mean agreement after every round.
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+public class Sweep {
+    public static final double[] P_GRAPH = {.1, .2, .3};
+    public static final double[] P_MALICIOUS = {.15, .30, .45};
+    public static final double[] P_TX_DISTRIBUTION = {.01, .05, .10};
+    public static final int[] NUM_ROUNDS = {10, 20};
+
+    /** Outcome of one trial */
+    public static class Trial {
+        /** distinct sets among all nodes, the number Simulation prints */
+        public int distinctSets;
+        /** distinct sets among compliant nodes */
+        public int compliantDistinctSets;
+        /** fraction of compliant nodes holding the most common compliant set */
+        public double agreement;
+        /** size of the most common compliant set */
+        public int consensusSize;
+        /** rounds actually run */
+        public int rounds;
+        /** fraction of compliant nodes holding the most common set after each round */
+        public double[] agreementByRound;
+        public long millis;
+    }
+
+    /** Statistics of all trials of one combination */
+    public static class Result {
+        public final SimulationConfig config;
+        public final List<Trial> trials = new ArrayList<>();
+
+        Result(SimulationConfig config) {
+            this.config = config;
+        }
+
+        double mean(ToDoubleFunction<Trial> f) {
+            double sum = 0;
+            for (Trial t : trials)
+                sum += f.applyAsDouble(t);
+            return trials.isEmpty() ? 0 : sum / trials.size();
+        }
+
+        int min(ToIntFunction<Trial> f) {
+            int min = Integer.MAX_VALUE;
+            for (Trial t : trials)
+                min = Math.min(min, f.applyAsInt(t));
+            return min;
+        }
+
+        int max(ToIntFunction<Trial> f) {
+            int max = Integer.MIN_VALUE;
+            for (Trial t : trials)
+                max = Math.max(max, f.applyAsInt(t));
+            return max;
+        }
+
+        double convergedFraction() {
+            return mean(t -> t.compliantDistinctSets <= 1 ? 1 : 0);
+        }
+
+        /** mean agreement after each round; a trial that stopped early keeps its last value */
+        double[] agreementByRound() {
+            double[] mean = new double[config.numRounds];
+            for (Trial t : trials) {
+                double[] curve = t.agreementByRound;
+                for (int r = 0; r < mean.length && curve.length > 0; r++)
+                    mean[r] += curve[Math.min(r, curve.length - 1)] / trials.size();
+            }
+            return mean;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int trials = 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        String out = "sweep";
+        List<String> passThrough = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("expected key=value but got " + arg);
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "trials":
+                    trials = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "out":
+                    out = value;
+                    break;
+                default:
+                    passThrough.add(arg);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = run(trials, threads, seed, passThrough);
+        writeCsv(out + ".csv", results);
+        writeJson(out + ".json", results);
+        System.out.printf("%d combinations x %d trials in %.1f s, seed=%d, wrote %s.csv and %s.json%n",
+                results.size(), trials, (System.nanoTime() - start) / 1e9, seed, out, out);
+    }
+
+    /** Runs every combination {@code trials} times on {@code threads} threads */
+    public static List<Result> run(int trials, int threads, long seed, List<String> settings)
+            throws Exception {
+        SplittableRandom seeds = new SplittableRandom(seed);
+        List<Result> results = new ArrayList<>();
+        List<List<Future<Trial>>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (double pGraph : P_GRAPH)
+                for (double pMalicious : P_MALICIOUS)
+                    for (double pTx : P_TX_DISTRIBUTION)
+                        for (int numRounds : NUM_ROUNDS) {
+                            SimulationConfig config = new SimulationConfig(pGraph, pMalicious, pTx, numRounds);
+                            for (String setting : settings) {
+                                int eq = setting.indexOf('=');
+                                config.set(setting.substring(0, eq), setting.substring(eq + 1));
+                            }
+                            results.add(new Result(config));
+                            List<Future<Trial>> trialFutures = new ArrayList<>();
+                            for (int t = 0; t < trials; t++) {
+                                SimulationConfig trialConfig = copy(config);
+                                trialConfig.seed = seeds.nextLong();
+                                trialConfig.threads = 1;
+                                trialFutures.add(executor.submit(() -> runTrial(trialConfig)));
+                            }
+                            futures.add(trialFutures);
+                        }
+            for (int i = 0; i < results.size(); i++)
+                for (Future<Trial> f : futures.get(i))
+                    results.get(i).trials.add(f.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /** Runs one simulation and measures how far its compliant nodes agree */
+    public static Trial runTrial(SimulationConfig config) {
+        long start = System.nanoTime();
+        SimulationEngine engine = new SimulationEngine(config, null);
+        engine.run();
+
+        Trial trial = new Trial();
+        trial.distinctSets = engine.consensusSets().size();
+        Map<Set<Transaction>, Integer> compliantSets = new HashMap<>();
+        int numCompliant = 0;
+        for (int i = 0; i < engine.getNodes().length; i++) {
+            if (engine.isMalicious(i))
+                continue;
+            numCompliant++;
+            compliantSets.merge(engine.consensusSet(i), 1, Integer::sum);
+        }
+        int largest = 0;
+        for (Map.Entry<Set<Transaction>, Integer> entry : compliantSets.entrySet()) {
+            if (entry.getValue() > largest) {
+                largest = entry.getValue();
+                trial.consensusSize = entry.getKey().size();
+            }
+        }
+        trial.compliantDistinctSets = compliantSets.size();
+        trial.agreement = numCompliant == 0 ? 1 : (double) largest / numCompliant;
+        trial.rounds = engine.getRound();
+        trial.agreementByRound = engine.getTracker().getAgreement();
+        trial.millis = (System.nanoTime() - start) / 1_000_000;
+        return trial;
+    }
+
+    private static SimulationConfig copy(SimulationConfig config) {
+        SimulationConfig c = new SimulationConfig(config.p_graph, config.p_malicious, config.p_txDistribution,
+                config.numRounds);
+        c.numNodes = config.numNodes;
+        c.numTx = config.numTx;
+        c.graph = config.graph;
+        c.converge = config.converge;
+        c.adversary = config.adversary;
+        c.eclipse = config.eclipse;
+        return c;
+    }
+
+    private static final String[] COLUMNS = {"p_graph", "p_malicious", "p_txDistribution", "numRounds", "trials",
+            "distinctSets_mean", "distinctSets_min", "distinctSets_max", "compliantDistinctSets_mean",
+            "agreement_mean", "converged_fraction", "consensusSize_mean", "rounds_mean", "millis_mean"};
+
+    private static Object[] row(Result r) {
+        SimulationConfig c = r.config;
+        return new Object[] {c.p_graph, c.p_malicious, c.p_txDistribution, c.numRounds, r.trials.size(),
+                r.mean(t -> t.distinctSets), r.min(t -> t.distinctSets), r.max(t -> t.distinctSets),
+                r.mean(t -> t.compliantDistinctSets), r.mean(t -> t.agreement), r.convergedFraction(),
+                r.mean(t -> t.consensusSize), r.mean(t -> t.rounds), r.mean(t -> t.millis)};
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Double)
+            return String.format(Locale.ROOT, "%.4f", (Double) value);
+        return String.valueOf(value);
+    }
+
+    public static void writeCsv(String path, List<Result> results) throws IOException {
+        try (PrintWriter w = new PrintWriter(path, "UTF-8")) {
+            w.println(String.join(",", COLUMNS));
+            for (Result r : results) {
+                Object[] row = row(r);
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < row.length; i++)
+                    line.append(i == 0 ? "" : ",").append(format(row[i]));
+                w.println(line);
+            }
+        }
+    }
+
+    public static void writeJson(String path, List<Result> results) throws IOException {
+        try (PrintWriter w = new PrintWriter(path, "UTF-8")) {
+            w.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                Object[] row = row(results.get(r));
+                StringBuilder line = new StringBuilder("  {");
+                for (int i = 0; i < row.length; i++)
+                    line.append(i == 0 ? "" : ", ").append('"').append(COLUMNS[i]).append("\": ").append(format(row[i]));
+                line.append(", \"agreement_by_round\": [");
+                double[] curve = results.get(r).agreementByRound();
+                for (int i = 0; i < curve.length; i++)
+                    line.append(i == 0 ? "" : ", ").append(format(curve[i]));
+                line.append(']');
+                w.println(line.append(r + 1 < results.size() ? "}," : "}"));
+            }
+            w.println("]");
+        }
+    }
+}
@@ -0,0 +1,27 @@
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * One of many identities run by a single attacker. Until round {@code from} it relays everything
+ * it receives, like an honest node would. From then on every Sybil floods the same {@code rate}
+ * transactions each round, drawn from a stream shared by all of them, so the flood arrives at
+ * every honest node that follows any Sybil. The default is a burst in the last round only.
+ */
+public class SybilNode extends AdversaryNode {
+
+    private final int rate;
+    private final int from;
+    private final long sharedSeed;
+
+    public SybilNode(SimulationConfig config, Params params, SplittableRandom random) {
+        super(config, params, random, 1);
+        this.rate = params.getInt("rate", 100);
+        this.from = params.getInt("from", config.numRounds);
+        this.sharedSeed = TxUniverse.fingerprint((int) config.seed) ^ config.seed;
+    }
+
+    protected void attack(Set<Transaction> proposals) {
+        if (round >= from)
+            addRandom(proposals, rate, new SplittableRandom(sharedSeed + round));
+    }
+}
@@ -0,0 +1,280 @@
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A set of transactions stored as a bitset over the dense indices of a {@link TxUniverse}, with
+ * a small {@code HashSet} for any transaction outside the universe. Union, difference and equality
+ * with another set over the same universe work a word at a time. It is a regular
+ * {@code Set<Transaction>}, so nodes that know nothing about it keep working.
+ */
+public class TxSet extends AbstractSet<Transaction> {
+
+    private final TxUniverse universe;
+    private final long[] words;
+    private int bitCount;
+
+    /** sum of the ids of the transactions in {@code words}, kept for {@link #hashCode} */
+    private int idSum;
+
+    /** sum of the fingerprints of the transactions in {@code words}, see {@link #fingerprint()} */
+    private long fingerprintSum;
+
+    /** transactions outside the universe, or null if there are none */
+    private Set<Transaction> overflow;
+
+    public TxSet(TxUniverse universe) {
+        this.universe = universe;
+        this.words = new long[(universe.size() + 63) >>> 6];
+    }
+
+    /** Creates a copy of {@code set} */
+    public TxSet(TxSet set) {
+        universe = set.universe;
+        words = set.words.clone();
+        bitCount = set.bitCount;
+        idSum = set.idSum;
+        fingerprintSum = set.fingerprintSum;
+        if (set.overflow != null)
+            overflow = new HashSet<>(set.overflow);
+    }
+
+    public TxUniverse getUniverse() {
+        return universe;
+    }
+
+    /** @return a new empty set over the same universe */
+    public TxSet emptyCopy() {
+        return new TxSet(universe);
+    }
+
+    public int size() {
+        return bitCount + (overflow == null ? 0 : overflow.size());
+    }
+
+    public boolean contains(Object o) {
+        if (!(o instanceof Transaction))
+            return false;
+        int index = universe.indexOf(((Transaction) o).id);
+        if (index >= 0)
+            return (words[index >>> 6] & (1L << index)) != 0;
+        return overflow != null && overflow.contains(o);
+    }
+
+    public boolean add(Transaction tx) {
+        int index = universe.indexOf(tx.id);
+        if (index < 0) {
+            if (overflow == null)
+                overflow = new HashSet<>();
+            return overflow.add(tx);
+        }
+        return set(index);
+    }
+
+    public boolean remove(Object o) {
+        if (!(o instanceof Transaction))
+            return false;
+        int index = universe.indexOf(((Transaction) o).id);
+        if (index < 0)
+            return overflow != null && overflow.remove(o);
+        return clear(index);
+    }
+
+    /** Adds the transaction with dense index {@code index}. @return true if it was not there */
+    public boolean set(int index) {
+        long bit = 1L << index;
+        int w = index >>> 6;
+        if ((words[w] & bit) != 0)
+            return false;
+        words[w] |= bit;
+        bitCount++;
+        idSum += universe.id(index);
+        fingerprintSum += universe.fingerprintAt(index);
+        return true;
+    }
+
+    /** Removes the transaction with dense index {@code index}. @return true if it was there */
+    public boolean clear(int index) {
+        long bit = 1L << index;
+        int w = index >>> 6;
+        if ((words[w] & bit) == 0)
+            return false;
+        words[w] &= ~bit;
+        bitCount--;
+        idSum -= universe.id(index);
+        fingerprintSum -= universe.fingerprintAt(index);
+        return true;
+    }
+
+    /** @return true if the transaction with dense index {@code index} is in the set */
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /** @return the dense index of the first transaction at or after {@code from}, or -1 */
+    public int nextIndex(int from) {
+        int w = from >>> 6;
+        if (w >= words.length)
+            return -1;
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == words.length)
+                return -1;
+            word = words[w];
+        }
+    }
+
+    public boolean addAll(Collection<? extends Transaction> c) {
+        if (!sameUniverse(c))
+            return super.addAll(c);
+        TxSet other = (TxSet) c;
+        boolean changed = false;
+        for (int w = 0; w < words.length; w++) {
+            long added = other.words[w] & ~words[w];
+            if (added != 0) {
+                words[w] |= added;
+                bitCount += Long.bitCount(added);
+                account(w, added, 1);
+                changed = true;
+            }
+        }
+        if (other.overflow != null) {
+            if (overflow == null)
+                overflow = new HashSet<>();
+            changed |= overflow.addAll(other.overflow);
+        }
+        return changed;
+    }
+
+    public boolean removeAll(Collection<?> c) {
+        if (!sameUniverse(c))
+            return super.removeAll(c);
+        TxSet other = (TxSet) c;
+        boolean changed = false;
+        for (int w = 0; w < words.length; w++) {
+            long removed = other.words[w] & words[w];
+            if (removed != 0) {
+                words[w] &= ~removed;
+                bitCount -= Long.bitCount(removed);
+                account(w, removed, -1);
+                changed = true;
+            }
+        }
+        if (overflow != null && other.overflow != null)
+            changed |= overflow.removeAll(other.overflow);
+        return changed;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+        bitCount = 0;
+        idSum = 0;
+        fingerprintSum = 0;
+        overflow = null;
+    }
+
+    public Iterator<Transaction> iterator() {
+        return new Iterator<Transaction>() {
+            private int next = nextIndex(0);
+            private int last = -1;
+            private Iterator<Transaction> overflowIterator;
+
+            public boolean hasNext() {
+                if (next >= 0)
+                    return true;
+                if (overflowIterator == null && overflow != null)
+                    overflowIterator = overflow.iterator();
+                return overflowIterator != null && overflowIterator.hasNext();
+            }
+
+            public Transaction next() {
+                if (next >= 0) {
+                    last = next;
+                    next = nextIndex(next + 1);
+                    return universe.get(last);
+                }
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                last = -1;
+                return overflowIterator.next();
+            }
+
+            public void remove() {
+                if (last >= 0) {
+                    TxSet.this.clear(last);
+                    last = -1;
+                } else if (overflowIterator != null) {
+                    overflowIterator.remove();
+                } else {
+                    throw new IllegalStateException();
+                }
+            }
+        };
+    }
+
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (o instanceof TxSet && ((TxSet) o).universe == universe) {
+            TxSet other = (TxSet) o;
+            if (bitCount != other.bitCount || fingerprintSum != other.fingerprintSum
+                    || !Arrays.equals(words, other.words))
+                return false;
+            Set<Transaction> a = overflow == null ? Set.of() : overflow;
+            Set<Transaction> b = other.overflow == null ? Set.of() : other.overflow;
+            return a.equals(b);
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * @return an order-independent 64-bit fingerprint of the set: the sum of
+     *         {@link TxUniverse#fingerprint(int)} over its transactions. Kept up to date by every
+     *         change, so it takes constant time unless the set has transactions outside the
+     *         universe. Sets with equal contents have equal fingerprints, whatever their type
+     */
+    public long fingerprint() {
+        if (overflow == null)
+            return fingerprintSum;
+        return fingerprintSum + fingerprintOf(overflow);
+    }
+
+    /** @return the fingerprint of {@code txs}, see {@link #fingerprint()} */
+    public static long fingerprintOf(Collection<Transaction> txs) {
+        if (txs instanceof TxSet)
+            return ((TxSet) txs).fingerprint();
+        long sum = 0;
+        for (Transaction tx : txs)
+            sum += TxUniverse.fingerprint(tx.id);
+        return sum;
+    }
+
+    /** Equal to the sum of the element hash codes, as {@code Set} requires, in constant time */
+    public int hashCode() {
+        return idSum + (overflow == null ? 0 : overflow.hashCode());
+    }
+
+    private boolean sameUniverse(Collection<?> c) {
+        return c instanceof TxSet && ((TxSet) c).universe == universe;
+    }
+
+    /** Adds ({@code sign} 1) or subtracts (-1) the ids and fingerprints of the bits of word {@code w} */
+    private void account(int w, long bits, int sign) {
+        int ids = 0;
+        long fingerprints = 0;
+        while (bits != 0) {
+            int index = (w << 6) + Long.numberOfTrailingZeros(bits);
+            ids += universe.id(index);
+            fingerprints += universe.fingerprintAt(index);
+            bits &= bits - 1;
+        }
+        idSum += sign * ids;
+        fingerprintSum += sign * fingerprints;
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The valid transactions of a simulation, remapped to dense indices {@code 0 .. size() - 1} so
+ * that sets of them can be stored as bitsets (see {@link TxSet}). It also holds one canonical
+ * {@link Transaction} per id, so the harness does not allocate a new one for each use.
+ * Immutable, and safe to share between threads.
+ */
+public class TxUniverse {
+
+    private final Transaction[] txs;
+    private final int[] ids;
+    private final long[] fingerprints;
+
+    /** open addressing table from id to index + 1, 0 meaning empty */
+    private final int[] tableIds;
+    private final int[] tableIndices;
+    private final int mask;
+
+    /** Creates a universe of the distinct ids {@code ids}, indexed in the given order */
+    public TxUniverse(int[] ids) {
+        txs = new Transaction[ids.length];
+        this.ids = ids.clone();
+        fingerprints = new long[ids.length];
+        int capacity = Integer.highestOneBit(Math.max(4, ids.length * 2 - 1)) << 1;
+        tableIds = new int[capacity];
+        tableIndices = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < ids.length; i++) {
+            txs[i] = new Transaction(ids[i]);
+            fingerprints[i] = fingerprint(ids[i]);
+            int slot = slot(ids[i]);
+            while (tableIndices[slot] != 0) {
+                if (tableIds[slot] == ids[i])
+                    throw new IllegalArgumentException("duplicate transaction id " + ids[i]);
+                slot = (slot + 1) & mask;
+            }
+            tableIds[slot] = ids[i];
+            tableIndices[slot] = i + 1;
+        }
+    }
+
+    /** @return number of transactions in the universe */
+    public int size() {
+        return txs.length;
+    }
+
+    /** @return the dense index of transaction id {@code id}, or -1 if it is not in the universe */
+    public int indexOf(int id) {
+        int slot = slot(id);
+        while (tableIndices[slot] != 0) {
+            if (tableIds[slot] == id)
+                return tableIndices[slot] - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the canonical transaction with dense index {@code index} */
+    public Transaction get(int index) {
+        return txs[index];
+    }
+
+    /**
+     * @return the dense indices of the transactions of {@code txs} that are in this universe,
+     *         dropping any others. A TxSet over this universe is read straight off its bitset
+     */
+    public int[] indicesOf(Set<Transaction> txs) {
+        int[] indices = new int[txs.size()];
+        int n = 0;
+        if (txs instanceof TxSet && ((TxSet) txs).getUniverse() == this) {
+            // everything in the bitset is valid, anything outside it is not
+            TxSet set = (TxSet) txs;
+            for (int index = set.nextIndex(0); index >= 0; index = set.nextIndex(index + 1))
+                indices[n++] = index;
+        } else {
+            for (Transaction tx : txs) {
+                int index = indexOf(tx.id);
+                if (index >= 0)
+                    indices[n++] = index;
+            }
+        }
+        return n == indices.length ? indices : Arrays.copyOf(indices, n);
+    }
+
+    /** @return the id of the transaction with dense index {@code index} */
+    public int id(int index) {
+        return ids[index];
+    }
+
+    /** @return {@link #fingerprint(int)} of the transaction with dense index {@code index} */
+    public long fingerprintAt(int index) {
+        return fingerprints[index];
+    }
+
+    /**
+     * @return a 64-bit mix of transaction id {@code id}. The fingerprint of a set is the sum of
+     *         those of its transactions, so it does not depend on order and can be kept up to
+     *         date as transactions come and go, see {@link TxSet#fingerprint()}
+     */
+    public static long fingerprint(int id) {
+        long z = id + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** @return a new empty set over this universe */
+    public TxSet newSet() {
+        return new TxSet(this);
+    }
+
+    private int slot(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -12,4 +12,7 @@ javac *.java
 #echo "Running program..."
 java Simulation 0.1 0.15 0.01 10
 #java Simulation 0.3 0.45 0.10 20
+#java AsyncSimulation 0.1 0.15 0.01 10 latency=10:50 jitter=5 drop=0.05
+#java DistributedSimulation 0.1 0.15 0.01 10 workers=4 seed=1
+#java Sweep trials=20 seed=1 out=sweep
 
@@ -0,0 +1,136 @@
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A secondary index of a UTXOPool from output address to the UTXOs paid to it, with a running
+ * balance per address. It is kept up to date by {@code UTXOPool.addUTXO} and
+ * {@code UTXOPool.removeUTXO}.
+ */
+public class AddressIndex {
+
+    /* Rough sizes used by sizeInBytes, assuming compressed oops */
+    private static final int MAP_ENTRY_BYTES = 48;
+    private static final int ADDRESS_BYTES = 32;
+    private static final int HOLDINGS_BYTES = 104;
+
+    /** An address, compared by the key equality of its signature scheme */
+    private static class Address {
+        final PublicKey key;
+        final SignatureScheme scheme;
+        final int hash;
+
+        Address(PublicKey key) {
+            this.key = key;
+            this.scheme = SignatureScheme.of(key);
+            this.hash = scheme.ordinal() * 31 + scheme.keyHashCode(key);
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Address))
+                return false;
+            Address address = (Address) other;
+            return hash == address.hash && scheme == address.scheme && scheme.keyEquals(key, address.key);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** The UTXOs paid to one address and the sum of their values */
+    private static class Holdings {
+        final Set<UTXO> utxos;
+        double balance;
+
+        Holdings() {
+            utxos = new HashSet<UTXO>(4);
+        }
+
+        Holdings(Holdings holdings) {
+            utxos = new HashSet<UTXO>(holdings.utxos);
+            balance = holdings.balance;
+        }
+    }
+
+    private HashMap<Address, Holdings> index;
+    private long utxoCount;
+
+    /** Creates an empty index */
+    public AddressIndex() {
+        index = new HashMap<Address, Holdings>();
+    }
+
+    /** Creates a copy of {@code addressIndex} that can be updated independently */
+    public AddressIndex(AddressIndex addressIndex) {
+        index = new HashMap<Address, Holdings>(addressIndex.index);
+        for (Map.Entry<Address, Holdings> entry : index.entrySet())
+            entry.setValue(new Holdings(entry.getValue()));
+        utxoCount = addressIndex.utxoCount;
+    }
+
+    /** Records that {@code utxo}, holding {@code txOut}, was added to the pool */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        if (txOut.address == null)
+            return;
+        Holdings holdings = index.computeIfAbsent(new Address(txOut.address), a -> new Holdings());
+        if (holdings.utxos.add(utxo)) {
+            holdings.balance += txOut.value;
+            utxoCount++;
+        }
+    }
+
+    /** Records that {@code utxo}, holding {@code txOut}, was removed from the pool */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        if (txOut.address == null)
+            return;
+        Address address = new Address(txOut.address);
+        Holdings holdings = index.get(address);
+        if (holdings == null || !holdings.utxos.remove(utxo))
+            return;
+        utxoCount--;
+        if (holdings.utxos.isEmpty())
+            index.remove(address);
+        else
+            holdings.balance -= txOut.value;
+    }
+
+    /** @return the total value of the UTXOs paid to {@code address} */
+    public double getBalance(PublicKey address) {
+        Holdings holdings = index.get(new Address(address));
+        return holdings == null ? 0 : holdings.balance;
+    }
+
+    /** @return a read-only view of the UTXOs paid to {@code address} */
+    public Set<UTXO> getUTXOs(PublicKey address) {
+        Holdings holdings = index.get(new Address(address));
+        return holdings == null ? Collections.<UTXO>emptySet() : Collections.unmodifiableSet(holdings.utxos);
+    }
+
+    /** @return number of addresses holding at least one UTXO */
+    public int numAddresses() {
+        return index.size();
+    }
+
+    /** @return number of UTXOs in the index */
+    public long numUTXOs() {
+        return utxoCount;
+    }
+
+    /**
+     * @return estimated memory used by the index on top of the pool, in bytes. UTXOs and keys are
+     *         shared with the pool and not counted
+     */
+    public long sizeInBytes() {
+        return index.size() * (long) (MAP_ENTRY_BYTES + ADDRESS_BYTES + HOLDINGS_BYTES)
+                + utxoCount * MAP_ENTRY_BYTES;
+    }
+
+    public String toString() {
+        return String.format("AddressIndex[addresses=%d, utxos=%d, bytes=%d]", index.size(), utxoCount,
+                sizeInBytes());
+    }
+}
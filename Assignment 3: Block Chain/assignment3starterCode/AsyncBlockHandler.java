@@ -0,0 +1,319 @@
+import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking front end of a {@link BlockHandler}. Submissions return at once with a
+ * {@code CompletableFuture}, and the block chain is only touched by one chain thread, which always
+ * takes pending blocks before pending transactions.
+ *
+ * <p>Transactions are first checked by a pool of transaction threads: their hash is recomputed
+ * and the signatures of inputs that spend outputs of the max height block are verified, and
+ * recorded in a {@link SignatureCache} so that block validation does not verify them again. Only
+ * transactions that pass are handed to the chain thread.
+ *
+ * <p>At most {@code blockCapacity} blocks and {@code txCapacity} transactions are pending at any
+ * time. A submission beyond that waits for room for up to the configured maximum wait, 0 by
+ * default, and then fails with a {@code RejectedExecutionException}.
+ */
+public class AsyncBlockHandler implements AutoCloseable {
+
+    /** signatures recorded ahead of blocks, beyond which the oldest are dropped */
+    public static final int SIGNATURE_CACHE_LIMIT = 100000;
+
+    private static final int BLOCK_PRIORITY = 0;
+    private static final int TX_PRIORITY = 1;
+    private static final int STOP_PRIORITY = 2;
+
+    /** Work for the chain thread, ordered by priority and then by submission */
+    private static class ChainTask implements Comparable<ChainTask> {
+        final int priority;
+        final long seq;
+        final Runnable run;
+
+        ChainTask(int priority, long seq, Runnable run) {
+            this.priority = priority;
+            this.seq = seq;
+            this.run = run;
+        }
+
+        public int compareTo(ChainTask other) {
+            if (priority != other.priority)
+                return Integer.compare(priority, other.priority);
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private final BlockChain blockChain;
+    private final BlockHandler blockHandler;
+    private final SignatureCache signatureCache = new SignatureCache(SIGNATURE_CACHE_LIMIT);
+
+    private final PriorityBlockingQueue<ChainTask> chainQueue = new PriorityBlockingQueue<>();
+    private final AtomicLong seq = new AtomicLong();
+    private final Thread chainThread;
+    private final ExecutorService txThreads;
+
+    private final int blockCapacity;
+    private final int txCapacity;
+    private final Semaphore blockPermits;
+    private final Semaphore txPermits;
+    private volatile long blockMaxWaitMillis;
+    private volatile long txMaxWaitMillis;
+    private volatile boolean closed;
+    /** Set by the chain thread once it takes the stop task, before it runs what is left */
+    private volatile boolean stopped;
+
+    /** UTXOPool of the max height block, republished by the chain thread after every change */
+    private volatile UTXOPool tipPool;
+
+    private final AtomicLong blocksRejected = new AtomicLong();
+    private final AtomicLong txsRejected = new AtomicLong();
+    private final AtomicLong txsInvalid = new AtomicLong();
+
+    /**
+     * Takes over {@code blockChain}, which must not be used directly while this handler is open,
+     * with {@code txThreads} threads checking transactions
+     */
+    public AsyncBlockHandler(BlockChain blockChain, int txThreads, int blockCapacity, int txCapacity) {
+        if (txThreads < 1 || blockCapacity < 1 || txCapacity < 1)
+            throw new IllegalArgumentException("threads and capacities must be positive");
+        this.blockChain = blockChain;
+        this.blockHandler = new BlockHandler(blockChain);
+        this.blockCapacity = blockCapacity;
+        this.txCapacity = txCapacity;
+        this.blockPermits = new Semaphore(blockCapacity);
+        this.txPermits = new Semaphore(txCapacity);
+        blockChain.setSignatureCache(signatureCache);
+        tipPool = blockChain.getMaxHeightUTXOPool();
+
+        this.txThreads = Executors.newFixedThreadPool(txThreads, r -> {
+            Thread t = new Thread(r, "tx-check");
+            t.setDaemon(true);
+            return t;
+        });
+        chainThread = new Thread(this::runChain, "block-chain");
+        chainThread.setDaemon(true);
+        chainThread.start();
+    }
+
+    /**
+     * Sets how long a submission may wait for room when the blocks or transactions already pending
+     * reach their capacity. 0 rejects it at once
+     */
+    public void setMaxWait(long blockMillis, long txMillis) {
+        if (blockMillis < 0 || txMillis < 0)
+            throw new IllegalArgumentException("wait must be non-negative");
+        this.blockMaxWaitMillis = blockMillis;
+        this.txMaxWaitMillis = txMillis;
+    }
+
+    /**
+     * @return a future of whether {@code block} was valid and added, see
+     *         {@link BlockHandler#processBlock}. A block whose stored hashes do not match its
+     *         contents is rejected
+     */
+    public CompletableFuture<Boolean> submitBlock(Block block) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (admit(blockPermits, blockMaxWaitMillis, blocksRejected, result))
+            enqueue(BLOCK_PRIORITY, blockPermits, result,
+                    () -> block.hashesValid() && blockHandler.processBlock(block));
+        return result;
+    }
+
+    /**
+     * @return a future of the block created over the max height block, or null if it could not be
+     *         added, see {@link BlockHandler#createBlock}. It counts as a pending block
+     */
+    public CompletableFuture<Block> submitCreateBlock(PublicKey myAddress) {
+        CompletableFuture<Block> result = new CompletableFuture<>();
+        if (admit(blockPermits, blockMaxWaitMillis, blocksRejected, result))
+            enqueue(BLOCK_PRIORITY, blockPermits, result, () -> blockHandler.createBlock(myAddress));
+        return result;
+    }
+
+    /**
+     * @return a future of whether {@code tx} passed its checks and was added to the transaction
+     *         pool. A transaction that spends outputs unknown to the max height block is added
+     *         without checking those inputs; the block that includes it validates them
+     */
+    public CompletableFuture<Boolean> submitTx(Transaction tx) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (!admit(txPermits, txMaxWaitMillis, txsRejected, result))
+            return result;
+        try {
+            txThreads.execute(() -> {
+                boolean valid;
+                try {
+                    valid = check(tx);
+                } catch (RuntimeException e) {
+                    txPermits.release();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (valid) {
+                    enqueue(TX_PRIORITY, txPermits, result, () -> {
+                        blockHandler.processTx(tx);
+                        return true;
+                    });
+                } else {
+                    txsInvalid.incrementAndGet();
+                    txPermits.release();
+                    result.complete(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            txPermits.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /** @return blocks and block creations submitted and not yet completed */
+    public int getPendingBlocks() {
+        return blockCapacity - blockPermits.availablePermits();
+    }
+
+    /** @return transactions submitted and not yet completed */
+    public int getPendingTxs() {
+        return txCapacity - txPermits.availablePermits();
+    }
+
+    /** @return number of block submissions rejected for lack of room */
+    public long getBlocksRejected() {
+        return blocksRejected.get();
+    }
+
+    /** @return number of transaction submissions rejected for lack of room */
+    public long getTxsRejected() {
+        return txsRejected.get();
+    }
+
+    /** @return number of transactions that failed their checks */
+    public long getTxsInvalid() {
+        return txsInvalid.get();
+    }
+
+    /**
+     * Stops accepting submissions, waits for the pending ones to complete and stops the threads.
+     * The block chain can be used directly again afterwards
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        txThreads.shutdown();
+        try {
+            txThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            chainQueue.add(new ChainTask(STOP_PRIORITY, seq.getAndIncrement(), null));
+            chainThread.join();
+            blockHandler.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes one of {@code permits}, waiting up to {@code maxWaitMillis} for it
+     *
+     * @return true if it was taken; otherwise {@code result} has failed
+     */
+    private boolean admit(Semaphore permits, long maxWaitMillis, AtomicLong rejected,
+            CompletableFuture<?> result) {
+        boolean admitted = false;
+        if (!closed) {
+            try {
+                admitted = maxWaitMillis == 0 ? permits.tryAcquire()
+                        : permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!admitted) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new RejectedExecutionException(
+                    closed ? "handler is closed" : "too many pending submissions"));
+        }
+        return admitted;
+    }
+
+    private interface ChainWork<T> {
+        T run();
+    }
+
+    /** Queues {@code work} for the chain thread, which completes {@code result} and frees a permit */
+    private <T> void enqueue(int priority, Semaphore permits, CompletableFuture<T> result, ChainWork<T> work) {
+        ChainTask task = new ChainTask(priority, seq.getAndIncrement(), () -> {
+            try {
+                result.complete(work.run());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                permits.release();
+            }
+        });
+        chainQueue.add(task);
+        // A submission admitted while closing can arrive after the chain thread's last poll;
+        // whoever removes the task from the queue first runs or fails it
+        if (stopped && chainQueue.remove(task)) {
+            permits.release();
+            result.completeExceptionally(new RejectedExecutionException("handler is closed"));
+        }
+    }
+
+    private void runChain() {
+        while (true) {
+            ChainTask task;
+            try {
+                task = chainQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task.run == null) {
+                stopped = true;
+                // Run whatever was admitted just before closing
+                while ((task = chainQueue.poll()) != null) {
+                    if (task.run != null)
+                        task.run.run();
+                }
+                return;
+            }
+            task.run.run();
+            tipPool = blockChain.getMaxHeightUTXOPool();
+        }
+    }
+
+    /**
+     * Checks what can be checked of {@code tx} off the chain thread: its hash, its output values,
+     * and the signatures of the inputs that spend outputs of the max height block
+     *
+     * @return false if {@code tx} can never be valid
+     */
+    private boolean check(Transaction tx) {
+        if (!tx.hashValid())
+            return false;
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0)
+                return false;
+        }
+        UTXOPool pool = tipPool;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            if (input.prevTxHash == null)
+                return false;
+            Transaction.Output prevOutput = pool.getTxOutput(input.prevTxHash, input.outputIndex);
+            if (prevOutput == null)
+                continue;
+            byte[] message = tx.getRawDataToSign(i);
+            if (!Crypto.verifySignature(prevOutput.address, message, input.signature))
+                return false;
+            signatureCache.add(prevOutput.address, message, input.signature);
+        }
+        return true;
+    }
+}
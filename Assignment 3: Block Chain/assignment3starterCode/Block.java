@@ -1,8 +1,10 @@
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Block {
 
@@ -13,6 +15,13 @@ public class Block {
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
 
+    /**
+     * number of leading zero bits the hash must have, or 0 for a block without proof of work. Such
+     * blocks are hashed exactly as before proof of work existed
+     */
+    private int targetBits;
+    private long nonce;
+
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
@@ -28,6 +37,10 @@ public class Block {
         return hash;
     }
 
+    public void setHash(byte[] h) {
+        hash = h;
+    }
+
     public byte[] getPrevBlockHash() {
         return prevBlockHash;
     }
@@ -44,6 +57,67 @@ public class Block {
         txs.add(tx);
     }
 
+    public int getTargetBits() {
+        return targetBits;
+    }
+
+    /**
+     * Requires the hash to have {@code targetBits} leading zero bits, or no proof of work if 0
+     *
+     * @throws IllegalArgumentException if {@code targetBits} is not in [0, 255]
+     */
+    public void setTargetBits(int targetBits) {
+        if (targetBits < 0 || targetBits > 255)
+            throw new IllegalArgumentException("target bits must be in [0, 255]");
+        this.targetBits = targetBits;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    public void setNonce(long nonce) {
+        this.nonce = nonce;
+    }
+
+    /**
+     * @return the bytes hashed before the nonce: the raw block, the raw coinbase, so that the work
+     *         commits to the miner's address, and the target bits as a 4 byte integer. The hash of a
+     *         block with proof of work is the SHA-256 of this prefix followed by the nonce as an 8
+     *         byte integer
+     */
+    public byte[] getHeaderPrefix() {
+        byte[] raw = getRawBlock();
+        byte[] rawCoinbase = coinbase.getRawTx();
+        byte[] prefix = Arrays.copyOf(raw, raw.length + rawCoinbase.length + 4);
+        System.arraycopy(rawCoinbase, 0, prefix, raw.length, rawCoinbase.length);
+        ByteBuffer.wrap(prefix, raw.length + rawCoinbase.length, 4).putInt(targetBits);
+        return prefix;
+    }
+
+    /**
+     * @return true if this block has no proof of work and {@code requiredBits} is 0, or if its hash is
+     *         correct, has at least {@code requiredBits} leading zero bits and meets its own target
+     */
+    public boolean hasProofOfWork(int requiredBits) {
+        if (targetBits < requiredBits)
+            return false;
+        if (targetBits == 0)
+            return true;
+        return hash != null && leadingZeroBits(hash) >= targetBits && Arrays.equals(hash, computeHash());
+    }
+
+    /** @return the number of leading zero bits of {@code hash} */
+    public static int leadingZeroBits(byte[] hash) {
+        int zeros = 0;
+        for (byte b : hash) {
+            if (b != 0)
+                return zeros + Integer.numberOfLeadingZeros(b & 0xFF) - 24;
+            zeros += 8;
+        }
+        return zeros;
+    }
+
     public byte[] getRawBlock() {
         ArrayList<Byte> rawBlock = new ArrayList<Byte>();
         if (prevBlockHash != null)
@@ -62,12 +136,47 @@ public class Block {
     }
 
     public void finalize() {
+        hash = computeHash();
+    }
+
+    /** @return the hash of the block as it is now, without storing it, see {@link #finalize} */
+    public byte[] computeHash() {
+        HashEvent event = new HashEvent();
+        event.begin();
+        byte[] raw = targetBits == 0 ? getRawBlock() : getHeaderPrefix();
+        byte[] hash = null;
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
+            md.update(raw);
+            if (targetBits != 0)
+                md.update(ByteBuffer.allocate(8).putLong(nonce).array());
             hash = md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = "block";
+            event.hash = ByteArrayWrapper.toHex(hash);
+            event.rawBytes = raw.length;
+            event.txCount = txs.size();
+            for (Transaction tx : txs)
+                event.inputCount += tx.numInputs();
+            event.commit();
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the stored hashes of this block and its transactions match their contents,
+     *         without changing them
+     */
+    public boolean hashesValid() {
+        if (!coinbase.hashValid())
+            return false;
+        for (Transaction tx : txs)
+            if (!tx.hashValid())
+                return false;
+        return Arrays.equals(hash, computeHash());
     }
 }
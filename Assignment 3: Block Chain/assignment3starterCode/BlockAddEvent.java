@@ -0,0 +1,43 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** JFR event emitted by {@code BlockChain.addBlock} for every block it is asked to add */
+@Name("chain.BlockAdd")
+@Label("Block Add")
+@Category({"Block Chain", "Block"})
+@Description("Validation of a block, split into its phases")
+public class BlockAddEvent extends jdk.jfr.Event {
+
+    @Label("Block Hash")
+    public String blockHash;
+
+    @Label("Transactions")
+    public int txCount;
+
+    @Label("Inputs")
+    public int inputCount;
+
+    @Label("Added")
+    public boolean added;
+
+    @Label("Parent Lookup")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lookupNanos;
+
+    @Label("UTXO Copy")
+    @Description("Time spent copying the parent UTXOPool into a new TxHandler")
+    @Timespan(Timespan.NANOSECONDS)
+    public long utxoCopyNanos;
+
+    @Label("Transaction Validation")
+    @Timespan(Timespan.NANOSECONDS)
+    public long validateNanos;
+
+    @Label("Apply")
+    @Description("Time spent adding the coinbase, the new node and pruning the transaction pool")
+    @Timespan(Timespan.NANOSECONDS)
+    public long applyNanos;
+}
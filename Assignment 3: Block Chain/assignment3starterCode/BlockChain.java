@@ -32,11 +32,26 @@ public class BlockChain {
     private Node maxHeightNode;
     private final TransactionPool transactionPool;
 
+    /** signatures verified ahead of {@link #addBlock}, or null */
+    private SignatureCache signatureCache;
+
+    /** leading zero bits required of the hash of every added block, or 0 for no proof of work */
+    private int targetBits;
+
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, false);
+    }
+
+    /**
+     * create an empty block chain with just a genesis block. If {@code addressIndex} is true, the
+     * UTXOPool of every block carries an {@link AddressIndex}, which is copied and updated along
+     * with the pool as blocks are added
+     */
+    public BlockChain(Block genesisBlock, boolean addressIndex) {
         // IMPLEMENT THIS
         this.nodeMap = new HashMap<>();
 
@@ -47,6 +62,8 @@ public class BlockChain {
         }
 
         UTXOPool utxoPool = new UTXOPool();
+        if (addressIndex)
+            utxoPool.enableAddressIndex();
         Transaction genesisCoinbaseTx = genesisBlock.getCoinbase();
         for (int id = 0; id < genesisCoinbaseTx.numOutputs(); ++id) {
             UTXO utxo = new UTXO(genesisCoinbaseTx.getHash(), id);
@@ -95,35 +112,52 @@ public class BlockChain {
      */
     public boolean addBlock(Block block) {
         // IMPLEMENT THIS
+        BlockAddEvent event = new BlockAddEvent();
+        event.begin();
+        boolean timed = event.isEnabled();
 
         // Verify Genesis Block
         if (block.getPrevBlockHash() == null) {
-            return false;
+            return record(event, block, false);
         }
 
         // Verify prevBlockHash
-        Node parentNode = null;
-        for (Node node : this.nodeMap.values()) {
-            if (new ByteArrayWrapper(block.getPrevBlockHash()).equals(new ByteArrayWrapper(node.block.getHash()))) {
-                parentNode = node;
-                break;
-            }
-        }
+        long t = timed ? System.nanoTime() : 0;
+        Node parentNode = this.nodeMap.get(new ByteArrayWrapper(block.getPrevBlockHash()));
+        if (timed)
+            event.lookupNanos = System.nanoTime() - t;
         if (parentNode == null) {
-            return false;
+            return record(event, block, false);
         }
 
         // Verify height condition
         if (this.maxHeightNode.height > parentNode.height + CUT_OFF_AGE) {
-            return false;
+            return record(event, block, false);
+        }
+
+        // Verify proof of work
+        if (this.targetBits > 0 && !block.hasProofOfWork(this.targetBits)) {
+            return record(event, block, false);
         }
 
         // Add transactions and verify accepted transactions
+        t = timed ? System.nanoTime() : 0;
         List<Transaction> possibleTxs = new ArrayList<>(block.getTransactions());
         TxHandler txHandler = new TxHandler(parentNode.utxoPool);
+        txHandler.setSignatureCache(this.signatureCache);
+        if (timed) {
+            long now = System.nanoTime();
+            event.utxoCopyNanos = now - t;
+            t = now;
+        }
         Transaction[] acceptedTxs = txHandler.handleTxs(possibleTxs.toArray(new Transaction[0]));
+        if (timed) {
+            long now = System.nanoTime();
+            event.validateNanos = now - t;
+            t = now;
+        }
         if (acceptedTxs.length != possibleTxs.size()) {
-            return false;
+            return record(event, block, false);
         }
 
         // Add the coinbase transaction of the block to
@@ -141,8 +175,24 @@ public class BlockChain {
         for (Transaction tx : acceptedTxs) {
             this.transactionPool.removeTransaction(tx.getHash());
         }
+        if (timed)
+            event.applyNanos = System.nanoTime() - t;
 
-        return true;
+        return record(event, block, true);
+    }
+
+    /** Commit {@code event} for {@code block} if it is being recorded, then return {@code added} */
+    private static boolean record(BlockAddEvent event, Block block, boolean added) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.blockHash = ByteArrayWrapper.toHex(block.getHash());
+            event.txCount = block.getTransactions().size();
+            for (Transaction tx : block.getTransactions())
+                event.inputCount += tx.numInputs();
+            event.added = added;
+            event.commit();
+        }
+        return added;
     }
 
     /** Add a new node to the tree */
@@ -163,6 +213,29 @@ public class BlockChain {
         }
     }
 
+    /**
+     * Let {@link #addBlock} skip input signatures found in {@code cache}, see
+     * {@link TxHandler#setSignatureCache}. Pass null to verify every signature again
+     */
+    public void setSignatureCache(SignatureCache cache) {
+        this.signatureCache = cache;
+    }
+
+    /** @return the leading zero bits required of added blocks, 0 if proof of work is off */
+    public int getTargetBits() {
+        return targetBits;
+    }
+
+    /**
+     * Require every block added from now on to have a proof of work with at least
+     * {@code targetBits} leading zero bits, see {@link Block#hasProofOfWork}. 0 turns it off
+     */
+    public void setTargetBits(int targetBits) {
+        if (targetBits < 0 || targetBits > 255)
+            throw new IllegalArgumentException("target bits must be in [0, 255]");
+        this.targetBits = targetBits;
+    }
+
     /** Add a transaction to the transaction pool */
     public void addTransaction(Transaction tx) {
         // IMPLEMENT THIS
@@ -1,9 +1,19 @@
 
 import java.security.PublicKey;
 
-public class BlockHandler {
+public class BlockHandler implements AutoCloseable {
+
+    /** nonces tried for a block by {@link #createBlock(PublicKey)}, as a multiple of the 2^targetBits expected */
+    public static final int MINING_EFFORT = 32;
+
     private BlockChain blockChain;
 
+    /** mines blocks when the block chain requires proof of work, created on first use if not set */
+    private Miner miner;
+
+    /** true if {@link #miner} was created here, and so is closed here */
+    private boolean ownsMiner;
+
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
         this.blockChain = blockChain;
@@ -20,8 +30,24 @@ public class BlockHandler {
         return blockChain.addBlock(block);
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * create a new {@code block} over the max height {@code block}, trying {@link #MINING_EFFORT}
+     * times the expected number of nonces if it needs proof of work
+     */
     public Block createBlock(PublicKey myAddress) {
+        int targetBits = blockChain.getTargetBits();
+        // 32 << 58 overflows
+        long maxAttempts = targetBits >= Long.SIZE - 6 ? Long.MAX_VALUE : (long) MINING_EFFORT << targetBits;
+        return createBlock(myAddress, maxAttempts);
+    }
+
+    /**
+     * create a new {@code block} over the max height {@code block}, trying at most
+     * {@code maxAttempts} nonces if it needs proof of work
+     *
+     * @return the block, or null if no nonce was found or it could not be added
+     */
+    public Block createBlock(PublicKey myAddress, long maxAttempts) {
         Block parent = blockChain.getMaxHeightBlock();
         byte[] parentHash = parent.getHash();
         Block current = new Block(parentHash, myAddress);
@@ -33,13 +59,39 @@ public class BlockHandler {
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
-        current.finalize();
+        current.setTargetBits(blockChain.getTargetBits());
+        if (current.getTargetBits() == 0) {
+            current.finalize();
+        } else {
+            if (miner == null) {
+                miner = new Miner(Runtime.getRuntime().availableProcessors());
+                ownsMiner = true;
+            }
+            if (!miner.mine(current, maxAttempts))
+                return null;
+        }
         if (blockChain.addBlock(current))
             return current;
         else
             return null;
     }
 
+    /** use {@code miner}, which stays the caller's to close, to mine the blocks created by {@link #createBlock} */
+    public void setMiner(Miner miner) {
+        if (ownsMiner)
+            this.miner.close();
+        this.miner = miner;
+        ownsMiner = false;
+    }
+
+    /** Stops the threads of the miner created by {@link #createBlock}, if any */
+    public void close() {
+        if (ownsMiner)
+            miner.close();
+        miner = null;
+        ownsMiner = false;
+    }
+
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
         blockChain.addTransaction(tx);
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of a block record in {@link WireFormat}, decoded in place over a
+ * {@code ByteBuffer}. The header is read directly. Transaction offsets are only computed the first
+ * time a transaction is accessed, and each transaction is itself a lazy {@link TxView}.
+ */
+public class BlockView {
+
+    private final ByteBuffer buf;
+
+    private final int prevHashOffset;
+
+    /** offset of the target bits and nonce, or -1 for a block without proof of work */
+    private final int powOffset;
+    private final int coinbaseOffset;
+    private final int txsHeader;
+
+    /** offsets of each transaction record, computed on first access */
+    private int[] txOffsets;
+
+    /** Creates a view of the record in the remaining bytes of {@code buf}, which is not modified */
+    public BlockView(ByteBuffer buf) {
+        this(buf, buf.position(), buf.remaining());
+    }
+
+    /** Creates a view of the {@code length} bytes record at {@code offset} in {@code buf} */
+    public BlockView(ByteBuffer buf, int offset, int length) {
+        this.buf = buf.slice(offset, length);
+        WireFormat.checkBlockVersion(this.buf.get(0));
+        prevHashOffset = WireFormat.skipBytes(this.buf, 1);
+        int headerEnd = WireFormat.skipBytes(this.buf, prevHashOffset);
+        if (this.buf.get(0) == WireFormat.VERSION_POW) {
+            powOffset = headerEnd;
+            headerEnd += 9;
+        } else {
+            powOffset = -1;
+        }
+        coinbaseOffset = headerEnd;
+        txsHeader = coinbaseOffset + 4 + this.buf.getInt(coinbaseOffset);
+    }
+
+    /** @return length in bytes of the record */
+    public int length() {
+        return buf.limit();
+    }
+
+    /** @return a copy of the block hash */
+    public byte[] getHash() {
+        return WireFormat.getBytes(buf, 1);
+    }
+
+    /** @return the block hash as a read-only view of the record, without copying */
+    public ByteBuffer hashBuffer() {
+        return WireFormat.sliceBytes(buf, 1);
+    }
+
+    public byte[] getPrevBlockHash() {
+        return WireFormat.getBytes(buf, prevHashOffset);
+    }
+
+    /** @return the target bits of the block, 0 if it has no proof of work */
+    public int getTargetBits() {
+        return powOffset < 0 ? 0 : buf.get(powOffset) & 0xFF;
+    }
+
+    public long getNonce() {
+        return powOffset < 0 ? 0 : buf.getLong(powOffset + 1);
+    }
+
+    public TxView getCoinbase() {
+        return new TxView(buf, coinbaseOffset + 4, buf.getInt(coinbaseOffset));
+    }
+
+    public int numTransactions() {
+        return buf.getInt(txsHeader);
+    }
+
+    public TxView getTransaction(int index) {
+        int offset = txOffset(index);
+        return new TxView(buf, offset + 4, buf.getInt(offset));
+    }
+
+    /** @return the record of transaction {@code index} as a read-only view of the record, without copying */
+    public ByteBuffer getTransactionRecord(int index) {
+        int offset = txOffset(index);
+        return buf.slice(offset + 4, buf.getInt(offset)).asReadOnlyBuffer();
+    }
+
+    /** Builds a {@link Block} from the record, with the hashes stored in it */
+    public Block toBlock() {
+        TxView coinbase = getCoinbase();
+        Block block = new Block(getPrevBlockHash(), coinbase.toTransaction().getOutput(0).address);
+        for (int i = 0; i < numTransactions(); i++)
+            block.addTransaction(getTransaction(i).toTransaction());
+        block.setTargetBits(getTargetBits());
+        block.setNonce(getNonce());
+        block.setHash(getHash());
+        return block;
+    }
+
+    private int txOffset(int index) {
+        if (txOffsets == null) {
+            int offset = txsHeader + 4;
+            // each transaction is at least its length
+            int[] offsets = new int[WireFormat.checkCount(buf, numTransactions(), offset, 4)];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = offset;
+                offset += 4 + buf.getInt(offset);
+            }
+            txOffsets = offsets;
+        }
+        return txOffsets[index];
+    }
+}
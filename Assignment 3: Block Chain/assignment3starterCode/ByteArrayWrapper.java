@@ -44,4 +44,21 @@ public class ByteArrayWrapper {
     public int hashCode() {
         return Arrays.hashCode(contents);
     }
+
+    /** @return the contents as a lowercase hex string */
+    public String toString() {
+        return toHex(contents);
+    }
+
+    /** @return {@code b} as a lowercase hex string, or null if {@code b} is null */
+    public static String toHex(byte[] b) {
+        if (b == null)
+            return null;
+        char[] hex = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            hex[2 * i] = Character.forDigit((b[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(b[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
 }
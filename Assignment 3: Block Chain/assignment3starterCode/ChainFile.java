@@ -0,0 +1,74 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A file of blocks, each stored as a {@code u32} length followed by a {@link WireFormat} block
+ * record. The first block is the genesis block.
+ */
+public class ChainFile implements Closeable {
+
+    private final DataInputStream in;
+
+    /** offset in the file of the next record */
+    private long offset;
+
+    /** Opens {@code path} for reading, positioned at the first block */
+    public ChainFile(String path) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+    }
+
+    /** Appends {@code block} to {@code out} as a length-prefixed record */
+    public static void write(DataOutputStream out, Block block) throws IOException {
+        byte[] record = WireFormat.encode(block);
+        out.writeInt(record.length);
+        out.write(record);
+    }
+
+    /** @return a view of the next block, or null at the end of the file */
+    public BlockView next() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        offset += 4 + length;
+        return new BlockView(ByteBuffer.wrap(record));
+    }
+
+    /** Skips the next block without decoding it. @return false at the end of the file */
+    public boolean skip() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        int skipped = 0;
+        while (skipped < length) {
+            int n = in.skipBytes(length - skipped);
+            if (n <= 0)
+                throw new EOFException("truncated block record");
+            skipped += n;
+        }
+        offset += 4 + length;
+        return true;
+    }
+
+    /** @return offset in the file just past the last block returned by {@link #next} */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,268 @@
+// Bulk import of a chain file (see ChainFile) into a BlockChain.
+//
+// Usage: java ChainImport <chain file> [threads] [checkpoint file]
+//
+// Blocks are read and decoded in order. Transaction hashes, block hashes and input signatures are
+// then checked in parallel up to WINDOW blocks ahead, and blocks are added to the chain in order
+// through BlockHandler.processBlock, which skips the signatures that were already verified.
+//
+// Every CHECKPOINT_INTERVAL blocks, and at the end, the number of blocks read, the file offset and
+// the hash of the last block read are written to the checkpoint file, followed by the numbers of
+// the blocks rejected so far. BlockChain only lives in memory, so a resumed import still replays
+// the file from the start. Blocks up to the checkpoint, except the rejected ones, are taken as
+// having valid signatures ("assume valid"), which skips the expensive part of the replay. If the
+// block at the checkpoint does not have the checkpointed hash and offset, the checkpoint is ignored.
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChainImport {
+    public static final int CHECKPOINT_INTERVAL = 1000;
+
+    /** blocks verified ahead of the block being added, per thread */
+    public static final int WINDOW = 8;
+
+    /** A decoded block and the result of checking it */
+    private static class Pending {
+        final Block block;
+        /** number of the block in the file, the genesis block being 1 */
+        final long number;
+        final long endOffset;
+        CompletableFuture<Boolean> hashesValid;
+
+        Pending(Block block, long number, long endOffset) {
+            this.block = block;
+            this.number = number;
+            this.endOffset = endOffset;
+        }
+    }
+
+    private final SignatureCache signatureCache = new SignatureCache();
+
+    /** addresses of the outputs read so far and not yet spent, to verify signatures ahead */
+    private final ConcurrentHashMap<UTXO, PublicKey> addresses = new ConcurrentHashMap<>();
+
+    private final AtomicLong sigVerifications = new AtomicLong();
+    private long blocksAdded;
+    private long blocksRejected;
+    private long txsAdded;
+
+    /** numbers of the blocks rejected so far */
+    private final List<Long> rejected = new ArrayList<>();
+
+    private final Path checkpoint;
+    private long assumeValidBlocks;
+
+    /** blocks up to the checkpoint that were rejected, whose signatures are verified anyway */
+    private final Set<Long> checkpointRejected = new HashSet<>();
+
+    /** Creates an importer that records its progress in {@code checkpoint}, which may be null */
+    public ChainImport(Path checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String chainFile = args[0];
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path checkpoint = args.length > 2 ? Paths.get(args[2]) : null;
+
+        ChainImport chainImport = new ChainImport(checkpoint);
+        chainImport.resume(chainFile);
+        long start = System.nanoTime();
+        chainImport.run(chainFile, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        chainImport.report(seconds);
+    }
+
+    /**
+     * Reads the checkpoint, if any, and checks that {@code chainFile} has the checkpointed block at
+     * the checkpointed offset. If so, the signatures of the blocks up to it that were not rejected
+     * are assumed valid
+     */
+    public void resume(String chainFile) throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint))
+            return;
+        String[] fields = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim().split(" ");
+        long blocks = Long.parseLong(fields[0]);
+        long offset = Long.parseLong(fields[1]);
+        String hash = fields[2];
+
+        try (ChainFile in = new ChainFile(chainFile)) {
+            for (long i = 1; i < blocks; i++)
+                if (!in.skip())
+                    break;
+            BlockView last = in.next();
+            if (last == null || in.getOffset() != offset || !ByteArrayWrapper.toHex(last.getHash()).equals(hash)) {
+                System.out.println("Checkpoint does not match " + chainFile + ", importing from scratch");
+                return;
+            }
+        }
+        assumeValidBlocks = blocks;
+        for (int i = 3; i < fields.length; i++)
+            checkpointRejected.add(Long.parseLong(fields[i]));
+        System.out.println("Resuming: signatures of the first " + blocks + " blocks assumed valid, except "
+                + checkpointRejected.size() + " rejected");
+    }
+
+    /** Imports every block of {@code chainFile}, checking blocks ahead on {@code threads} threads */
+    public BlockChain run(String chainFile, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (ChainFile in = new ChainFile(chainFile)) {
+            BlockView genesisView = in.next();
+            if (genesisView == null)
+                throw new IllegalArgumentException(chainFile + " has no genesis block");
+            Block genesis = genesisView.toBlock();
+            if (!genesis.hashesValid())
+                throw new IllegalArgumentException(chainFile + " has an invalid genesis block");
+            BlockChain blockChain = new BlockChain(genesis);
+            blockChain.setSignatureCache(signatureCache);
+            BlockHandler blockHandler = new BlockHandler(blockChain);
+            indexOutputs(genesis);
+            blocksAdded = 1;
+
+            long blocksRead = 1;
+            Block lastRead = genesis;
+            ArrayDeque<Pending> window = new ArrayDeque<>();
+            BlockView view;
+            while ((view = in.next()) != null) {
+                Pending pending = new Pending(view.toBlock(), ++blocksRead, in.getOffset());
+                lastRead = pending.block;
+                indexOutputs(pending.block);
+                boolean assumeValid = blocksRead <= assumeValidBlocks && !checkpointRejected.contains(blocksRead);
+                pending.hashesValid = CompletableFuture.supplyAsync(() -> check(pending.block, assumeValid), pool);
+                window.add(pending);
+                if (window.size() >= WINDOW * threads)
+                    add(blockHandler, window.poll());
+            }
+            while (!window.isEmpty())
+                add(blockHandler, window.poll());
+            writeCheckpoint(blocksRead, lastRead, in.getOffset());
+            return blockChain;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Adds {@code pending} to the chain once its check has finished */
+    private void add(BlockHandler blockHandler, Pending pending) throws IOException {
+        Block block = pending.block;
+        if (pending.hashesValid.join() && blockHandler.processBlock(block)) {
+            blocksAdded++;
+            txsAdded += block.getTransactions().size();
+            for (Transaction tx : block.getTransactions())
+                for (Transaction.Input in : tx.getInputs())
+                    addresses.remove(utxo(in));
+        } else {
+            blocksRejected++;
+            rejected.add(pending.number);
+            // signatures of a rejected block are never looked up again
+            for (Transaction tx : block.getTransactions()) {
+                for (int i = 0; i < tx.numInputs(); i++) {
+                    Transaction.Input in = tx.getInput(i);
+                    PublicKey address = in.prevTxHash == null ? null : addresses.get(utxo(in));
+                    if (address != null)
+                        signatureCache.remove(address, tx.getRawDataToSign(i), in.signature);
+                }
+            }
+        }
+
+        if (pending.number % CHECKPOINT_INTERVAL == 0)
+            writeCheckpoint(pending.number, block, pending.endOffset);
+    }
+
+    /**
+     * Recomputes the hashes of {@code block} and its transactions and verifies every input
+     * signature whose address is known, recording the valid ones in the signature cache. With
+     * {@code assumeValid}, signatures are recorded without being verified.
+     *
+     * @return true if every stored hash matches the recomputed one
+     */
+    private boolean check(Block block, boolean assumeValid) {
+        if (!block.hashesValid())
+            return false;
+        for (Transaction tx : block.getTransactions()) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input in = tx.getInput(i);
+                if (in.prevTxHash == null || in.signature == null)
+                    continue;
+                PublicKey address = addresses.get(utxo(in));
+                if (address == null)
+                    continue;
+                byte[] message = tx.getRawDataToSign(i);
+                if (!assumeValid) {
+                    sigVerifications.incrementAndGet();
+                    if (!Crypto.verifySignature(address, message, in.signature))
+                        continue;
+                }
+                signatureCache.add(address, message, in.signature);
+            }
+        }
+        return true;
+    }
+
+    private void indexOutputs(Block block) {
+        indexOutputs(block.getCoinbase());
+        for (Transaction tx : block.getTransactions())
+            indexOutputs(tx);
+    }
+
+    private void indexOutputs(Transaction tx) {
+        for (int i = 0; i < tx.numOutputs(); i++)
+            addresses.put(new UTXO(tx.getHash(), i), tx.getOutput(i).address);
+    }
+
+    private static UTXO utxo(Transaction.Input in) {
+        return new UTXO(in.prevTxHash, in.outputIndex);
+    }
+
+    /**
+     * Atomically replaces the checkpoint with "blocks offset hash rejected...", for {@code block},
+     * block number {@code blocks} of the file, which ends at {@code offset}
+     */
+    private void writeCheckpoint(long blocks, Block block, long offset) throws IOException {
+        if (checkpoint == null || blocks < assumeValidBlocks)
+            return;
+        StringBuilder line = new StringBuilder();
+        line.append(blocks).append(' ').append(offset).append(' ').append(ByteArrayWrapper.toHex(block.getHash()));
+        for (long number : rejected)
+            line.append(' ').append(number);
+        line.append('\n');
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(tmp, line.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void report(double seconds) {
+        long peakHeap = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (MemoryPoolMXBean pool : pools)
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+
+        System.out.printf("blocks added:          %d (%d rejected)%n", blocksAdded, blocksRejected);
+        System.out.printf("transactions:          %d%n", txsAdded);
+        System.out.printf("elapsed:               %.2f s%n", seconds);
+        System.out.printf("blocks/s:              %.1f%n", blocksAdded / seconds);
+        System.out.printf("tx/s:                  %.1f%n", txsAdded / seconds);
+        System.out.printf("signature verif./s:    %.1f%n", sigVerifications.get() / seconds);
+        System.out.printf("peak heap:             %.1f MB%n", peakHeap / (1024.0 * 1024.0));
+    }
+}
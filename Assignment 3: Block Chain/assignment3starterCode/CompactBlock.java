@@ -0,0 +1,247 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A block with its transactions replaced by short ids, for nodes that already hold most of them in
+ * their {@link TransactionPool}. Only the header fields and the coinbase are kept in full.
+ *
+ * <p>A short id is the SipHash-2-4 of the transaction hash truncated to 48 bits, keyed with the
+ * SHA-256 of the block hash and a salt chosen by the sender. The key changes with every block, so
+ * transactions cannot be made to collide in advance. A collision that happens anyway makes the
+ * rebuilt block fail its hash check, and the full block has to be fetched instead.
+ */
+public class CompactBlock {
+
+    public static final int SHORT_ID_BYTES = 6;
+    private static final long SHORT_ID_MASK = (1L << 8 * SHORT_ID_BYTES) - 1;
+
+    private final byte[] hash;
+    private final byte[] prevBlockHash;
+    private final int targetBits;
+    private final long nonce;
+    private final Transaction coinbase;
+    private final long salt;
+    private final long[] shortIds;
+
+    /* SipHash key */
+    private final long k0;
+    private final long k1;
+
+    /** Creates the compact form of the finalized {@code block}, with short ids salted by {@code salt} */
+    public CompactBlock(Block block, long salt) {
+        this(block.getHash(), block.getPrevBlockHash(), block.getTargetBits(), block.getNonce(),
+                block.getCoinbase(), salt, new long[block.getTransactions().size()]);
+        for (int i = 0; i < shortIds.length; i++)
+            shortIds[i] = shortId(block.getTransaction(i).getHash());
+    }
+
+    private CompactBlock(byte[] hash, byte[] prevBlockHash, int targetBits, long nonce, Transaction coinbase,
+            long salt, long[] shortIds) {
+        if (hash == null)
+            throw new IllegalArgumentException("block must be finalized");
+        this.hash = hash;
+        this.prevBlockHash = prevBlockHash;
+        this.targetBits = targetBits;
+        this.nonce = nonce;
+        this.coinbase = coinbase;
+        this.salt = salt;
+        this.shortIds = shortIds;
+
+        byte[] key;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(hash);
+            md.update(ByteBuffer.allocate(8).putLong(salt).array());
+            key = md.digest();
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+        k0 = getLongLE(key, 0);
+        k1 = getLongLE(key, 8);
+    }
+
+    /** Decodes a compact block record, see {@link WireFormat#encode(CompactBlock)} */
+    public static CompactBlock decode(ByteBuffer buf) {
+        ByteBuffer b = buf.slice();
+        if (b.get(0) != WireFormat.VERSION_COMPACT)
+            throw new IllegalArgumentException("unsupported compact block version " + b.get(0));
+        byte[] hash = WireFormat.getBytes(b, 1);
+        int offset = WireFormat.skipBytes(b, 1);
+        byte[] prevBlockHash = WireFormat.getBytes(b, offset);
+        offset = WireFormat.skipBytes(b, offset);
+        int targetBits = b.get(offset) & 0xFF;
+        long nonce = b.getLong(offset + 1);
+        long salt = b.getLong(offset + 9);
+        offset += 17;
+        int coinbaseLength = b.getInt(offset);
+        Transaction coinbase = new TxView(b, offset + 4, coinbaseLength).toTransaction();
+        offset += 4 + coinbaseLength;
+        int numTxs = b.getInt(offset);
+        offset += 4;
+        if (numTxs < 0 || (long) numTxs * SHORT_ID_BYTES > b.limit() - offset)
+            throw new IllegalArgumentException("truncated compact block record");
+        long[] shortIds = new long[numTxs];
+        for (int i = 0; i < numTxs; i++, offset += SHORT_ID_BYTES)
+            shortIds[i] = (b.getShort(offset) & 0xFFFFL) << 32 | (b.getInt(offset + 2) & 0xFFFFFFFFL);
+        return new CompactBlock(hash, prevBlockHash, targetBits, nonce, coinbase, salt, shortIds);
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public byte[] getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    public int getTargetBits() {
+        return targetBits;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    public Transaction getCoinbase() {
+        return coinbase;
+    }
+
+    public long getSalt() {
+        return salt;
+    }
+
+    /** @return number of transactions, coinbase excluded */
+    public int numTransactions() {
+        return shortIds.length;
+    }
+
+    public long getShortId(int index) {
+        return shortIds[index];
+    }
+
+    /** @return the short id of the transaction {@code txHash} in this block */
+    public long shortId(byte[] txHash) {
+        return sipHash(k0, k1, txHash) & SHORT_ID_MASK;
+    }
+
+    /**
+     * Starts rebuilding the block from the transactions of {@code pool}. Short ids that match no
+     * transaction, or more than one, are left missing
+     */
+    public Reconstruction reconstruct(TransactionPool pool) {
+        Map<Long, Transaction> byShortId = new HashMap<>();
+        Set<Long> ambiguous = new HashSet<>();
+        for (Transaction tx : pool.getTransactions()) {
+            Long id = shortId(tx.getHash());
+            if (byShortId.putIfAbsent(id, tx) != null)
+                ambiguous.add(id);
+        }
+        Reconstruction reconstruction = new Reconstruction();
+        for (int i = 0; i < shortIds.length; i++) {
+            Long id = shortIds[i];
+            if (!ambiguous.contains(id))
+                reconstruction.fill(i, byShortId.get(id));
+        }
+        return reconstruction;
+    }
+
+    /** A block being rebuilt from a compact block and the transactions found for it */
+    public class Reconstruction {
+        private final Transaction[] txs = new Transaction[shortIds.length];
+        private int missing = shortIds.length;
+
+        /** @return indexes of the transactions still missing, in increasing order */
+        public int[] getMissing() {
+            int[] indexes = new int[missing];
+            for (int i = 0, j = 0; i < txs.length; i++)
+                if (txs[i] == null)
+                    indexes[j++] = i;
+            return indexes;
+        }
+
+        public boolean isComplete() {
+            return missing == 0;
+        }
+
+        /**
+         * Sets transaction {@code index} to {@code tx}
+         *
+         * @return false if {@code tx} is null or does not have the short id of that index
+         */
+        public boolean fill(int index, Transaction tx) {
+            if (tx == null || shortId(tx.getHash()) != shortIds[index])
+                return false;
+            if (txs[index] == null)
+                missing--;
+            txs[index] = tx;
+            return true;
+        }
+
+        /**
+         * @return the rebuilt and finalized block, or null if transactions are missing or it does
+         *         not have the hash of the compact block
+         */
+        public Block toBlock() {
+            if (missing > 0)
+                return null;
+            Block block = new Block(prevBlockHash, coinbase.getOutput(0).address);
+            for (Transaction tx : txs)
+                block.addTransaction(tx);
+            block.setTargetBits(targetBits);
+            block.setNonce(nonce);
+            block.finalize();
+            return Arrays.equals(hash, block.getHash()) ? block : null;
+        }
+    }
+
+    /** SipHash-2-4 of {@code data} with the key {@code k0, k1} */
+    static long sipHash(long k0, long k1, byte[] data) {
+        long[] v = {0x736f6d6570736575L ^ k0, 0x646f72616e646f6dL ^ k1, 0x6c7967656e657261L ^ k0,
+            0x7465646279746573L ^ k1};
+        int end = data.length & ~7;
+        for (int i = 0; i < end; i += 8) {
+            long m = getLongLE(data, i);
+            v[3] ^= m;
+            sipRound(v);
+            sipRound(v);
+            v[0] ^= m;
+        }
+        long last = (long) data.length << 56;
+        for (int i = end; i < data.length; i++)
+            last |= (data[i] & 0xFFL) << 8 * (i - end);
+        v[3] ^= last;
+        sipRound(v);
+        sipRound(v);
+        v[0] ^= last;
+        v[2] ^= 0xFF;
+        for (int i = 0; i < 4; i++)
+            sipRound(v);
+        return v[0] ^ v[1] ^ v[2] ^ v[3];
+    }
+
+    private static void sipRound(long[] v) {
+        v[0] += v[1];
+        v[1] = Long.rotateLeft(v[1], 13) ^ v[0];
+        v[0] = Long.rotateLeft(v[0], 32);
+        v[2] += v[3];
+        v[3] = Long.rotateLeft(v[3], 16) ^ v[2];
+        v[0] += v[3];
+        v[3] = Long.rotateLeft(v[3], 21) ^ v[0];
+        v[2] += v[1];
+        v[1] = Long.rotateLeft(v[1], 17) ^ v[2];
+        v[2] = Long.rotateLeft(v[2], 32);
+    }
+
+    private static long getLongLE(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--)
+            value = value << 8 | (b[offset + i] & 0xFF);
+        return value;
+    }
+}
@@ -8,14 +8,17 @@ public class Crypto {
 
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
-     *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         key {@code pubKey}. Internally, this uses the RSA or Ed25519 signature depending on
+     *         the {@link SignatureScheme} of {@code pubKey}, but the student does not have to deal
+     *         with any of the implementation details of the specific signature algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
         Signature sig = null;
         try {
-            sig = Signature.getInstance("SHA256withRSA");
+            sig = Signature.getInstance(SignatureScheme.of(pubKey).algorithm);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return false;
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,28 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event emitted by {@code Transaction.finalize} and {@code Block.finalize} */
+@Name("chain.Hash")
+@Label("Hash")
+@Category({"Block Chain", "Hashing"})
+@Description("Serialization and SHA-256 hashing of a transaction or a block")
+public class HashEvent extends jdk.jfr.Event {
+
+    /** either "transaction" or "block" */
+    @Label("Kind")
+    public String kind;
+
+    @Label("Hash")
+    public String hash;
+
+    @Label("Raw Bytes")
+    public int rawBytes;
+
+    @Label("Transactions")
+    public int txCount;
+
+    @Label("Inputs")
+    public int inputCount;
+}
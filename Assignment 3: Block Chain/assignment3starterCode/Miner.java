@@ -0,0 +1,171 @@
+// Proof-of-work miner for blocks with target bits (see Block#setTargetBits).
+//
+// Usage: java Miner [threads] [target bits] [seconds]
+//
+// Without arguments, mines blocks at 20 target bits on every core for 10 seconds and reports the
+// attempts per second, in total and per thread.
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Miner implements AutoCloseable {
+
+    /** attempts between two checks of whether another thread found a nonce */
+    private static final int CHECK_INTERVAL = 4096;
+
+    private final int threads;
+    private final ExecutorService pool;
+
+    /** set once any thread finds a nonce, so that the others stop */
+    private volatile boolean found;
+
+    private long lastAttempts;
+    private long lastNanos;
+    private long totalAttempts;
+    private long totalNanos;
+
+    /** Creates a miner that splits the nonce space across {@code threads} daemon threads */
+    public Miner(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("a miner needs at least one thread");
+        this.threads = threads;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "miner");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Searches for a nonce that gives {@code block} at least {@code block.getTargetBits()} leading
+     * zero bits, trying at most {@code maxAttempts} nonces. Thread t of n tries nonces t, t + n,
+     * t + 2n, and so on. On success the nonce is set and the block is finalized
+     *
+     * @return true if a nonce was found
+     * @throws RuntimeException the failure of a mining thread, rethrown
+     */
+    public boolean mine(Block block, long maxAttempts) {
+        int targetBits = block.getTargetBits();
+        if (targetBits == 0) {
+            block.finalize();
+            return true;
+        }
+        Sha256Midstate prefix = new Sha256Midstate(block.getHeaderPrefix());
+        found = false;
+        long start = System.nanoTime();
+        List<Callable<long[]>> tasks = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            long first = t;
+            long limit = maxAttempts / threads + (t < maxAttempts % threads ? 1 : 0);
+            tasks.add(() -> search(new Sha256Midstate(prefix), targetBits, first, limit));
+        }
+
+        long attempts = 0;
+        long nonce = 0;
+        boolean success = false;
+        try {
+            for (Future<long[]> f : pool.invokeAll(tasks)) {
+                long[] result = f.get();
+                attempts += result[0];
+                if (result[1] != 0 && !success) {
+                    success = true;
+                    nonce = result[2];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // search throws no checked exception
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw (RuntimeException) e.getCause();
+        }
+        lastNanos = System.nanoTime() - start;
+        lastAttempts = attempts;
+        totalAttempts += attempts;
+        totalNanos += lastNanos;
+
+        if (success) {
+            block.setNonce(nonce);
+            block.finalize();
+        }
+        return success;
+    }
+
+    /** @return {attempts, 1 if found else 0, nonce} */
+    private long[] search(Sha256Midstate midstate, int targetBits, long nonce, long limit) {
+        long attempts = 0;
+        while (attempts < limit) {
+            long batchEnd = Math.min(limit, attempts + CHECK_INTERVAL);
+            for (; attempts < batchEnd; attempts++, nonce += threads) {
+                if (midstate.leadingZeroBits(nonce) >= targetBits) {
+                    found = true;
+                    return new long[] {attempts + 1, 1, nonce};
+                }
+            }
+            if (found)
+                break;
+        }
+        return new long[] {attempts, 0, 0};
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** @return nonces tried in the last call to {@link #mine} */
+    public long getLastAttempts() {
+        return lastAttempts;
+    }
+
+    /** @return attempts per second over every call to {@link #mine} */
+    public double getAttemptsPerSecond() {
+        return totalNanos == 0 ? 0 : totalAttempts * 1e9 / totalNanos;
+    }
+
+    /** @return attempts per second and thread over every call to {@link #mine} */
+    public double getAttemptsPerSecondPerThread() {
+        return getAttemptsPerSecond() / threads;
+    }
+
+    /** Stops the mining threads */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    public String toString() {
+        return String.format("Miner[threads=%d, attempts=%d, attempts/s=%.0f, per thread=%.0f]", threads,
+                totalAttempts, getAttemptsPerSecond(), getAttemptsPerSecondPerThread());
+    }
+
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int targetBits = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
+        byte[] prevHash = new byte[32];
+        int blocks = 0;
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        try (Miner miner = new Miner(threads)) {
+            while (System.nanoTime() < deadline) {
+                Block block = new Block(prevHash, generator.generateKeyPair().getPublic());
+                block.setTargetBits(targetBits);
+                if (!miner.mine(block, Long.MAX_VALUE))
+                    break;
+                if (!block.hasProofOfWork(targetBits))
+                    throw new IllegalStateException("mined block does not meet its target");
+                prevHash = block.getHash();
+                blocks++;
+            }
+            System.out.printf("%d blocks at %d target bits, %s%n", blocks, targetBits, miner);
+        }
+    }
+}
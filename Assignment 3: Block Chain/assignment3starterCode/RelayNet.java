@@ -0,0 +1,257 @@
+// Propagation test of RelayNode over loopback TCP.
+//
+// Usage: java RelayNet [nodes] [topology] [blocks] [txs per block] [compact|full]
+//
+// Starts the nodes in one process, each with its own BlockChain over a shared genesis block, and
+// connects them as a "ring", a "line", "full" mesh, or, given a number k, with every node connected
+// to k random earlier nodes. Then, for each block, submits the transactions to random nodes, has a
+// random node create a block and waits until every node has added it. The transactions split
+// coinbase outputs of earlier blocks in two. Blocks are relayed as compact blocks unless "full" is
+// given.
+//
+// Reports percentiles of the time from a block or transaction being added at its first node to
+// being added at each other node, of the time for a block to reach every node, and the traffic.
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class RelayNet {
+
+    /** longest wait for a block to reach every node */
+    public static final long BLOCK_TIMEOUT_MILLIS = 10000;
+
+    /** An output the test can spend, and the key it is paid to */
+    private static class Spendable {
+        final byte[] txHash;
+        final int index;
+        final double value;
+        final KeyPair key;
+
+        Spendable(byte[] txHash, int index, double value, KeyPair key) {
+            this.txHash = txHash;
+            this.index = index;
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    /** Records when each item is first added and how long it takes to reach the other nodes */
+    private static class Recorder implements RelayNode.Listener {
+        final ConcurrentHashMap<ByteArrayWrapper, Long> firstAdded = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<ByteArrayWrapper, Integer> reached = new ConcurrentHashMap<>();
+        final List<Long> blockNanos = new ArrayList<>();
+        final List<Long> txNanos = new ArrayList<>();
+        final List<Long> blockAllNanos = new ArrayList<>();
+        final int nodes;
+
+        Recorder(int nodes) {
+            this.nodes = nodes;
+        }
+
+        public void blockAdded(RelayNode node, Block block, long nanos) {
+            ByteArrayWrapper id = new ByteArrayWrapper(block.getHash());
+            long latency = record(id, nanos, blockNanos);
+            if (reached.merge(id, 1, Integer::sum) == nodes) {
+                synchronized (this) {
+                    blockAllNanos.add(latency);
+                    notifyAll();
+                }
+            }
+        }
+
+        public void txAdded(RelayNode node, Transaction tx, long nanos) {
+            record(new ByteArrayWrapper(tx.getHash()), nanos, txNanos);
+        }
+
+        private long record(ByteArrayWrapper id, long nanos, List<Long> latencies) {
+            Long first = firstAdded.putIfAbsent(id, nanos);
+            if (first == null)
+                return 0;
+            synchronized (this) {
+                latencies.add(nanos - first);
+            }
+            return nanos - first;
+        }
+
+        synchronized boolean awaitAll(byte[] blockHash, long timeoutMillis) throws InterruptedException {
+            ByteArrayWrapper id = new ByteArrayWrapper(blockHash);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (reached.getOrDefault(id, 0) < nodes) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        String topology = args.length > 1 ? args[1] : "2";
+        int numBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int txsPerBlock = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        boolean compact = args.length <= 4 || !args[4].equals("full");
+        if (n < 2)
+            throw new IllegalArgumentException("at least two nodes are needed");
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
+        Random random = new Random(42);
+        Block genesis = new Block(null, generator.generateKeyPair().getPublic());
+        genesis.finalize();
+
+        Recorder recorder = new Recorder(n);
+        RelayNode[] nodes = new RelayNode[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                nodes[i] = new RelayNode(new BlockChain(genesis), "relay-" + i);
+                nodes[i].setListener(recorder);
+                nodes[i].setCompactBlocks(compact);
+            }
+            int links = connect(nodes, topology, random);
+            System.out.printf("%d nodes, %s topology, %d links, %s blocks%n", n, topology, links,
+                    compact ? "compact" : "full");
+
+            ArrayDeque<Spendable> spendable = new ArrayDeque<>();
+            int blocksTimedOut = 0;
+            int txsSubmitted = 0;
+            long start = System.nanoTime();
+            for (int b = 0; b < numBlocks; b++) {
+                for (int t = 0; t < txsPerBlock && !spendable.isEmpty(); t++) {
+                    nodes[random.nextInt(n)].submitTx(split(spendable));
+                    txsSubmitted++;
+                }
+                KeyPair miner = generator.generateKeyPair();
+                Block block = nodes[random.nextInt(n)].createBlock(miner.getPublic()).get();
+                if (block == null)
+                    throw new IllegalStateException("block " + b + " could not be created");
+                if (!recorder.awaitAll(block.getHash(), BLOCK_TIMEOUT_MILLIS))
+                    blocksTimedOut++;
+                Transaction coinbase = block.getCoinbase();
+                spendable.add(new Spendable(coinbase.getHash(), 0, coinbase.getOutput(0).value, miner));
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%d blocks (%d timed out), %d txs in %.2f s%n", numBlocks, blocksTimedOut,
+                    txsSubmitted, seconds);
+            synchronized (recorder) {
+                report("block to a node", recorder.blockNanos);
+                report("block to all   ", recorder.blockAllNanos);
+                report("tx to a node   ", recorder.txNanos);
+            }
+        } finally {
+            for (RelayNode node : nodes)
+                if (node != null)
+                    node.close();
+        }
+        long messages = 0;
+        long bytes = 0;
+        long dropped = 0;
+        long reconstructed = 0;
+        long txsFetched = 0;
+        long fullBlocks = 0;
+        for (RelayNode node : nodes) {
+            messages += node.getMessagesSent();
+            bytes += node.getBytesSent();
+            dropped += node.getPeersDropped();
+            reconstructed += node.getBlocksReconstructed();
+            txsFetched += node.getBlockTxsFetched();
+            fullBlocks += node.getFullBlocksFetched();
+        }
+        System.out.printf("traffic: %d messages, %.2f MB, %d peers dropped%n", messages, bytes / 1e6, dropped);
+        System.out.printf("blocks: %d rebuilt from compact blocks with %d txs fetched, %d fetched in full%n",
+                reconstructed, txsFetched, fullBlocks);
+    }
+
+    /** @return the number of connections made */
+    private static int connect(RelayNode[] nodes, String topology, Random random) throws Exception {
+        int n = nodes.length;
+        int links = 0;
+        switch (topology) {
+            case "line":
+            case "ring":
+                for (int i = 1; i < n; i++, links++)
+                    nodes[i].connect(nodes[i - 1]);
+                if (topology.equals("ring") && n > 2) {
+                    nodes[0].connect(nodes[n - 1]);
+                    links++;
+                }
+                break;
+            case "full":
+                for (int i = 1; i < n; i++)
+                    for (int j = 0; j < i; j++, links++)
+                        nodes[i].connect(nodes[j]);
+                break;
+            default:
+                int k = Integer.parseInt(topology);
+                if (k < 1)
+                    throw new IllegalArgumentException("unknown topology " + topology);
+                for (int i = 1; i < n; i++) {
+                    List<Integer> earlier = new ArrayList<>();
+                    for (int j = 0; j < i; j++)
+                        earlier.add(j);
+                    Collections.shuffle(earlier, random);
+                    for (int j = 0; j < Math.min(k, i); j++, links++)
+                        nodes[i].connect(nodes[earlier.get(j)]);
+                }
+        }
+        // Wait for the accepting side of each connection to register it
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            int ends = 0;
+            for (RelayNode node : nodes)
+                ends += node.getPeerCount();
+            if (ends == 2 * links)
+                break;
+            Thread.sleep(1);
+        }
+        return links;
+    }
+
+    /** @return a signed transaction that splits the oldest spendable output in two */
+    private static Transaction split(ArrayDeque<Spendable> spendable) throws GeneralSecurityException {
+        Spendable in = spendable.poll();
+        Transaction tx = new Transaction();
+        tx.addInput(in.txHash, in.index);
+        tx.addOutput(in.value / 2, in.key.getPublic());
+        tx.addOutput(in.value / 2, in.key.getPublic());
+        Signature signature = Signature.getInstance("Ed25519");
+        signature.initSign(in.key.getPrivate());
+        signature.update(tx.getRawDataToSign(0));
+        tx.addSignature(signature.sign(), 0);
+        tx.finalize();
+        spendable.add(new Spendable(tx.getHash(), 0, in.value / 2, in.key));
+        spendable.add(new Spendable(tx.getHash(), 1, in.value / 2, in.key));
+        return tx;
+    }
+
+    private static void report(String what, List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            System.out.printf("%s: none%n", what);
+            return;
+        }
+        long[] sorted = new long[nanos.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = nanos.get(i);
+        Arrays.sort(sorted);
+        System.out.printf("%s: n=%d p50=%.3f p90=%.3f p99=%.3f max=%.3f ms%n", what, sorted.length,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    /** @return the {@code p}th percentile of {@code sorted}, in milliseconds */
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,1014 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A node that keeps a {@link BlockChain} and relays blocks and transactions to its peers over TCP
+ * on the loopback interface. Everything, the chain included, runs on one thread around a
+ * non-blocking {@link Selector}.
+ *
+ * <p>New items are announced by hash. A peer that does not have an item asks for it, and items are
+ * only relayed on once they are accepted: blocks once they are added to the chain, transactions
+ * once their hash and the signatures of the inputs this node can resolve are checked. Those
+ * signatures are cached, so a block of relayed transactions is validated without verifying them
+ * again. Announcements are batched per peer and sent once per turn of the loop. Each peer has a
+ * send queue, and a peer with more than {@link #MAX_QUEUED_BYTES} queued is disconnected. Blocks
+ * whose parent is unknown are kept for {@link #ORPHAN_EXPIRY_MILLIS}, and the oldest is dropped
+ * when there are more than {@link #MAX_ORPHANS}; a dropped orphan can be fetched again later. An
+ * item asked for is asked of another peer that announces it once the first answers that it does
+ * not have it, or after {@link #REQUEST_TIMEOUT_MILLIS}.
+ *
+ * <p>Blocks are asked for as {@link CompactBlock}s, unless turned off with
+ * {@link #setCompactBlocks}. The block is rebuilt from the transaction pool, only the missing
+ * transactions are fetched, and the full block only if the rebuilt one does not match its hash.
+ *
+ * <pre>
+ * message:     length u32 (of type and payload), type u8, payload
+ * inv:         kind u8 (1 = block, 2 = transaction), count u32, count times hash bytes16
+ * getdata:     as inv, for the items wanted, with kind 3 asking for blocks in compact form
+ * block:       WireFormat block record
+ * tx:          WireFormat transaction record
+ * cmpctblock:  WireFormat compact block record
+ * getblocktxn: block hash bytes16, count u32, count times transaction index u32
+ * blocktxn:    block hash bytes16, count u32, count times (index u32, txLength u32, transaction)
+ * notfound:    as getdata, for the items asked for that the node does not have
+ * </pre>
+ */
+public class RelayNode implements AutoCloseable {
+
+    public static final int MAX_MESSAGE_BYTES = 32 << 20;
+    public static final long MAX_QUEUED_BYTES = 64L << 20;
+
+    /** blocks whose parent is not known yet that are kept until it arrives */
+    public static final int MAX_ORPHANS = 100;
+    public static final long ORPHAN_EXPIRY_MILLIS = 60000;
+
+    /** how long a peer has to send an item asked of it */
+    public static final long REQUEST_TIMEOUT_MILLIS = 10000;
+
+    /** items rejected or not yet accepted that are remembered, beyond which the oldest are forgotten */
+    private static final int SEEN_LIMIT = 100000;
+
+    /** longest wait in the selector between checks for expired items */
+    private static final long EXPIRY_CHECK_MILLIS = 1000;
+
+    /** hashes remembered as known to a peer, beyond which the set is cleared */
+    private static final int KNOWN_LIMIT = 100000;
+
+    static final byte MSG_INV = 1;
+    static final byte MSG_GETDATA = 2;
+    static final byte MSG_BLOCK = 3;
+    static final byte MSG_TX = 4;
+    static final byte MSG_CMPCTBLOCK = 5;
+    static final byte MSG_GETBLOCKTXN = 6;
+    static final byte MSG_BLOCKTXN = 7;
+    static final byte MSG_NOTFOUND = 8;
+
+    static final byte ITEM_BLOCK = 1;
+    static final byte ITEM_TX = 2;
+    static final byte ITEM_COMPACT_BLOCK = 3;
+
+    /** Called on the node thread; must not block it */
+    public interface Listener {
+        /** {@code block} was added to the chain of {@code node} at {@code nanos}, see System.nanoTime */
+        void blockAdded(RelayNode node, Block block, long nanos);
+
+        /** {@code tx} was added to the transaction pool of {@code node} at {@code nanos} */
+        void txAdded(RelayNode node, Transaction tx, long nanos);
+    }
+
+    /** A connection to another node */
+    private static class Peer {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long queuedBytes;
+
+        /** items the peer announced, asked for or was sent */
+        final Set<ByteArrayWrapper> known = new HashSet<>();
+        final List<byte[]> blockInv = new ArrayList<>();
+        final List<byte[]> txInv = new ArrayList<>();
+
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** An item asked of a peer, and the other peers that announced it */
+    private static class Request {
+        final byte[] hash;
+        /** kind of item asked for, compact or full for blocks */
+        byte kind;
+        Peer peer;
+        long sent;
+        final ArrayDeque<Peer> others = new ArrayDeque<>();
+
+        Request(byte[] hash, byte kind) {
+            this.hash = hash;
+            this.kind = kind;
+        }
+    }
+
+    /** A block whose parent is not known yet */
+    private static class Orphan {
+        final ByteArrayWrapper parent;
+        final byte[] record;
+        final long received;
+
+        Orphan(ByteArrayWrapper parent, byte[] record, long received) {
+            this.parent = parent;
+            this.record = record;
+            this.received = received;
+        }
+    }
+
+    private final BlockChain blockChain;
+    private final BlockHandler blockHandler;
+
+    /** signatures of transactions verified on arrival, so that their block does not wait on them */
+    private final SignatureCache signatureCache = new SignatureCache(AsyncBlockHandler.SIGNATURE_CACHE_LIMIT);
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<Peer> peers = new ArrayList<>();
+
+    /** records of the blocks in the chain, parents first */
+    private final LinkedHashMap<ByteArrayWrapper, byte[]> blocks = new LinkedHashMap<>();
+
+    /** compact records of the blocks in the chain */
+    private final Map<ByteArrayWrapper, byte[]> compactBlocks = new HashMap<>();
+
+    /** records of the transactions received and not yet in a block */
+    private final LinkedHashMap<ByteArrayWrapper, byte[]> txs = new LinkedHashMap<>();
+
+    /**
+     * items received that are not in {@link #blocks}, {@link #txs} or {@link #orphans}, such as
+     * rejected ones or transactions since mined, so that they are not asked for again; oldest first
+     */
+    private final LinkedHashSet<ByteArrayWrapper> seen = new LinkedHashSet<>();
+
+    /** items asked for and not received yet, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Request> requested = new LinkedHashMap<>();
+
+    /** orphan blocks, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> orphans = new LinkedHashMap<>();
+
+    /** hashes of the orphan blocks by the hash of their parent */
+    private final Map<ByteArrayWrapper, List<ByteArrayWrapper>> orphansByParent = new HashMap<>();
+
+    /** compact blocks waiting for their missing transactions */
+    private final Map<ByteArrayWrapper, CompactBlock.Reconstruction> reconstructions = new HashMap<>();
+
+    /** salts of the short ids of compact blocks */
+    private final Random random = new Random();
+    private volatile boolean useCompactBlocks = true;
+
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    private volatile int peerCount;
+    private volatile long messagesSent;
+    private volatile long messagesReceived;
+    private volatile long bytesSent;
+    private volatile long bytesReceived;
+    private volatile long peersDropped;
+    private volatile long blocksReconstructed;
+    private volatile long blockTxsFetched;
+    private volatile long fullBlocksFetched;
+
+    /**
+     * Creates a node for {@code blockChain}, listening on an ephemeral loopback port. The chain must
+     * not be used directly while the node is open, and blocks are only relayed over its max height
+     * block at this point, normally the genesis block
+     */
+    public RelayNode(BlockChain blockChain, String name) throws IOException {
+        this.blockChain = blockChain;
+        this.blockHandler = new BlockHandler(blockChain);
+        blockChain.setSignatureCache(signatureCache);
+        Block tip = blockChain.getMaxHeightBlock();
+        ByteArrayWrapper tipId = new ByteArrayWrapper(tip.getHash());
+        blocks.put(tipId, WireFormat.encode(tip));
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Whether to ask peers for blocks in compact form, true by default */
+    public void setCompactBlocks(boolean compactBlocks) {
+        this.useCompactBlocks = compactBlocks;
+    }
+
+    /** @return the address other nodes connect to */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /** Connects to {@code other}; both then announce everything they have to each other */
+    public void connect(RelayNode other) throws IOException {
+        connect(other.getAddress());
+    }
+
+    /** Connects to the node at {@code address}. Must not be called on the node thread */
+    public void connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.configureBlocking(false);
+        call(() -> {
+            addPeer(channel);
+            return null;
+        }).join();
+    }
+
+    /**
+     * @return a future of whether {@code block} matches its hash and that of its transactions and
+     *         was added to the chain, and so relayed
+     */
+    public CompletableFuture<Boolean> submitBlock(Block block) {
+        return call(() -> {
+            if (!block.hashesValid())
+                return false;
+            ByteArrayWrapper id = new ByteArrayWrapper(block.getHash());
+            return markSeen(id) && addBlock(block, id, WireFormat.encode(block));
+        });
+    }
+
+    /** @return a future of the block created over the max height block, see {@link BlockHandler#createBlock} */
+    public CompletableFuture<Block> createBlock(PublicKey myAddress) {
+        return call(() -> {
+            Block block = blockHandler.createBlock(myAddress);
+            if (block != null)
+                blockAdded(block, new ByteArrayWrapper(block.getHash()), WireFormat.encode(block));
+            return block;
+        });
+    }
+
+    /**
+     * @return a future of whether {@code tx} matches its hash, is new to this node and is validly
+     *         signed, and so relayed
+     */
+    public CompletableFuture<Boolean> submitTx(Transaction tx) {
+        return call(() -> {
+            if (!tx.hashValid())
+                return false;
+            ByteArrayWrapper id = new ByteArrayWrapper(tx.getHash());
+            if (!markSeen(id) || !verifySignatures(tx))
+                return false;
+            txAdded(tx, id, WireFormat.encode(tx));
+            return true;
+        });
+    }
+
+    public int getPeerCount() {
+        return peerCount;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /** @return number of peers disconnected for misbehaving or falling behind */
+    public long getPeersDropped() {
+        return peersDropped;
+    }
+
+    /** @return number of blocks rebuilt from compact blocks */
+    public long getBlocksReconstructed() {
+        return blocksReconstructed;
+    }
+
+    /** @return number of transactions missing from the pool that were fetched for compact blocks */
+    public long getBlockTxsFetched() {
+        return blockTxsFetched;
+    }
+
+    /** @return number of blocks fetched in full, without asking for them compact or after failing to rebuild them */
+    public long getFullBlocksFetched() {
+        return fullBlocksFetched;
+    }
+
+    /** Disconnects from every peer and stops the node thread */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String toString() {
+        return String.format("RelayNode[%s, sent=%d msgs/%d bytes, received=%d msgs/%d bytes, dropped=%d]",
+                thread.getName(), messagesSent, bytesSent, messagesReceived, bytesReceived, peersDropped);
+    }
+
+    /** Runs {@code work} on the node thread */
+    private <T> CompletableFuture<T> call(Supplier<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new IllegalStateException("node is closed"));
+            return result;
+        }
+        tasks.add(() -> {
+            try {
+                result.complete(work.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        selector.wakeup();
+        return result;
+    }
+
+    private void run() {
+        try {
+            long nextExpiry = System.nanoTime();
+            while (!closed) {
+                selector.select(EXPIRY_CHECK_MILLIS);
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                if (System.nanoTime() - nextExpiry >= 0) {
+                    expire();
+                    nextExpiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EXPIRY_CHECK_MILLIS);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = server.accept();
+                        if (channel != null) {
+                            channel.configureBlocking(false);
+                            addPeer(channel);
+                        }
+                        continue;
+                    }
+                    Peer peer = (Peer) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            read(peer);
+                        if (key.isValid() && key.isWritable())
+                            write(peer);
+                    } catch (IOException e) {
+                        drop(peer, false);
+                    } catch (RuntimeException e) {
+                        // A malformed message
+                        drop(peer, true);
+                    }
+                }
+                flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Peer peer : new ArrayList<>(peers))
+                drop(peer, false);
+            blockHandler.close();
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    private void addPeer(SocketChannel channel) {
+        Peer peer = new Peer(channel);
+        try {
+            // Announcements and requests are small and wait on each other
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        peers.add(peer);
+        peerCount = peers.size();
+        for (Map.Entry<ByteArrayWrapper, byte[]> block : blocks.entrySet()) {
+            remember(peer, block.getKey());
+            peer.blockInv.add(new BlockView(ByteBuffer.wrap(block.getValue())).getHash());
+        }
+        for (Map.Entry<ByteArrayWrapper, byte[]> tx : txs.entrySet()) {
+            remember(peer, tx.getKey());
+            peer.txInv.add(new TxView(ByteBuffer.wrap(tx.getValue())).getHash());
+        }
+    }
+
+    private void drop(Peer peer, boolean dropped) {
+        if (!peers.remove(peer))
+            return;
+        peerCount = peers.size();
+        // Ask the items asked of this peer of another one that announced them
+        List<ByteArrayWrapper> pending = new ArrayList<>();
+        for (Map.Entry<ByteArrayWrapper, Request> request : requested.entrySet())
+            if (request.getValue().peer == peer)
+                pending.add(request.getKey());
+        for (ByteArrayWrapper id : pending) {
+            // Asking another peer may have dropped it too, and moved the request on already
+            Request request = requested.get(id);
+            if (request != null && request.peer == peer)
+                retry(id, request);
+        }
+        if (dropped)
+            peersDropped++;
+        peer.key.cancel();
+        try {
+            peer.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void read(Peer peer) throws IOException {
+        int n = peer.channel.read(peer.in);
+        if (n < 0)
+            throw new IOException("connection closed by peer");
+        bytesReceived += n;
+
+        ByteBuffer in = peer.in;
+        in.flip();
+        int needed = 0;
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > MAX_MESSAGE_BYTES)
+                throw new IllegalArgumentException("bad message length " + length);
+            if (in.remaining() < 4 + length) {
+                needed = 4 + length;
+                break;
+            }
+            in.getInt();
+            byte type = in.get();
+            byte[] payload = new byte[length - 1];
+            in.get(payload);
+            messagesReceived++;
+            handle(peer, type, payload);
+            if (!peer.key.isValid())
+                return;
+        }
+        in.compact();
+        if (needed > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            in.flip();
+            bigger.put(in);
+            peer.in = bigger;
+        }
+    }
+
+    private void handle(Peer peer, byte type, byte[] payload) {
+        switch (type) {
+            case MSG_INV:
+                onInventory(peer, payload);
+                break;
+            case MSG_GETDATA:
+                onGetData(peer, payload);
+                break;
+            case MSG_BLOCK:
+                onBlock(peer, payload);
+                break;
+            case MSG_TX:
+                onTx(peer, payload);
+                break;
+            case MSG_CMPCTBLOCK:
+                onCompactBlock(peer, payload);
+                break;
+            case MSG_GETBLOCKTXN:
+                onGetBlockTxs(peer, payload);
+                break;
+            case MSG_BLOCKTXN:
+                onBlockTxs(peer, payload);
+                break;
+            case MSG_NOTFOUND:
+                onNotFound(peer, payload);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown message type " + type);
+        }
+    }
+
+    private void onInventory(Peer peer, byte[] payload) {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        byte kind = checkKind(b.get(0), false);
+        if (kind == ITEM_BLOCK && useCompactBlocks)
+            kind = ITEM_COMPACT_BLOCK;
+        List<byte[]> wanted = new ArrayList<>();
+        int count = b.getInt(1);
+        int offset = 5;
+        for (int i = 0; i < count; i++) {
+            byte[] hash = getHash(b, offset);
+            offset = WireFormat.skipBytes(b, offset);
+            ByteArrayWrapper id = new ByteArrayWrapper(hash);
+            remember(peer, id);
+            if (isSeen(id))
+                continue;
+            Request request = requested.get(id);
+            if (request == null) {
+                track(id, new Request(hash, kind), peer);
+                wanted.add(hash);
+            } else if (request.peer != peer && !request.others.contains(peer)) {
+                request.others.add(peer);
+            }
+        }
+        if (wanted.isEmpty())
+            return;
+        if (kind == ITEM_BLOCK)
+            fullBlocksFetched += wanted.size();
+        send(peer, MSG_GETDATA, encodeInventory(kind, wanted));
+    }
+
+    private void onGetData(Peer peer, byte[] payload) {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        byte kind = checkKind(b.get(0), true);
+        int count = b.getInt(1);
+        int offset = 5;
+        List<byte[]> notFound = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = getHash(b, offset);
+            ByteArrayWrapper id = new ByteArrayWrapper(hash);
+            offset = WireFormat.skipBytes(b, offset);
+            byte[] record;
+            byte type;
+            if (kind == ITEM_BLOCK) {
+                record = blocks.get(id);
+                type = MSG_BLOCK;
+            } else if (kind == ITEM_COMPACT_BLOCK) {
+                record = compactBlocks.get(id);
+                type = MSG_CMPCTBLOCK;
+            } else {
+                record = txs.get(id);
+                type = MSG_TX;
+            }
+            if (record != null) {
+                remember(peer, id);
+                send(peer, type, record);
+            } else {
+                notFound.add(hash);
+            }
+        }
+        if (!notFound.isEmpty())
+            send(peer, MSG_NOTFOUND, encodeInventory(kind, notFound));
+    }
+
+    /** Asks another peer for the items {@code peer} does not have */
+    private void onNotFound(Peer peer, byte[] payload) {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        checkKind(b.get(0), true);
+        int count = b.getInt(1);
+        int offset = 5;
+        for (int i = 0; i < count; i++) {
+            ByteArrayWrapper id = new ByteArrayWrapper(getHash(b, offset));
+            offset = WireFormat.skipBytes(b, offset);
+            Request request = requested.get(id);
+            if (request != null && request.peer == peer) {
+                // Let the peer announce it again if it gets it
+                peer.known.remove(id);
+                retry(id, request);
+            }
+        }
+    }
+
+    private void onBlock(Peer peer, byte[] record) {
+        Block block = new BlockView(ByteBuffer.wrap(record)).toBlock();
+        ByteArrayWrapper id = new ByteArrayWrapper(block.getHash());
+        requested.remove(id);
+        reconstructions.remove(id);
+        remember(peer, id);
+        if (!block.hashesValid())
+            throw new IllegalArgumentException("block " + id + " does not match its hash");
+        if (markSeen(id))
+            addBlock(block, id, record);
+    }
+
+    private void onTx(Peer peer, byte[] record) {
+        Transaction tx = new TxView(ByteBuffer.wrap(record)).toTransaction();
+        ByteArrayWrapper id = new ByteArrayWrapper(tx.getHash());
+        requested.remove(id);
+        remember(peer, id);
+        if (!tx.hashValid())
+            throw new IllegalArgumentException("transaction " + id + " does not match its hash");
+        if (markSeen(id) && verifySignatures(tx))
+            txAdded(tx, id, record);
+    }
+
+    private void onCompactBlock(Peer peer, byte[] record) {
+        CompactBlock compact = CompactBlock.decode(ByteBuffer.wrap(record));
+        ByteArrayWrapper id = new ByteArrayWrapper(compact.getHash());
+        remember(peer, id);
+        if (isSeen(id) || reconstructions.containsKey(id)) {
+            requested.remove(id);
+            return;
+        }
+        CompactBlock.Reconstruction reconstruction = compact.reconstruct(blockChain.getTransactionPool());
+        if (reconstruction.isComplete()) {
+            reconstructed(peer, compact.getHash(), id, reconstruction);
+            return;
+        }
+        // Keep the block requested from this peer until its transactions arrive
+        Request request = requested.get(id);
+        track(id, request != null ? request : new Request(compact.getHash(), ITEM_COMPACT_BLOCK), peer);
+        reconstructions.put(id, reconstruction);
+        int[] missing = reconstruction.getMissing();
+        ByteBuffer b = ByteBuffer.allocate(2 + compact.getHash().length + 4 + 4 * missing.length);
+        b.putShort((short) compact.getHash().length);
+        b.put(compact.getHash());
+        b.putInt(missing.length);
+        for (int index : missing)
+            b.putInt(index);
+        send(peer, MSG_GETBLOCKTXN, b.array());
+    }
+
+    private void onGetBlockTxs(Peer peer, byte[] payload) {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        ByteArrayWrapper id = new ByteArrayWrapper(getHash(b, 0));
+        int hashEnd = WireFormat.skipBytes(b, 0);
+        byte[] blockRecord = blocks.get(id);
+        if (blockRecord == null) {
+            send(peer, MSG_NOTFOUND, encodeInventory(ITEM_COMPACT_BLOCK, Collections.singletonList(getHash(b, 0))));
+            return;
+        }
+        BlockView block = new BlockView(ByteBuffer.wrap(blockRecord));
+        int count = b.getInt(hashEnd);
+        int indexes = hashEnd + 4;
+        if (count < 0 || (long) count * 4 > payload.length - indexes)
+            throw new IllegalArgumentException("truncated transaction request");
+        ByteBuffer[] txRecords = new ByteBuffer[count];
+        int size = indexes;
+        for (int i = 0; i < count; i++) {
+            int index = b.getInt(indexes + 4 * i);
+            if (index < 0 || index >= block.numTransactions())
+                throw new IllegalArgumentException("no transaction " + index + " in block " + id);
+            txRecords[i] = block.getTransactionRecord(index);
+            size += 8 + txRecords[i].remaining();
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(payload, 0, indexes);
+        for (int i = 0; i < count; i++) {
+            out.putInt(b.getInt(indexes + 4 * i));
+            out.putInt(txRecords[i].remaining());
+            out.put(txRecords[i]);
+        }
+        send(peer, MSG_BLOCKTXN, out.array());
+    }
+
+    private void onBlockTxs(Peer peer, byte[] payload) {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        byte[] hash = getHash(b, 0);
+        ByteArrayWrapper id = new ByteArrayWrapper(hash);
+        int offset = WireFormat.skipBytes(b, 0);
+        CompactBlock.Reconstruction reconstruction = reconstructions.remove(id);
+        if (reconstruction == null)
+            return;
+        int count = b.getInt(offset);
+        offset += 4;
+        for (int i = 0; i < count; i++) {
+            int index = b.getInt(offset);
+            int length = b.getInt(offset + 4);
+            Transaction tx = new TxView(b, offset + 8, length).toTransaction();
+            offset += 8 + length;
+            if (!tx.hashValid() || index < 0 || !reconstruction.fill(index, tx))
+                throw new IllegalArgumentException("transaction " + index + " does not belong to block " + id);
+        }
+        blockTxsFetched += count;
+        reconstructed(peer, hash, id, reconstruction);
+    }
+
+    /** Adds the block rebuilt from a compact block, or asks for the full block if it does not match */
+    private void reconstructed(Peer peer, byte[] hash, ByteArrayWrapper id,
+            CompactBlock.Reconstruction reconstruction) {
+        Block block = reconstruction.toBlock();
+        if (block == null) {
+            // A short id collision, or transactions that do not add up to the block
+            Request request = requested.get(id);
+            if (request == null)
+                request = new Request(hash, ITEM_BLOCK);
+            request.kind = ITEM_BLOCK;
+            ask(id, request, peer);
+            return;
+        }
+        requested.remove(id);
+        blocksReconstructed++;
+        if (markSeen(id))
+            addBlock(block, id, WireFormat.encode(block));
+    }
+
+    /**
+     * Adds {@code block} to the chain, or keeps it as an orphan if its parent is unknown
+     *
+     * @return true if it was added
+     */
+    private boolean addBlock(Block block, ByteArrayWrapper id, byte[] record) {
+        if (block.getPrevBlockHash() == null)
+            return false;
+        ByteArrayWrapper parent = new ByteArrayWrapper(block.getPrevBlockHash());
+        if (!blocks.containsKey(parent)) {
+            if (orphans.size() >= MAX_ORPHANS)
+                removeOrphan(orphans.keySet().iterator().next());
+            orphans.put(id, new Orphan(parent, record, System.nanoTime()));
+            orphansByParent.computeIfAbsent(parent, p -> new ArrayList<>()).add(id);
+            seen.remove(id);
+            return false;
+        }
+        if (!blockHandler.processBlock(block))
+            return false;
+        blockAdded(block, id, record);
+        return true;
+    }
+
+    private void blockAdded(Block block, ByteArrayWrapper id, byte[] record) {
+        blocks.put(id, record);
+        seen.remove(id);
+        compactBlocks.put(id, WireFormat.encode(new CompactBlock(block, random.nextLong())));
+        for (Transaction tx : block.getTransactions()) {
+            ByteArrayWrapper txId = new ByteArrayWrapper(tx.getHash());
+            if (txs.remove(txId) != null)
+                markSeen(txId);
+        }
+        Listener l = listener;
+        if (l != null)
+            l.blockAdded(this, block, System.nanoTime());
+        announce(ITEM_BLOCK, id, block.getHash());
+
+        List<ByteArrayWrapper> children = orphansByParent.remove(id);
+        if (children == null)
+            return;
+        for (ByteArrayWrapper childId : children) {
+            byte[] childRecord = orphans.remove(childId).record;
+            markSeen(childId);
+            addBlock(new BlockView(ByteBuffer.wrap(childRecord)).toBlock(), childId, childRecord);
+        }
+    }
+
+    /** Drops the orphan {@code id}, which is then fetched again if announced */
+    private void removeOrphan(ByteArrayWrapper id) {
+        Orphan orphan = orphans.remove(id);
+        List<ByteArrayWrapper> siblings = orphansByParent.get(orphan.parent);
+        siblings.remove(id);
+        if (siblings.isEmpty())
+            orphansByParent.remove(orphan.parent);
+    }
+
+    /** @return true if {@code id} was received before, see {@link #markSeen} */
+    private boolean isSeen(ByteArrayWrapper id) {
+        return seen.contains(id) || blocks.containsKey(id) || txs.containsKey(id) || orphans.containsKey(id);
+    }
+
+    /**
+     * Remembers that {@code id} was received, forgetting the oldest item received if more than
+     * {@link #SEEN_LIMIT} are remembered beside those the node keeps
+     *
+     * @return false if it was received before
+     */
+    private boolean markSeen(ByteArrayWrapper id) {
+        if (isSeen(id))
+            return false;
+        seen.add(id);
+        if (seen.size() > SEEN_LIMIT) {
+            Iterator<ByteArrayWrapper> oldest = seen.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Drops the orphans older than {@link #ORPHAN_EXPIRY_MILLIS}, and the requests older than
+     * {@link #REQUEST_TIMEOUT_MILLIS} so that the items are asked of another peer
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        long requestTimeout = TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MILLIS);
+        List<ByteArrayWrapper> late = new ArrayList<>();
+        for (Map.Entry<ByteArrayWrapper, Request> request : requested.entrySet()) {
+            if (now - request.getValue().sent < requestTimeout)
+                break;
+            late.add(request.getKey());
+        }
+        for (ByteArrayWrapper id : late) {
+            Request request = requested.get(id);
+            if (request != null && now - request.sent >= requestTimeout)
+                retry(id, request);
+        }
+        long orphanExpiry = TimeUnit.MILLISECONDS.toNanos(ORPHAN_EXPIRY_MILLIS);
+        while (!orphans.isEmpty()) {
+            Map.Entry<ByteArrayWrapper, Orphan> oldest = orphans.entrySet().iterator().next();
+            if (now - oldest.getValue().received < orphanExpiry)
+                break;
+            removeOrphan(oldest.getKey());
+        }
+    }
+
+    private void txAdded(Transaction tx, ByteArrayWrapper id, byte[] record) {
+        txs.put(id, record);
+        seen.remove(id);
+        blockHandler.processTx(tx);
+        Listener l = listener;
+        if (l != null)
+            l.txAdded(this, tx, System.nanoTime());
+        announce(ITEM_TX, id, tx.getHash());
+    }
+
+    /**
+     * Verifies the signatures of the inputs of {@code tx} that spend outputs of the max height block
+     * or of pooled transactions, and records them for the validation of the block that includes it
+     *
+     * @return false if one of them is invalid
+     */
+    private boolean verifySignatures(Transaction tx) {
+        UTXOPool pool = blockChain.getMaxHeightUTXOPool();
+        TransactionPool txPool = blockChain.getTransactionPool();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null)
+                return false;
+            Transaction.Output prevOutput = pool.getTxOutput(in.prevTxHash, in.outputIndex);
+            if (prevOutput == null) {
+                Transaction parent = txPool.getTransaction(in.prevTxHash);
+                if (parent != null && in.outputIndex >= 0 && in.outputIndex < parent.numOutputs())
+                    prevOutput = parent.getOutput(in.outputIndex);
+            }
+            if (prevOutput == null)
+                continue;
+            byte[] message = tx.getRawDataToSign(i);
+            if (!Crypto.verifySignature(prevOutput.address, message, in.signature))
+                return false;
+            signatureCache.add(prevOutput.address, message, in.signature);
+        }
+        return true;
+    }
+
+    /** Records that the item of {@code request} is being waited for from {@code peer} */
+    private void track(ByteArrayWrapper id, Request request, Peer peer) {
+        request.peer = peer;
+        request.sent = System.nanoTime();
+        // Keep requests in the order they were sent, for expire
+        requested.remove(id);
+        requested.put(id, request);
+    }
+
+    /** Asks {@code peer} for the item of {@code request} */
+    private void ask(ByteArrayWrapper id, Request request, Peer peer) {
+        track(id, request, peer);
+        if (request.kind == ITEM_BLOCK)
+            fullBlocksFetched++;
+        send(peer, MSG_GETDATA, encodeInventory(request.kind, Collections.singletonList(request.hash)));
+    }
+
+    /** Asks the next connected peer that announced the item of {@code request}, if any, for it */
+    private void retry(ByteArrayWrapper id, Request request) {
+        requested.remove(id);
+        reconstructions.remove(id);
+        if (closed)
+            return;
+        Peer next;
+        while ((next = request.others.poll()) != null) {
+            if (peers.contains(next)) {
+                ask(id, request, next);
+                return;
+            }
+        }
+    }
+
+    /** Queues an announcement of {@code hash} to every peer not known to have it */
+    private void announce(byte kind, ByteArrayWrapper id, byte[] hash) {
+        for (Peer peer : peers) {
+            if (peer.known.contains(id))
+                continue;
+            remember(peer, id);
+            (kind == ITEM_BLOCK ? peer.blockInv : peer.txInv).add(hash);
+        }
+    }
+
+    private static void remember(Peer peer, ByteArrayWrapper id) {
+        if (peer.known.size() >= KNOWN_LIMIT)
+            peer.known.clear();
+        peer.known.add(id);
+    }
+
+    private void send(Peer peer, byte type, byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.putInt(1 + payload.length);
+        header.put(type);
+        header.flip();
+        peer.out.add(header);
+        peer.out.add(ByteBuffer.wrap(payload));
+        peer.queuedBytes += 5 + payload.length;
+        messagesSent++;
+        if (peer.queuedBytes > MAX_QUEUED_BYTES)
+            drop(peer, true);
+    }
+
+    /** Sends the announcements of this turn, then writes what each peer can take */
+    private void flush() {
+        for (Peer peer : new ArrayList<>(peers)) {
+            if (!peer.blockInv.isEmpty()) {
+                send(peer, MSG_INV, encodeInventory(ITEM_BLOCK, peer.blockInv));
+                peer.blockInv.clear();
+            }
+            if (!peer.txInv.isEmpty()) {
+                send(peer, MSG_INV, encodeInventory(ITEM_TX, peer.txInv));
+                peer.txInv.clear();
+            }
+            if (peer.out.isEmpty() || !peers.contains(peer))
+                continue;
+            try {
+                write(peer);
+            } catch (IOException e) {
+                drop(peer, false);
+            }
+        }
+    }
+
+    private void write(Peer peer) throws IOException {
+        if (!peer.out.isEmpty()) {
+            long n = peer.channel.write(peer.out.toArray(new ByteBuffer[0]));
+            bytesSent += n;
+            peer.queuedBytes -= n;
+            while (!peer.out.isEmpty() && !peer.out.peek().hasRemaining())
+                peer.out.poll();
+        }
+        peer.key.interestOps(peer.out.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private static byte[] encodeInventory(byte kind, List<byte[]> hashes) {
+        int size = 5;
+        for (byte[] hash : hashes)
+            size += 2 + hash.length;
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.put(kind);
+        b.putInt(hashes.size());
+        for (byte[] hash : hashes) {
+            b.putShort((short) hash.length);
+            b.put(hash);
+        }
+        return b.array();
+    }
+
+    private static byte checkKind(byte kind, boolean compact) {
+        if (kind != ITEM_BLOCK && kind != ITEM_TX && !(compact && kind == ITEM_COMPACT_BLOCK))
+            throw new IllegalArgumentException("unknown item kind " + kind);
+        return kind;
+    }
+
+    private static byte[] getHash(ByteBuffer b, int offset) {
+        byte[] hash = WireFormat.getBytes(b, offset);
+        if (hash == null)
+            throw new IllegalArgumentException("missing hash in inventory");
+        return hash;
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.Arrays;
+
+/**
+ * SHA-256 of a fixed prefix followed by an 8 byte big-endian nonce. The full 64 byte blocks of the
+ * prefix are compressed once, into the midstate, so hashing a nonce only compresses the final one
+ * or two blocks. The result equals {@code MessageDigest.getInstance("SHA-256")} over the same bytes.
+ *
+ * <p>An instance keeps scratch state and must not be shared between threads; give each thread its
+ * own copy with {@link #Sha256Midstate(Sha256Midstate)}.
+ */
+public class Sha256Midstate {
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /** state after the full blocks of the prefix */
+    private final int[] midstate;
+
+    /** the last one or two blocks as big-endian words: prefix tail, nonce, padding and length */
+    private final int[] tail;
+
+    /** offset of the nonce in {@code tail}, in bytes */
+    private final int nonceOffset;
+
+    /* scratch */
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+
+    /** Compresses the full blocks of {@code prefix} and prepares the blocks that hold the nonce */
+    public Sha256Midstate(byte[] prefix) {
+        int full = prefix.length / 64;
+        midstate = Arrays.copyOf(INITIAL, 8);
+        int[] block = new int[16];
+        for (int b = 0; b < full; b++) {
+            for (int i = 0; i < 16; i++)
+                block[i] = getInt(prefix, b * 64 + i * 4);
+            compress(midstate, block, 0, w);
+        }
+
+        int rest = prefix.length - full * 64;
+        nonceOffset = rest;
+        int used = rest + 8 + 1 + 8;
+        byte[] last = new byte[used <= 64 ? 64 : 128];
+        System.arraycopy(prefix, full * 64, last, 0, rest);
+        last[rest + 8] = (byte) 0x80;
+        long bits = (prefix.length + 8L) * 8;
+        for (int i = 0; i < 8; i++)
+            last[last.length - 1 - i] = (byte) (bits >>> (8 * i));
+        tail = new int[last.length / 4];
+        for (int i = 0; i < tail.length; i++)
+            tail[i] = getInt(last, i * 4);
+    }
+
+    /** Creates an instance with the same prefix as {@code other} and scratch state of its own */
+    public Sha256Midstate(Sha256Midstate other) {
+        midstate = other.midstate;
+        tail = Arrays.copyOf(other.tail, other.tail.length);
+        nonceOffset = other.nonceOffset;
+    }
+
+    /** @return the number of 64 byte blocks compressed for each nonce */
+    public int blocksPerNonce() {
+        return tail.length / 16;
+    }
+
+    /** Writes the SHA-256 of the prefix followed by {@code nonce} into {@code out} */
+    public void digest(long nonce, byte[] out) {
+        hash(nonce);
+        for (int i = 0; i < 8; i++) {
+            out[4 * i] = (byte) (state[i] >>> 24);
+            out[4 * i + 1] = (byte) (state[i] >>> 16);
+            out[4 * i + 2] = (byte) (state[i] >>> 8);
+            out[4 * i + 3] = (byte) state[i];
+        }
+    }
+
+    /** @return the number of leading zero bits of the SHA-256 of the prefix followed by {@code nonce} */
+    public int leadingZeroBits(long nonce) {
+        hash(nonce);
+        int zeros = 0;
+        for (int i = 0; i < 8; i++) {
+            int z = Integer.numberOfLeadingZeros(state[i]);
+            zeros += z;
+            if (z < 32)
+                break;
+        }
+        return zeros;
+    }
+
+    private void hash(long nonce) {
+        // Only the two or three words that hold the nonce change between attempts
+        for (int i = 0; i < 8; i++) {
+            int pos = nonceOffset + i;
+            int shift = 24 - 8 * (pos & 3);
+            int word = pos >> 2;
+            tail[word] = (tail[word] & ~(0xFF << shift)) | ((int) (nonce >>> (56 - 8 * i)) & 0xFF) << shift;
+        }
+        System.arraycopy(midstate, 0, state, 0, 8);
+        compress(state, tail, 0, w);
+        if (tail.length == 32)
+            compress(state, tail, 16, w);
+    }
+
+    /** The SHA-256 compression of the 16 words of {@code block} at {@code offset} into {@code h} */
+    private static void compress(int[] h, int[] block, int offset, int[] w) {
+        System.arraycopy(block, offset, w, 0, 16);
+        for (int t = 16; t < 64; t++) {
+            int x = w[t - 2];
+            int y = w[t - 15];
+            int s1 = Integer.rotateRight(x, 17) ^ Integer.rotateRight(x, 19) ^ (x >>> 10);
+            int s0 = Integer.rotateRight(y, 7) ^ Integer.rotateRight(y, 18) ^ (y >>> 3);
+            w[t] = s1 + w[t - 7] + s0 + w[t - 16];
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], k = h[7];
+        for (int t = 0; t < 64; t++) {
+            int t1 = k + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                    + ((e & f) ^ (~e & g)) + K[t] + w[t];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                    + ((a & b) ^ (a & c) ^ (b & c));
+            k = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += k;
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8
+                | (b[offset + 3] & 0xFF);
+    }
+}
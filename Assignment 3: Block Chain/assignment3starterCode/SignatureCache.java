@@ -0,0 +1,102 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Thread-safe set of input signatures that have already been verified, so that
+ * {@link TxHandler#isValidTx} does not verify them again. An entry holds the key, the signature and
+ * the SHA-256 of the signed data, so a hit means that this very signature over this very data was
+ * verified against this key, whatever hash the transaction claims. A cache with a capacity drops
+ * its oldest entries, such as those of transactions that never make it into a block.
+ */
+public class SignatureCache {
+
+    private static class Entry {
+        private final PublicKey key;
+        private final byte[] signature;
+        private final byte[] messageDigest;
+
+        Entry(PublicKey key, byte[] message, byte[] signature) {
+            this.key = key;
+            this.signature = signature.clone();
+            this.messageDigest = sha256(message);
+        }
+
+        public boolean equals(Object other) {
+            if (other == null || getClass() != other.getClass())
+                return false;
+            Entry e = (Entry) other;
+            return Arrays.equals(messageDigest, e.messageDigest) && Arrays.equals(signature, e.signature)
+                    && key.equals(e.key);
+        }
+
+        public int hashCode() {
+            return Arrays.hashCode(messageDigest);
+        }
+    }
+
+    /** entries in the order they were added, guarded by itself */
+    private final LinkedHashSet<Entry> verified = new LinkedHashSet<>();
+    private final int capacity;
+
+    /** Creates a cache without a capacity */
+    public SignatureCache() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /** Creates a cache that drops its oldest entry when one more than {@code capacity} is added */
+    public SignatureCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /** Records that {@code signature} over {@code message} is valid for {@code key} */
+    public void add(PublicKey key, byte[] message, byte[] signature) {
+        Entry entry = new Entry(key, message, signature);
+        synchronized (verified) {
+            if (verified.add(entry) && verified.size() > capacity) {
+                Iterator<Entry> oldest = verified.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    /** @return true if the signature was recorded, in which case it is removed */
+    public boolean remove(PublicKey key, byte[] message, byte[] signature) {
+        if (key == null || message == null || signature == null)
+            return false;
+        Entry entry = new Entry(key, message, signature);
+        synchronized (verified) {
+            return verified.remove(entry);
+        }
+    }
+
+    public int size() {
+        synchronized (verified) {
+            return verified.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    private static byte[] sha256(byte[] message) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(message);
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
@@ -3,7 +3,6 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -91,28 +90,47 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
+            SignatureScheme scheme = getScheme();
+            if (scheme != op.getScheme())
                 return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            return scheme.keyEquals(address, op.address);
         }
 
         public int hashCode() {
+            SignatureScheme scheme = getScheme();
             int hash = 1;
             hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 31 + scheme.ordinal();
+            hash = hash * 31 + scheme.keyHashCode(address);
             return hash;
         }
+
+        /** @return the signature scheme of {@code address} */
+        public SignatureScheme getScheme() {
+            return SignatureScheme.of(address);
+        }
     }
 
+    /**
+     * Sign data of an input is the claimed output followed by every output of the transaction, so
+     * signing or verifying all inputs serializes the outputs once per input
+     */
+    public static final int SIGN_VERSION_LEGACY = 0;
+
+    /**
+     * Sign data of an input is the version, the claimed output, the input index and a digest of the
+     * outputs that is computed once per transaction, see {@link #getOutputsDigest}
+     */
+    public static final int SIGN_VERSION_OUTPUTS_DIGEST = 1;
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    private int signVersion = SIGN_VERSION_LEGACY;
+
+    /** digest of the outputs, computed on first use and cleared by {@link #addOutput} */
+    private volatile byte[] outputsDigest;
     private boolean coinbase;
 
     public Transaction() {
@@ -125,6 +143,7 @@ public class Transaction {
         hash = tx.hash.clone();
         inputs = new ArrayList<Input>(tx.inputs);
         outputs = new ArrayList<Output>(tx.outputs);
+        signVersion = tx.signVersion;
         coinbase = false;
     }
 
@@ -149,6 +168,7 @@ public class Transaction {
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        outputsDigest = null;
     }
 
     public void removeInput(int index) {
@@ -166,7 +186,58 @@ public class Transaction {
         }
     }
 
+    public int getSignVersion() {
+        return signVersion;
+    }
+
+    /**
+     * Selects what {@link #getRawDataToSign} returns, {@link #SIGN_VERSION_LEGACY} or
+     * {@link #SIGN_VERSION_OUTPUTS_DIGEST}. Must be set before signing, since the version is part
+     * of the raw transaction and of the sign data
+     */
+    public void setSignVersion(int signVersion) {
+        if (signVersion != SIGN_VERSION_LEGACY && signVersion != SIGN_VERSION_OUTPUTS_DIGEST)
+            throw new IllegalArgumentException("unknown sign version " + signVersion);
+        this.signVersion = signVersion;
+    }
+
+    /**
+     * @return the SHA-256 of the value and address of every output, as they appear in the raw
+     *         transaction. It is computed once and cached until an output is added, so outputs
+     *         must not be changed in place after signing starts
+     */
+    public byte[] getOutputsDigest() {
+        byte[] digest = outputsDigest;
+        if (digest == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                ByteBuffer value = ByteBuffer.allocate(Double.SIZE / 8);
+                for (Output op : outputs) {
+                    value.clear();
+                    md.update(value.putDouble(op.value).array());
+                    md.update(op.getScheme().encode(op.address));
+                }
+                digest = md.digest();
+                outputsDigest = digest;
+            } catch (NoSuchAlgorithmException x) {
+                x.printStackTrace(System.err);
+            }
+        }
+        return digest;
+    }
+
     public byte[] getRawDataToSign(int index) {
+        if (signVersion == SIGN_VERSION_OUTPUTS_DIGEST) {
+            // version, ith input, its index and the digest of all outputs
+            if (index >= inputs.size())
+                return null;
+            Input in = inputs.get(index);
+            byte[] prevTxHash = in.prevTxHash == null ? new byte[0] : in.prevTxHash;
+            byte[] digest = getOutputsDigest();
+            ByteBuffer b = ByteBuffer.allocate(1 + prevTxHash.length + 4 + 4 + digest.length);
+            b.put((byte) signVersion).put(prevTxHash).putInt(in.outputIndex).putInt(index).put(digest);
+            return b.array();
+        }
         // ith input and all outputs
         ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
@@ -185,14 +256,11 @@ public class Transaction {
             ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
             bo.putDouble(op.value);
             byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
+            byte[] addressBytes = op.getScheme().encode(op.address);
             for (int i = 0; i < value.length; i++)
                 sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
+            for (int i = 0; i < addressBytes.length; i++)
+                sigData.add(addressBytes[i]);
         }
         byte[] sigD = new byte[sigData.size()];
         int i = 0;
@@ -226,15 +294,15 @@ public class Transaction {
             ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
             b.putDouble(op.value);
             byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
+            byte[] addressBytes = op.getScheme().encode(op.address);
             for (int i = 0; i < value.length; i++)
                 rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+            for (int i = 0; i < addressBytes.length; i++)
+                rawTx.add(addressBytes[i]);
         }
+        // Legacy transactions keep their hash, newer ones commit to their sign version
+        if (signVersion != SIGN_VERSION_LEGACY)
+            rawTx.add((byte) signVersion);
         byte[] tx = new byte[rawTx.size()];
         int i = 0;
         for (Byte b : rawTx)
@@ -243,13 +311,37 @@ public class Transaction {
     }
 
     public void finalize() {
+        hash = computeHash();
+    }
+
+    /** @return the hash of the transaction as it is now, without storing it, see {@link #finalize} */
+    public byte[] computeHash() {
+        HashEvent event = new HashEvent();
+        event.begin();
+        byte[] raw = getRawTx();
+        byte[] hash = null;
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
+            md.update(raw);
             hash = md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = "transaction";
+            event.hash = ByteArrayWrapper.toHex(hash);
+            event.rawBytes = raw.length;
+            event.txCount = 1;
+            event.inputCount = inputs.size();
+            event.commit();
+        }
+        return hash;
+    }
+
+    /** @return true if the stored hash matches the transaction as it is now, without changing it */
+    public boolean hashValid() {
+        return Arrays.equals(hash, computeHash());
     }
 
     public void setHash(byte[] h) {
@@ -17,11 +17,13 @@ public class TransactionPool {
     public void addTransaction(Transaction tx) {
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
         H.put(hash, tx);
+        record("add", hash);
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        if (H.remove(hash) != null)
+            record("remove", hash);
     }
 
     public Transaction getTransaction(byte[] txHash) {
@@ -35,4 +37,14 @@ public class TransactionPool {
             T.add(tx);
         return T;
     }
+
+    private void record(String operation, ByteArrayWrapper hash) {
+        TxPoolEvent event = new TxPoolEvent();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.txHash = hash.toString();
+            event.poolSize = H.size();
+            event.commit();
+        }
+    }
 }
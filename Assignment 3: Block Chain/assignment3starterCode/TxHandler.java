@@ -14,6 +14,9 @@ public class TxHandler {
     }
     public Ledger ledger;
 
+    /** signatures already verified elsewhere, or null to verify every signature here */
+    private SignatureCache signatureCache;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -35,94 +38,90 @@ public class TxHandler {
      */
     public boolean isValidTx(Transaction tx) {
         // IMPLEMENT THIS
+        return checkTx(tx) == null;
+    }
 
-        // Get all current UTXO in pool
-        List<UTXO> allUTXO = ledger.utxoPool.getAllUTXO();
-
-        /** (1) all outputs claimed by {@code tx} are in the current UTXO pool */
-        for (Transaction.Input input : tx.getInputs()) {
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            if (!ledger.utxoPool.contains(prevUTXO)) {
-                return false;
-            }
-        }
-
-        /** (2) the signatures on each input of {@code tx} are valid */
-        for (int index = 0; index < tx.numInputs(); ++index) {
-            Transaction.Input input = tx.getInput(index);
-            // Get signature
-            byte[] signature = input.signature;
-
-            // Get message
-            byte[] message = tx.getRawDataToSign(index);
-
-            // Get public key
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output prevOutput = null;
-            for (UTXO utxo : allUTXO) {
-                if (prevUTXO.equals(utxo)) {
-                    prevOutput = ledger.utxoPool.getTxOutput(utxo);
-                    break;
-                }
-            }
-            if (prevOutput == null) {
-                return false;
-            }
-            PublicKey publicKey = prevOutput.address;
-
-            // Verify input
-            if (!Crypto.verifySignature(publicKey, message, signature)) {
-                return false;
-            }
-        }
-
-        /** (3) no UTXO is claimed multiple times by {@code tx} */
-        Set<UTXO> claimedUTXOSet = new HashSet<>();
-        for (Transaction.Input input : tx.getInputs()) {
-            // Get claimed UTXO
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            if (claimedUTXOSet.contains(prevUTXO)) {
-                return false;
-            }
-            claimedUTXOSet.add(prevUTXO);
+    /**
+     * Checks the rules of {@link #isValidTx} in a single pass over the inputs, looking each claimed
+     * output up in the pool once. Cheap rules are checked before signatures, and the first broken
+     * rule ends the check.
+     *
+     * @return null if {@code tx} is valid, and otherwise the reason it is rejected
+     */
+    public TxRejectReason checkTx(Transaction tx) {
+        TxValidationEvent event = new TxValidationEvent();
+        event.begin();
+        TxRejectReason reason = checkTx(tx, event);
+        event.end();
+        if (event.shouldCommit()) {
+            event.txHash = ByteArrayWrapper.toHex(tx.getHash());
+            event.inputCount = tx.numInputs();
+            event.outputCount = tx.numOutputs();
+            event.valid = reason == null;
+            event.rejectReason = reason == null ? null : reason.name();
+            event.commit();
         }
+        return reason;
+    }
 
+    /** Checks the rules of {@link #isValidTx}, timing the signature checks into {@code event} */
+    private TxRejectReason checkTx(Transaction tx, TxValidationEvent event) {
         /** (4) all of {@code tx}s output values are non-negative */
+        double sumOutputs = 0;
         for (Transaction.Output output : tx.getOutputs()) {
             if (output.value < 0) {
-                return false;
+                return TxRejectReason.NEGATIVE_OUTPUT;
             }
+            sumOutputs += output.value;
         }
 
-        /** (5) the sum of {@code t x}s input values is greater than or equal to the sum of its output values; and false otherwise. */
-        // Get sum of input values
+        /** (1) and (3): every claimed output is in the pool, and claimed only once */
+        int numInputs = tx.numInputs();
+        PublicKey[] keys = new PublicKey[numInputs];
+        Set<UTXO> claimedUTXOSet = numInputs > 1 ? new HashSet<>(numInputs * 2) : null;
         double sumInputs = 0;
-        for (Transaction.Input input : tx.getInputs()) {
-            // Get respective output
-            UTXO prevUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output respectiveOutput = null;
-            for (UTXO utxo : allUTXO) {
-                if (prevUTXO.equals(utxo)) {
-                    respectiveOutput = ledger.utxoPool.getTxOutput(utxo);
-                    break;
-                }
+        for (int index = 0; index < numInputs; ++index) {
+            Transaction.Input input = tx.getInput(index);
+            if (input.prevTxHash == null) {
+                return TxRejectReason.MISSING_INPUT;
+            }
+            if (claimedUTXOSet != null
+                    && !claimedUTXOSet.add(new UTXO(input.prevTxHash, input.outputIndex))) {
+                return TxRejectReason.DUPLICATE_INPUT;
             }
-            sumInputs += respectiveOutput.value;
+            Transaction.Output prevOutput = ledger.utxoPool.getTxOutput(input.prevTxHash, input.outputIndex);
+            if (prevOutput == null) {
+                return TxRejectReason.MISSING_INPUT;
+            }
+            keys[index] = prevOutput.address;
+            sumInputs += prevOutput.value;
         }
 
-        // Get sum of output values
-        double sumOutputs = 0;
-        for (Transaction.Output output : tx.getOutputs()) {
-            sumOutputs += output.value;
+        /** (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output values */
+        if (sumInputs < sumOutputs) {
+            return TxRejectReason.INSUFFICIENT_INPUT;
         }
 
-        // Check condition
-        if (sumInputs < sumOutputs) {
-            return false;
+        /** (2) the signatures on each input of {@code tx} are valid */
+        long sigStart = event.isEnabled() ? System.nanoTime() : 0;
+        for (int index = 0; index < numInputs; ++index) {
+            byte[] message = tx.getRawDataToSign(index);
+            byte[] signature = tx.getInput(index).signature;
+            // Skip inputs whose signature over this data has already been verified against this key
+            if (signatureCache != null && signatureCache.remove(keys[index], message, signature)) {
+                continue;
+            }
+            if (!Crypto.verifySignature(keys[index], message, signature)) {
+                if (event.isEnabled())
+                    event.signatureNanos = System.nanoTime() - sigStart;
+                return TxRejectReason.INVALID_SIGNATURE;
+            }
         }
+        if (event.isEnabled())
+            event.signatureNanos = System.nanoTime() - sigStart;
 
         /** Finally */
-        return true;
+        return null;
     }
 
     /**
@@ -156,6 +155,14 @@ public class TxHandler {
         return validTxsArr;
     }
 
+    /**
+     * Lets {@link #isValidTx} accept an input signature without verifying it when {@code cache}
+     * holds it for the same key and signed data. Hits are removed from the cache
+     */
+    public void setSignatureCache(SignatureCache cache) {
+        this.signatureCache = cache;
+    }
+
     // IMPLEMENT THIS
     public UTXOPool getUTXOPool() {
         return this.ledger.utxoPool;
@@ -0,0 +1,22 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event emitted by every mutation of a {@code TransactionPool} */
+@Name("chain.TxPool")
+@Label("Transaction Pool Mutation")
+@Category({"Block Chain", "Transaction"})
+@Description("A transaction added to or removed from a transaction pool")
+public class TxPoolEvent extends jdk.jfr.Event {
+
+    /** either "add" or "remove" */
+    @Label("Operation")
+    public String operation;
+
+    @Label("Transaction Hash")
+    public String txHash;
+
+    @Label("Pool Size")
+    public int poolSize;
+}
@@ -0,0 +1,21 @@
+/**
+ * Why {@code TxHandler.checkTx} rejected a transaction. Each constant corresponds to one of the
+ * rules of {@code TxHandler.isValidTx}, in the order they are checked.
+ */
+public enum TxRejectReason {
+
+    /** an output value is negative (rule 4) */
+    NEGATIVE_OUTPUT,
+
+    /** an input claims the same UTXO as an earlier input (rule 3) */
+    DUPLICATE_INPUT,
+
+    /** an input claims an output that is not in the current UTXO pool (rule 1) */
+    MISSING_INPUT,
+
+    /** the input values sum to less than the output values (rule 5) */
+    INSUFFICIENT_INPUT,
+
+    /** an input signature does not verify under the address of the output it claims (rule 2) */
+    INVALID_SIGNATURE
+}
@@ -0,0 +1,34 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** JFR event emitted by {@code TxHandler.isValidTx} for every transaction it checks */
+@Name("chain.TxValidation")
+@Label("Transaction Validation")
+@Category({"Block Chain", "Transaction"})
+@Description("Validation of a single transaction against a UTXOPool")
+public class TxValidationEvent extends jdk.jfr.Event {
+
+    @Label("Transaction Hash")
+    public String txHash;
+
+    @Label("Inputs")
+    public int inputCount;
+
+    @Label("Outputs")
+    public int outputCount;
+
+    @Label("Valid")
+    public boolean valid;
+
+    @Label("Reject Reason")
+    @Description("Name of the TxRejectReason, or null if the transaction is valid")
+    public String rejectReason;
+
+    @Label("Signature Checks")
+    @Description("Time spent building sign data and verifying input signatures")
+    @Timespan(Timespan.NANOSECONDS)
+    public long signatureNanos;
+}
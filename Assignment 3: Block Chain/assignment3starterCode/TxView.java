@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+/**
+ * Read-only view of a transaction record in {@link WireFormat}, decoded in place over a
+ * {@code ByteBuffer}. Nothing is copied until asked for: the hash and counts are read directly, and
+ * the input and output offsets are only computed the first time an input or output is accessed.
+ */
+public class TxView {
+
+    private final ByteBuffer buf;
+
+    /* smallest encodings of an input and of an output */
+    private static final int MIN_INPUT_BYTES = 8;
+    private static final int MIN_OUTPUT_BYTES = 11;
+
+    /** offset of numInputs, just past the hash */
+    private final int inputsHeader;
+
+    /** offsets of each input and output, computed on first access */
+    private int[] inputOffsets;
+    private int[] outputOffsets;
+
+    /** Creates a view of the record in the remaining bytes of {@code buf}, which is not modified */
+    public TxView(ByteBuffer buf) {
+        this(buf, buf.position(), buf.remaining());
+    }
+
+    /** Creates a view of the {@code length} bytes record at {@code offset} in {@code buf} */
+    public TxView(ByteBuffer buf, int offset, int length) {
+        this.buf = buf.slice(offset, length);
+        WireFormat.checkVersion(this.buf.get(0));
+        inputsHeader = WireFormat.skipBytes(this.buf, 2);
+    }
+
+    /** @return length in bytes of the record */
+    public int length() {
+        return buf.limit();
+    }
+
+    public boolean isCoinbase() {
+        return (buf.get(1) & WireFormat.FLAG_COINBASE) != 0;
+    }
+
+    /** @return the {@link Transaction} sign version of the record */
+    public int getSignVersion() {
+        return (buf.get(1) & WireFormat.FLAG_OUTPUTS_DIGEST) != 0
+                ? Transaction.SIGN_VERSION_OUTPUTS_DIGEST : Transaction.SIGN_VERSION_LEGACY;
+    }
+
+    /** @return a copy of the transaction hash */
+    public byte[] getHash() {
+        return WireFormat.getBytes(buf, 2);
+    }
+
+    /** @return the transaction hash as a read-only view of the record, without copying */
+    public ByteBuffer hashBuffer() {
+        return WireFormat.sliceBytes(buf, 2);
+    }
+
+    public int numInputs() {
+        return buf.getInt(inputsHeader);
+    }
+
+    public int numOutputs() {
+        return buf.getInt(outputsHeader());
+    }
+
+    public byte[] getPrevTxHash(int index) {
+        return WireFormat.getBytes(buf, inputOffset(index));
+    }
+
+    public int getOutputIndex(int index) {
+        return buf.getInt(WireFormat.skipBytes(buf, inputOffset(index)));
+    }
+
+    public byte[] getSignature(int index) {
+        return WireFormat.getBytes(buf, WireFormat.skipBytes(buf, inputOffset(index)) + 4);
+    }
+
+    public double getValue(int index) {
+        return buf.getDouble(outputOffset(index));
+    }
+
+    public SignatureScheme getScheme(int index) {
+        return WireFormat.scheme(buf.get(outputOffset(index) + 8));
+    }
+
+    /** @return a copy of the X.509 encoding of the address of output {@code index} */
+    public byte[] getEncodedAddress(int index) {
+        return WireFormat.getBytes(buf, outputOffset(index) + 9);
+    }
+
+    /** Builds a {@link Transaction} from the record, with the hash stored in it */
+    public Transaction toTransaction() {
+        int numOutputs = numOutputs();
+        if (isCoinbase() && numInputs() == 0 && numOutputs == 1) {
+            Transaction tx = new Transaction(getValue(0), address(0));
+            tx.setHash(getHash());
+            return tx;
+        }
+        Transaction tx = new Transaction();
+        tx.setSignVersion(getSignVersion());
+        for (int i = 0; i < numInputs(); i++) {
+            tx.addInput(getPrevTxHash(i), getOutputIndex(i));
+            tx.addSignature(getSignature(i), i);
+        }
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(getValue(i), address(i));
+        tx.setHash(getHash());
+        return tx;
+    }
+
+    private PublicKey address(int index) {
+        int offset = outputOffset(index);
+        return WireFormat.decodeKey(buf.get(offset + 8), WireFormat.getBytes(buf, offset + 9));
+    }
+
+    private int outputsHeader() {
+        return inputsHeader + 8 + buf.getInt(inputsHeader + 4);
+    }
+
+    private int inputOffset(int index) {
+        if (inputOffsets == null) {
+            int offset = inputsHeader + 8;
+            int[] offsets = new int[WireFormat.checkCount(buf, numInputs(), offset, MIN_INPUT_BYTES)];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = offset;
+                offset = WireFormat.skipBytes(buf, offset);
+                offset = WireFormat.skipBytes(buf, offset + 4);
+            }
+            inputOffsets = offsets;
+        }
+        return inputOffsets[index];
+    }
+
+    private int outputOffset(int index) {
+        if (outputOffsets == null) {
+            int header = outputsHeader();
+            int offset = header + 4;
+            int[] offsets = new int[WireFormat.checkCount(buf, buf.getInt(header), offset, MIN_OUTPUT_BYTES)];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = offset;
+                offset = WireFormat.skipBytes(buf, offset + 9);
+            }
+            outputOffsets = offsets;
+        }
+        return outputOffsets[index];
+    }
+}
@@ -1,6 +1,15 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class UTXOPool {
 
@@ -9,24 +18,94 @@ public class UTXOPool {
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /** Optional filter in front of {@code H} that rejects missing UTXOs, or null if disabled */
+    private UTXOFilter filter;
+
+    /** Optional index of the UTXOs by address, or null if disabled */
+    private AddressIndex addressIndex;
+
+    /** Number of open cursors reading {@code H}. While positive, {@code H} is copied before writes */
+    private int openCursors;
+
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
         H = new HashMap<UTXO, Transaction.Output>();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool that is a copy of {@code uPool}, including its filter and index */
     public UTXOPool(UTXOPool uPool) {
         H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.filter != null)
+            filter = new UTXOFilter(uPool.filter);
+        if (uPool.addressIndex != null)
+            addressIndex = new AddressIndex(uPool.addressIndex);
+    }
+
+    /**
+     * Puts a {@link UTXOFilter} in front of lookups, sized for {@code expectedSize} UTXOs at the
+     * given {@code falsePositiveRate}, and fills it with the UTXOs currently in the pool
+     */
+    public void enableFilter(int expectedSize, double falsePositiveRate) {
+        UTXOFilter f = new UTXOFilter(Math.max(expectedSize, H.size()), falsePositiveRate);
+        for (UTXO ut : H.keySet())
+            f.add(ut.getTxHash(), ut.getIndex());
+        filter = f;
+    }
+
+    /** Removes the filter, if any */
+    public void disableFilter() {
+        filter = null;
+    }
+
+    /** @return the filter in front of lookups, or null if it is disabled */
+    public UTXOFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Builds an {@link AddressIndex} of the UTXOs currently in the pool and keeps it up to date, so
+     * that balances and owned UTXOs can be looked up without scanning the pool
+     */
+    public void enableAddressIndex() {
+        AddressIndex index = new AddressIndex();
+        for (Map.Entry<UTXO, Transaction.Output> entry : H.entrySet())
+            index.add(entry.getKey(), entry.getValue());
+        addressIndex = index;
+    }
+
+    /** Removes the address index, if any */
+    public void disableAddressIndex() {
+        addressIndex = null;
+    }
+
+    /** @return the address index, or null if it is disabled */
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        beforeWrite();
+        Transaction.Output previous = H.put(utxo, txOut);
+        if (previous == null && filter != null)
+            filter.add(utxo.getTxHash(), utxo.getIndex());
+        if (addressIndex != null) {
+            if (previous != null)
+                addressIndex.remove(utxo, previous);
+            addressIndex.add(utxo, txOut);
+        }
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        beforeWrite();
+        Transaction.Output removed = H.remove(utxo);
+        if (removed == null)
+            return;
+        if (filter != null)
+            filter.remove(utxo.getTxHash(), utxo.getIndex());
+        if (addressIndex != null)
+            addressIndex.remove(utxo, removed);
     }
 
     /**
@@ -34,12 +113,53 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        if (rejectedByFilter(ut.getTxHash(), ut.getIndex()))
+            return null;
+        Transaction.Output txOut = H.get(ut);
+        if (txOut == null && filter != null)
+            filter.recordFalsePositive();
+        return txOut;
+    }
+
+    /**
+     * @return the output with index {@code index} of the transaction with hash {@code txHash}, or
+     *         null if it is not in the pool. No UTXO is allocated when the filter rejects it
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (rejectedByFilter(txHash, index))
+            return null;
+        Transaction.Output txOut = H.get(new UTXO(txHash, index));
+        if (txOut == null && filter != null)
+            filter.recordFalsePositive();
+        return txOut;
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        if (rejectedByFilter(utxo.getTxHash(), utxo.getIndex()))
+            return false;
+        boolean found = H.containsKey(utxo);
+        if (!found && filter != null)
+            filter.recordFalsePositive();
+        return found;
+    }
+
+    /**
+     * @return true if the output with index {@code index} of the transaction with hash
+     *         {@code txHash} is in the pool. Unlike {@link #contains(UTXO)}, no UTXO is allocated
+     *         when the filter rejects it
+     */
+    public boolean contains(byte[] txHash, int index) {
+        if (rejectedByFilter(txHash, index))
+            return false;
+        boolean found = H.containsKey(new UTXO(txHash, index));
+        if (!found && filter != null)
+            filter.recordFalsePositive();
+        return found;
+    }
+
+    private boolean rejectedByFilter(byte[] txHash, int index) {
+        return filter != null && !filter.mightContain(txHash, index);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
@@ -51,4 +171,144 @@ public class UTXOPool {
         }
         return allUTXO;
     }
+
+    /**
+     * @return the total value of the UTXOs paid to {@code address}. This scans the pool unless the
+     *         address index is enabled
+     */
+    public double getBalance(PublicKey address) {
+        if (addressIndex != null)
+            return addressIndex.getBalance(address);
+        double balance = 0;
+        for (UTXO ut : getUTXOs(address))
+            balance += H.get(ut).value;
+        return balance;
+    }
+
+    /**
+     * @return the UTXOs paid to {@code address}. This scans the pool unless the address index is
+     *         enabled, in which case the set is a read-only view
+     */
+    public Set<UTXO> getUTXOs(PublicKey address) {
+        if (addressIndex != null)
+            return addressIndex.getUTXOs(address);
+        SignatureScheme scheme = SignatureScheme.of(address);
+        Set<UTXO> owned = new HashSet<UTXO>();
+        for (Map.Entry<UTXO, Transaction.Output> entry : H.entrySet()) {
+            PublicKey key = entry.getValue().address;
+            if (key != null && SignatureScheme.of(key) == scheme && scheme.keyEquals(key, address))
+                owned.add(entry.getKey());
+        }
+        return owned;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return a stream over the UTXOs in the pool, without copying them. It splits well, so
+     *         {@code utxos().parallel()} runs across cores. The pool must not be modified while
+     *         the stream runs; use a {@link #cursor()} for that
+     */
+    public Stream<UTXO> utxos() {
+        return StreamSupport.stream(H.keySet().spliterator(), false);
+    }
+
+    /** @return a stream over the outputs in the pool, with the same rules as {@link #utxos()} */
+    public Stream<Transaction.Output> outputs() {
+        return StreamSupport.stream(H.values().spliterator(), false);
+    }
+
+    /**
+     * @return a stream over the read-only mappings of the pool, with the same rules as
+     *         {@link #utxos()}
+     */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> entries() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /** @return a spliterator over the read-only mappings of the pool, as used by {@link #entries()} */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return Collections.unmodifiableMap(H).entrySet().spliterator();
+    }
+
+    /**
+     * @return a cursor over the pool as it is now. The pool may be modified while the cursor is
+     *         open; the first such modification copies the pool once, and the cursor keeps reading
+     *         the old contents
+     */
+    public Cursor cursor() {
+        openCursors++;
+        return new Cursor(H);
+    }
+
+    /** Copies {@code H} before it is modified if open cursors still read it */
+    private void beforeWrite() {
+        if (openCursors > 0) {
+            H = new HashMap<UTXO, Transaction.Output>(H);
+            openCursors = 0;
+        }
+    }
+
+    /**
+     * Iterates a snapshot of the pool in batches, so that a long job can stop and resume between
+     * batches while the pool keeps changing. A cursor closes itself once it is done
+     */
+    public class Cursor implements AutoCloseable {
+        private final HashMap<UTXO, Transaction.Output> snapshot;
+        private final Iterator<Map.Entry<UTXO, Transaction.Output>> iterator;
+        private long position;
+        private boolean closed;
+
+        private Cursor(HashMap<UTXO, Transaction.Output> snapshot) {
+            this.snapshot = snapshot;
+            this.iterator = snapshot.entrySet().iterator();
+        }
+
+        /**
+         * Passes up to {@code maxCount} more mappings of the snapshot to {@code action}
+         *
+         * @return the number of mappings passed, which is 0 once the cursor is done
+         */
+        public int next(int maxCount, BiConsumer<UTXO, Transaction.Output> action) {
+            if (closed)
+                return 0;
+            int count = 0;
+            while (count < maxCount && iterator.hasNext()) {
+                Map.Entry<UTXO, Transaction.Output> entry = iterator.next();
+                action.accept(entry.getKey(), entry.getValue());
+                count++;
+            }
+            position += count;
+            if (!iterator.hasNext())
+                close();
+            return count;
+        }
+
+        /** @return the number of mappings passed so far */
+        public long getPosition() {
+            return position;
+        }
+
+        /** @return the number of UTXOs in the snapshot */
+        public int size() {
+            return snapshot.size();
+        }
+
+        /** @return true once every mapping has been passed, or the cursor is closed */
+        public boolean isDone() {
+            return closed || !iterator.hasNext();
+        }
+
+        /** Releases the snapshot, so that the pool no longer copies itself for this cursor */
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (snapshot == H && openCursors > 0)
+                openCursors--;
+        }
+    }
 }
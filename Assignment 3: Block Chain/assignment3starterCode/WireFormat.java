@@ -0,0 +1,229 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+/**
+ * Versioned, length-prefixed binary encoding of {@link Transaction} and {@link Block}. Unlike
+ * {@code getRawTx}, every variable-length field carries its length, so records can be parsed back
+ * with {@link TxView} and {@link BlockView}. All integers are big-endian.
+ *
+ * <pre>
+ * transaction: version u8, flags u8 (bit 0 = coinbase, bit 1 = outputs digest sign version),
+ *              hash bytes16, numInputs u32, inputsLength u32, inputs, numOutputs u32, outputs
+ * input:       prevTxHash bytes16, outputIndex u32, signature bytes16
+ * output:      value f64, scheme u8 (SignatureScheme ordinal), X.509 address bytes16
+ * block:       version u8, hash bytes16, prevBlockHash bytes16, coinbaseLength u32, coinbase,
+ *              numTxs u32, then numTxs times (txLength u32, transaction)
+ * pow block:   as block with version 2, and targetBits u8 and nonce u64 after prevBlockHash
+ * compact:     version u8 (3), hash bytes16, prevBlockHash bytes16, targetBits u8, nonce u64,
+ *              salt u64, coinbaseLength u32, coinbase, numTxs u32, numTxs times short id u48
+ * bytes16:     length u16 followed by that many bytes, with length 0xFFFF meaning null
+ * </pre>
+ */
+public class WireFormat {
+
+    public static final byte VERSION = 1;
+
+    /** version of block records with proof of work. Other blocks are written as {@link #VERSION} */
+    public static final byte VERSION_POW = 2;
+
+    /** version of compact block records, see {@link CompactBlock} */
+    public static final byte VERSION_COMPACT = 3;
+
+    public static final byte FLAG_COINBASE = 1;
+
+    /** the transaction uses {@link Transaction#SIGN_VERSION_OUTPUTS_DIGEST} */
+    public static final byte FLAG_OUTPUTS_DIGEST = 2;
+
+    /** length prefix of a null byte array */
+    static final int NULL_LENGTH = 0xFFFF;
+
+    /** @return {@code tx} encoded as a transaction record */
+    public static byte[] encode(Transaction tx) {
+        byte[][] keys = encodedKeys(tx);
+        ByteBuffer b = ByteBuffer.allocate(size(tx, keys));
+        write(tx, keys, b);
+        return b.array();
+    }
+
+    /** @return {@code block} encoded as a block record */
+    public static byte[] encode(Block block) {
+        Transaction coinbase = block.getCoinbase();
+        byte[][] coinbaseKeys = encodedKeys(coinbase);
+        int coinbaseSize = size(coinbase, coinbaseKeys);
+        int numTxs = block.getTransactions().size();
+        byte[][][] txKeys = new byte[numTxs][][];
+        int[] txSizes = new int[numTxs];
+        boolean pow = block.getTargetBits() != 0;
+        int size = 1 + bytesSize(block.getHash()) + bytesSize(block.getPrevBlockHash()) + (pow ? 9 : 0)
+                + 4 + coinbaseSize + 4;
+        for (int i = 0; i < numTxs; i++) {
+            txKeys[i] = encodedKeys(block.getTransaction(i));
+            txSizes[i] = size(block.getTransaction(i), txKeys[i]);
+            size += 4 + txSizes[i];
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.put(pow ? VERSION_POW : VERSION);
+        putBytes(b, block.getHash());
+        putBytes(b, block.getPrevBlockHash());
+        if (pow) {
+            b.put((byte) block.getTargetBits());
+            b.putLong(block.getNonce());
+        }
+        b.putInt(coinbaseSize);
+        write(coinbase, coinbaseKeys, b);
+        b.putInt(numTxs);
+        for (int i = 0; i < numTxs; i++) {
+            b.putInt(txSizes[i]);
+            write(block.getTransaction(i), txKeys[i], b);
+        }
+        return b.array();
+    }
+
+    /** @return {@code block} encoded as a compact block record */
+    public static byte[] encode(CompactBlock block) {
+        Transaction coinbase = block.getCoinbase();
+        byte[][] coinbaseKeys = encodedKeys(coinbase);
+        int coinbaseSize = size(coinbase, coinbaseKeys);
+        int numTxs = block.numTransactions();
+        ByteBuffer b = ByteBuffer.allocate(1 + bytesSize(block.getHash()) + bytesSize(block.getPrevBlockHash())
+                + 17 + 4 + coinbaseSize + 4 + numTxs * CompactBlock.SHORT_ID_BYTES);
+        b.put(VERSION_COMPACT);
+        putBytes(b, block.getHash());
+        putBytes(b, block.getPrevBlockHash());
+        b.put((byte) block.getTargetBits());
+        b.putLong(block.getNonce());
+        b.putLong(block.getSalt());
+        b.putInt(coinbaseSize);
+        write(coinbase, coinbaseKeys, b);
+        b.putInt(numTxs);
+        for (int i = 0; i < numTxs; i++) {
+            long id = block.getShortId(i);
+            b.putShort((short) (id >>> 32));
+            b.putInt((int) id);
+        }
+        return b.array();
+    }
+
+    private static byte[][] encodedKeys(Transaction tx) {
+        byte[][] keys = new byte[tx.numOutputs()][];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = tx.getOutput(i).address.getEncoded();
+        return keys;
+    }
+
+    private static int size(Transaction tx, byte[][] keys) {
+        int size = 2 + bytesSize(tx.getHash()) + 4 + 4 + inputsSize(tx) + 4;
+        for (byte[] key : keys)
+            size += 8 + 1 + bytesSize(key);
+        return size;
+    }
+
+    private static int inputsSize(Transaction tx) {
+        int size = 0;
+        for (Transaction.Input in : tx.getInputs())
+            size += bytesSize(in.prevTxHash) + 4 + bytesSize(in.signature);
+        return size;
+    }
+
+    private static void write(Transaction tx, byte[][] keys, ByteBuffer b) {
+        b.put(VERSION);
+        int flags = tx.isCoinbase() ? FLAG_COINBASE : 0;
+        if (tx.getSignVersion() == Transaction.SIGN_VERSION_OUTPUTS_DIGEST)
+            flags |= FLAG_OUTPUTS_DIGEST;
+        b.put((byte) flags);
+        putBytes(b, tx.getHash());
+        b.putInt(tx.numInputs());
+        b.putInt(inputsSize(tx));
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(b, in.prevTxHash);
+            b.putInt(in.outputIndex);
+            putBytes(b, in.signature);
+        }
+        b.putInt(tx.numOutputs());
+        for (int i = 0; i < keys.length; i++) {
+            Transaction.Output op = tx.getOutput(i);
+            b.putDouble(op.value);
+            b.put((byte) SignatureScheme.of(op.address).ordinal());
+            putBytes(b, keys[i]);
+        }
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        return 2 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer b, byte[] bytes) {
+        if (bytes == null) {
+            b.putShort((short) NULL_LENGTH);
+            return;
+        }
+        if (bytes.length >= NULL_LENGTH)
+            throw new IllegalArgumentException("field of " + bytes.length + " bytes is too long");
+        b.putShort((short) bytes.length);
+        b.put(bytes);
+    }
+
+    /** @return the length of the bytes16 field at {@code index}, or -1 if it is null */
+    static int bytesLength(ByteBuffer b, int index) {
+        int len = b.getShort(index) & 0xFFFF;
+        return len == NULL_LENGTH ? -1 : len;
+    }
+
+    /** @return the bytes16 field at {@code index} copied into a new array, or null */
+    static byte[] getBytes(ByteBuffer b, int index) {
+        int len = bytesLength(b, index);
+        if (len < 0)
+            return null;
+        byte[] bytes = new byte[len];
+        b.get(index + 2, bytes);
+        return bytes;
+    }
+
+    /** @return the bytes16 field at {@code index} as a read-only view of {@code b}, or null */
+    static ByteBuffer sliceBytes(ByteBuffer b, int index) {
+        int len = bytesLength(b, index);
+        if (len < 0)
+            return null;
+        return b.slice(index + 2, len).asReadOnlyBuffer();
+    }
+
+    /** @return the offset just past the bytes16 field at {@code index} */
+    static int skipBytes(ByteBuffer b, int index) {
+        return index + 2 + Math.max(bytesLength(b, index), 0);
+    }
+
+    /**
+     * @return {@code count}, the number of items of at least {@code minBytes} bytes each that follow
+     *         {@code offset} in {@code b}
+     * @throws IllegalArgumentException if they cannot fit in the rest of {@code b}
+     */
+    static int checkCount(ByteBuffer b, int count, int offset, int minBytes) {
+        if (count < 0 || (long) count * minBytes > b.limit() - offset)
+            throw new IllegalArgumentException("count " + count + " does not fit in the record");
+        return count;
+    }
+
+    static void checkVersion(byte version) {
+        if (version != VERSION)
+            throw new IllegalArgumentException("unsupported wire format version " + version);
+    }
+
+    static void checkBlockVersion(byte version) {
+        if (version != VERSION && version != VERSION_POW)
+            throw new IllegalArgumentException("unsupported wire format version " + version);
+    }
+
+    /** Decodes the address of an output, see {@link SignatureScheme#decodeKey} */
+    static PublicKey decodeKey(int scheme, byte[] x509) {
+        return scheme(scheme).decodeKey(x509);
+    }
+
+    /** @return the signature scheme numbered {@code scheme} in a record */
+    static SignatureScheme scheme(int scheme) {
+        SignatureScheme[] schemes = SignatureScheme.values();
+        if (scheme < 0 || scheme >= schemes.length)
+            throw new IllegalArgumentException("unknown signature scheme " + scheme);
+        return schemes[scheme];
+    }
+}